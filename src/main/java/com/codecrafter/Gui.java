@@ -213,12 +213,8 @@ public class Gui {
     private int printInventorySlots(Inventory inventory, int offset) {
         int rowLength = 8;
 
-        var slots = inventory.getSlots();
-
         // Loops over all slots in inventory
-        for (int i = 0; i < slots.length; i++) {
-            Slot slot = slots[i];
-
+        inventory.forEachSlot((i, item, count) -> {
             // Used for printing a newline to have the items laid out in rows of rowLength.
             if (i != 0 && i % rowLength == 0) {
                 System.out.println("|");
@@ -226,12 +222,12 @@ public class Gui {
 
             // Handle empty and filled slots differently
             var visualIndex = i + offset;
-            if (slot.isNotEmpty()) {
-                System.out.print("| [" + visualIndex + "] " + slot.getItem().getName() + " (" + slot.getCount() + ") ");
+            if (item != null) {
+                System.out.print("| [" + visualIndex + "] " + item.getName() + " (" + count + ") ");
             } else {
                 System.out.print("| [" + visualIndex + "] empty ");
             }
-        }
+        });
 
         System.out.println("|");
 
@@ -249,6 +245,7 @@ public class Gui {
             var latestOption = printInventorySlots(inventory, inventoryIndexOffset);
 
             System.out.println("[" + (latestOption + 1) + "] Sort");
+            System.out.println("[" + (latestOption + 2) + "] Merge stacks");
             System.out.println("[0] Back");
 
             try {
@@ -258,6 +255,9 @@ public class Gui {
                     break;
                 } else if (option == latestOption + 1) {
                     sortSlots(inventory);
+                } else if (option == latestOption + 2) {
+                    var freedSlots = inventory.compact();
+                    System.out.println("Merged stacks and freed " + freedSlots + " slots");
                 } else {
                     manageSlot(inventory, option - inventoryIndexOffset);
                 }
@@ -334,6 +334,9 @@ public class Gui {
             } else {
                 System.out.println("Item: " + slot.getItem().getName() + "(id: " + slot.getItem().getId() + ")");
                 System.out.println("Stack size: " + slot.getCount());
+                if (slot.getItem().getMaxDurability() > 0) {
+                    System.out.println("Durability: " + slot.getDurability() + "/" + slot.getItem().getMaxDurability());
+                }
                 System.out.println("Weight: " + slot.getWeight());
                 System.out.println();
 
@@ -430,7 +433,7 @@ public class Gui {
                     System.out.println("Swapped slots");
                     break;
                 }
-            } catch (InvalidInputException e) {
+            } catch (InvalidInputException | InvalidSlotException e) {
                 System.out.println("Invalid option");
             }
 
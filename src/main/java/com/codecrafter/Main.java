@@ -1,18 +1,23 @@
 package com.codecrafter;
 
-import com.codecrafter.database.FileRepository;
+import com.codecrafter.database.JournalRepository;
 
 import com.codecrafter.exceptions.MalformedFileException;
 import com.codecrafter.exceptions.InvalidInputException;
+import com.codecrafter.inventory.InventoryJsonCodec;
 import com.codecrafter.inventory.Item;
+import com.codecrafter.inventory.ItemPersistence;
 import com.codecrafter.items.ConsumablePotion;
+import com.codecrafter.items.ItemCatalog;
+import com.codecrafter.items.ItemCatalogLoader;
 import com.codecrafter.items.ItemManager;
 import com.codecrafter.items.WeaponItem;
 import com.codecrafter.items.WeaponHandedness;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.time.Duration;
 import java.util.List;
 import java.util.Scanner;
 
@@ -22,39 +27,70 @@ public class Main {
      */
     public static void main(String[] args) {
         String dataFile = "inventories.json";
+        String itemsFile = "items.json";
 
-        FileRepository fileRepo = createFileRepository(dataFile);
+        // Load the items used in the app from the definitions file, through its precompiled snapshot when it's up to date
+        ItemManager.getInstance().setCatalog(loadItems(itemsFile));
+        // Changes to the definitions are picked up while the app runs, without having to restart it
+        ItemManager.getInstance().watch(new File(itemsFile), Duration.ofSeconds(2));
 
-        // Create items to use in the app. These are hardcoded, so they mean the same thing
-        // in different devices, when importing and exporting data
-        List<Item> items = new ArrayList<>() {{
-            add(new WeaponItem(0, "Sword of Might", 0.5, 1, WeaponHandedness.MainHand, 10, 100));
-            add(new WeaponItem(1, "Longsword", 1, 1, WeaponHandedness.TwoHand, 8, 150));
-            add(new ConsumablePotion(2, "Healing Potion", 0.05, 20));
-            add(new ConsumablePotion(3, "Heavy Stone", 2.5, 20));
-        }};
+        // The items mean the same thing on every device, so slots only have to refer to them by id
+        InventoryJsonCodec.setDefaultItemPersistence(ItemPersistence.ById);
 
-        // Add the items to the item manager
-        for (Item item : items) {
-            ItemManager.getInstance().insertItem(item);
+        // The items are added before loading the data file, so inventories using compact storage
+        // and the changes in the journal can resolve them.
+        // Every change is recorded in the journal, and closing the repository writes a new snapshot before exiting
+        try (var repository = createRepository(dataFile)) {
+            var gui = new Gui(repository);
+            gui.start();
         }
+    }
+
+    /**
+     * The items that are written to the definitions file, if it doesn't exist yet.
+     * The ids are fixed, so they mean the same thing in different devices, when importing and exporting data
+     * @return the default items
+     */
+    private static List<Item> defaultItems() {
+        return List.of(
+                new WeaponItem(0, "Sword of Might", 0.5, 1, WeaponHandedness.MainHand, 10, 100),
+                new WeaponItem(1, "Longsword", 1, 1, WeaponHandedness.TwoHand, 8, 150),
+                new ConsumablePotion(2, "Healing Potion", 0.05, 20),
+                new ConsumablePotion(3, "Heavy Stone", 2.5, 20)
+        );
+    }
 
-        var gui = new Gui(fileRepo);
-        gui.start();
+    /**
+     * Loads the catalog of items from a definitions file. If the file doesn't exist, it's created with the default items.
+     * The app can't continue without its items, since inventories with unknown items would lose them on the next save.
+     * @param itemsFile the name of the definitions file, in JSON or CSV
+     * @return the catalog of every item
+     */
+    private static ItemCatalog loadItems(String itemsFile) {
+        var file = new File(itemsFile);
+        try {
+            if (!file.exists()) {
+                ItemCatalogLoader.writeDefinitions(file, defaultItems());
+            }
+            return ItemCatalogLoader.load(file);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("The items in " + itemsFile + " couldn't be loaded: " + e.getMessage());
+            throw new RuntimeException("Crashed on purpose", e);
+        }
     }
 
     /**
-     * Helper function to create a new file repository.
+     * Helper function to create a new journal repository.
      * Some could argue that this should be present in the Gui class.
      * @param dataFile the name of the file that we should initialize the repository from.
-     * @return a FileRepository that handles writing and reading a file
+     * @return a JournalRepository that handles writing and reading a file
      */
-    private static @NotNull FileRepository createFileRepository(String dataFile) {
-        FileRepository fileRepo = null;
+    private static @NotNull JournalRepository createRepository(String dataFile) {
+        JournalRepository fileRepo = null;
 
         while (fileRepo == null) {
             try {
-                fileRepo = new FileRepository(dataFile);
+                fileRepo = new JournalRepository(dataFile);
             } catch (MalformedFileException e) {
                     try {
                         System.out.println("Data file is corrupted... These are your options");
@@ -0,0 +1,95 @@
+package com.codecrafter.database;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Replaces data files in a way where a crash never leaves a half-written file, keeping the previous version as a backup
+ */
+final class AtomicFile {
+    /**
+     * Added to the filename to get the file that a rewrite is written to, before it replaces the real file
+     */
+    static final String TEMP_SUFFIX = ".tmp";
+    /**
+     * Added to the filename to get the backup of the previous version of the file
+     */
+    static final String BACKUP_SUFFIX = ".bak";
+    /**
+     * Added to the filename when a file that can't be read is moved away, so it can be looked at later
+     */
+    static final String CORRUPT_SUFFIX = ".corrupt";
+
+    private AtomicFile() { }
+
+    /**
+     * Replaces the file with new data. The data is written to a temp file and forced to the disk, before it's renamed
+     * to replace the file, so the file always holds either the old or the new data. The old data is kept as a backup.
+     * @param fileName the filename or path of the file
+     * @param data the new content of the file
+     * @throws IOException if the file couldn't be written
+     */
+    static void write(String fileName, byte[] data) throws IOException {
+        Path target = Path.of(fileName);
+        Path temp = Path.of(fileName + TEMP_SUFFIX);
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+
+        backup(fileName, target);
+
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        syncDirectory(target);
+    }
+
+    /**
+     * Keeps the current version of the file as the backup, replacing the previous backup.
+     * A hard link is used when possible, so the file doesn't have to be copied.
+     * @param fileName the filename or path of the file
+     * @param target the file to back up
+     * @throws IOException if the backup couldn't be made
+     */
+    private static void backup(String fileName, Path target) throws IOException {
+        if (!Files.isRegularFile(target) || Files.size(target) == 0) {
+            return;
+        }
+
+        Path backup = Path.of(fileName + BACKUP_SUFFIX);
+        Files.deleteIfExists(backup);
+        try {
+            Files.createLink(backup, target);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(target, backup, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Forces the directory of a file to the disk, so a rename in it survives a crash
+     * @param file a file in the directory
+     */
+    private static void syncDirectory(Path file) {
+        Path directory = file.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not every platform can open a directory, e.g. Windows. The rename is still done, it's just not forced
+        }
+    }
+}
@@ -2,67 +2,94 @@ package com.codecrafter.database;
 
 import com.codecrafter.exceptions.MalformedFileException;
 import com.codecrafter.inventory.Inventory;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.codecrafter.inventory.InventoryBinaryCodec;
+import com.codecrafter.inventory.InventoryFormat;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
 /**
- * Contains all data that exists in the saved file
+ * An implementation of InventorySystemRepository to save to a file.
+ * Saving only writes the inventories that changed since the last save, by appending them to a change log
+ * next to the file. Once the log grows larger than the file itself, the file is rewritten and the log is cleared.
+ * The file is rewritten by writing a temp file and renaming it over the old one, so a crash never leaves a half-written file.
+ * The previous version is kept as a backup, which is used if the file can't be read.
+ * The file can be written as JSON or in the binary format, and files in either format can be read.
  */
-class InventoryFile {
+public class FileRepository implements InventorySystemRepository {
     /**
-     * A list of all loaded inventories
+     * The change log is never compacted before it reaches this size, so small files don't get rewritten all the time
      */
-    private final List<Inventory> inventories;
-
+    private static final long MIN_COMPACT_SIZE = 64 * 1024;
     /**
-     * Constructor for creating a new file
+     * The format used when no format is given. Can be set from the start with -Dinventory.format=Binary
      */
-    public InventoryFile() {
-        inventories = new ArrayList<>();
-    }
+    static final InventoryFormat DEFAULT_FORMAT = InventoryFormat.valueOf(System.getProperty("inventory.format", InventoryFormat.Json.name()));
 
     /**
-     * Adds an inventory to the file
-     * @param inventory the inventory to add
+     * The filename or path to the file
      */
-    void addInventory(Inventory inventory) {
-        inventories.add(inventory);
-    }
-
+    String fileName;
+    /**
+     * The data that's loaded, to be saved and/or modified
+     */
+    InventoryFile inventoryFile;
     /**
-     * Removes an inventory from the file½
-     * @param inventory the inventory to remove
+     * The changes that have been saved since the file was last rewritten
      */
-    void removeInventory(Inventory inventory) {
-        inventories.remove(inventory);
-    }
-
+    private final InventoryChangeLog changeLog;
     /**
-     * Gets all inventories
-     * @return a list of all loaded inventories
+     * The version every inventory had when it was last saved. Inventories that aren't in here have never been saved.
      */
-    public List<Inventory> getInventories() {
-        return inventories;
-    }
-}
+    private final Map<Inventory, Long> savedVersions = new IdentityHashMap<>();
+    /**
+     * Ids of inventories that have been removed since the last save
+     */
+    private final Set<String> removedIds = new LinkedHashSet<>();
+    /**
+     * Set when the file has to be rewritten on the next save, instead of only appending the changes
+     */
+    private boolean needsCompaction;
+    /**
+     * The format the file is written in. The change log is always JSON.
+     */
+    private final InventoryFormat format;
 
-/**
- * An implementation of InventorySystemRepository to save to a file
- */
-public class FileRepository implements InventorySystemRepository {
     /**
-     * The filename or path to the file
+     * Change log records that have been prepared by prepareSave(), but not written yet, by inventory id.
+     * A newer save of an inventory replaces its record, so saving the same inventory many times before
+     * the records are written only writes it once.
      */
-    String fileName;
+    private final Map<String, byte[]> pendingRecords = new LinkedHashMap<>();
     /**
-     * The data that's loaded, to be saved and/or modified
+     * The size of the pending records in bytes
      */
-    InventoryFile inventoryFile;
+    private long pendingRecordsSize;
+    /**
+     * A whole data file that has been prepared by prepareSave(), but not written yet, or null if there's none
+     */
+    private byte[] pendingFile;
+    /**
+     * Guards the pending writes, since they can be written on another thread than the one preparing them
+     */
+    private final Object pendingLock = new Object();
+    /**
+     * Held while writing, so only one thread writes the files at a time
+     */
+    private final Object writeLock = new Object();
 
     /**
      * @param fileName the filename of the file to use
@@ -70,25 +97,126 @@ public class FileRepository implements InventorySystemRepository {
      * This should only be thrown when the file has been modified from the outside.
      */
     public FileRepository(String fileName) throws MalformedFileException {
+        this(fileName, DEFAULT_FORMAT);
+    }
+
+    /**
+     * @param fileName the filename of the file to use
+     * @param format the format to write the file in. A file in the other format is converted the next time it's rewritten.
+     * @throws MalformedFileException if the file is formatted incorrectly, e.g. invalid json or wrong types.
+     * This should only be thrown when the file has been modified from the outside.
+     */
+    public FileRepository(String fileName, InventoryFormat format) throws MalformedFileException {
         this.fileName = fileName;
+        this.format = format;
+        this.changeLog = new InventoryChangeLog(new File(fileName + ".log"));
         this.inventoryFile = readInventoryFile();
+
+        try {
+            File file = new File(fileName);
+            if (file.length() > 0 && InventoryFormat.detect(file) != format) {
+                needsCompaction = true;
+            }
+        } catch (IOException e) {
+            throw new MalformedFileException();
+        }
+
+        for (Inventory inventory : inventoryFile.getInventories()) {
+            // Files written before inventories had ids are rewritten, so changes can refer to the ids
+            if (inventory.getId() == null) {
+                inventory.setId(UUID.randomUUID().toString());
+                needsCompaction = true;
+            }
+            savedVersions.put(inventory, inventory.getVersion());
+        }
     }
 
     /**
-     * Read the file that contains app-data
+     * Read the file that contains app-data, with all changes from the change log applied
      * @return an inventory file with all inventories in the file
      * @throws MalformedFileException if the file is formatted incorrectly, e.g. invalid json or wrong types.
      * This should only be thrown when the file has been modified from the outside.
      */
     InventoryFile readInventoryFile() throws MalformedFileException {
+        File file = new File(fileName);
+        // A temp file is only left if a rewrite was interrupted, and then the file it should have replaced is still intact
+        new File(fileName + AtomicFile.TEMP_SUFFIX).delete();
+
+        InventoryFile data;
         try {
-            File file = new File(fileName);
-            if (file.createNewFile()) {
-                return new InventoryFile();
-            } else {
-                var mapper = new ObjectMapper();
-                return mapper.readValue(file, InventoryFile.class);
+            data = readDataFile(file);
+        } catch (IOException e) {
+            data = recoverFromBackup(file);
+        }
+
+        try {
+            changeLog.replay(data);
+        } catch (IOException e) {
+            throw new MalformedFileException();
+        }
+        return data;
+    }
+
+    /**
+     * Reads a data file, creating it if it doesn't exist
+     * @param file the file to read
+     * @return the data in the file
+     * @throws IOException if the file couldn't be read or is formatted incorrectly
+     */
+    private static InventoryFile readDataFile(File file) throws IOException {
+        // A new file stays empty until it's compacted, as the changes go to the change log
+        if (file.createNewFile() || file.length() == 0) {
+            return new InventoryFile();
+        }
+
+        return readInventories(file);
+    }
+
+    /**
+     * Reads every inventory in a data file, one at a time
+     * @param file the file to read
+     * @return the data in the file
+     * @throws IOException if the file couldn't be read or is formatted incorrectly
+     */
+    static InventoryFile readInventories(File file) throws IOException {
+        InventoryFile data = new InventoryFile();
+        if (InventoryFormat.detect(file) == InventoryFormat.Binary) {
+            try (var in = new FileInputStream(file)) {
+                InventoryBinaryCodec.read(in).forEach(data::addInventory);
             }
+            return data;
+        }
+
+        try (var reader = new InventoryFileReader(file)) {
+            Inventory inventory;
+            while ((inventory = reader.next()) != null) {
+                data.addInventory(inventory);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Reads the backup, when the file itself can't be read. The broken file is moved away, so it doesn't replace the backup
+     * on the next save, and the file is rewritten on the next save.
+     * @param file the file that couldn't be read
+     * @return the data in the backup
+     * @throws MalformedFileException if there's no backup, or it can't be read either
+     */
+    private InventoryFile recoverFromBackup(File file) throws MalformedFileException {
+        File backup = new File(fileName + AtomicFile.BACKUP_SUFFIX);
+        if (!backup.isFile()) {
+            throw new MalformedFileException();
+        }
+
+        try {
+            InventoryFile data = readInventories(backup);
+
+            Files.move(file.toPath(), Path.of(fileName + AtomicFile.CORRUPT_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+            needsCompaction = true;
+
+            System.out.println("Data file is corrupted, so the last backup was loaded instead");
+            return data;
         } catch (IOException e) {
             throw new MalformedFileException();
         }
@@ -110,25 +238,199 @@ public class FileRepository implements InventorySystemRepository {
     }
 
     /**
-     * Writes all changes in the inventory file to the disk
+     * Writes all inventories that changed since the last save to the disk
      */
     @Override
     public void save() {
-        try (FileWriter file = new FileWriter(fileName, false)) {
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.writeValue(file, inventoryFile);
+        try {
+            prepareSave();
+            writePrepared();
         } catch (IOException e) {
             System.out.println("Something went wrong while saving...");
         }
     }
 
+    /**
+     * Converts every inventory that changed since the last save to the bytes that should be written, without
+     * writing them yet. Must be called on the thread that changes the inventories, so they don't change while
+     * they're converted. The bytes are written by writePrepared(), which can be called on another thread.
+     * An inventory that's prepared again before it's written only keeps its latest record.
+     * @throws IOException if an inventory couldn't be converted
+     */
+    void prepareSave() throws IOException {
+        // The versions are read before converting, so a change made while converting is still seen as unsaved
+        Map<Inventory, Long> changed = new IdentityHashMap<>();
+        for (Inventory inventory : inventoryFile.getInventories()) {
+            Long savedVersion = savedVersions.get(inventory);
+            if (savedVersion == null || savedVersion != inventory.getVersion()) {
+                changed.put(inventory, inventory.getVersion());
+            }
+        }
+
+        if (changed.isEmpty() && removedIds.isEmpty()) {
+            return;
+        }
+
+        Map<String, byte[]> records = new LinkedHashMap<>();
+        for (Inventory inventory : changed.keySet()) {
+            records.put(inventory.getId(), InventoryChangeLog.putRecord(inventory));
+        }
+        for (String id : removedIds) {
+            records.put(id, InventoryChangeLog.removeRecord(id));
+        }
+
+        synchronized (pendingLock) {
+            long fileSize = pendingFile != null ? pendingFile.length : new File(fileName).length();
+            long logSize = (pendingFile != null ? 0 : changeLog.size()) + pendingRecordsSize;
+            for (var record : records.entrySet()) {
+                byte[] replaced = pendingRecords.get(record.getKey());
+                logSize += record.getValue().length - (replaced != null ? replaced.length : 0);
+            }
+
+            // Once the log grows larger than the file, the whole file is rewritten and the log is cleared
+            if (needsCompaction || logSize > Math.max(fileSize, MIN_COMPACT_SIZE)) {
+                Map<Inventory, Long> versions = new IdentityHashMap<>();
+                for (Inventory inventory : inventoryFile.getInventories()) {
+                    versions.put(inventory, inventory.getVersion());
+                }
+
+                pendingFile = toBytes(inventoryFile.getInventories(), format);
+                pendingRecords.clear();
+                pendingRecordsSize = 0;
+                markSaved(versions);
+                needsCompaction = false;
+                return;
+            }
+
+            for (var record : records.entrySet()) {
+                addPendingRecord(record.getKey(), record.getValue(), true);
+            }
+            markSaved(changed);
+        }
+    }
+
+    /**
+     * Writes everything prepared by prepareSave() to the disk.
+     * If writing fails, the writes are kept, so they're tried again on the next call.
+     * @throws IOException if the files couldn't be written
+     */
+    void writePrepared() throws IOException {
+        synchronized (writeLock) {
+            byte[] file;
+            Map<String, byte[]> records;
+            synchronized (pendingLock) {
+                file = pendingFile;
+                records = new LinkedHashMap<>(pendingRecords);
+                pendingFile = null;
+                pendingRecords.clear();
+                pendingRecordsSize = 0;
+            }
+
+            try {
+                if (file != null) {
+                    AtomicFile.write(fileName, file);
+                    // If this is interrupted, replaying the log on top of the new file just writes the same changes again
+                    changeLog.clear();
+                    file = null;
+                }
+                if (!records.isEmpty()) {
+                    var buffer = new ByteArrayOutputStream();
+                    for (byte[] record : records.values()) {
+                        buffer.write(record);
+                    }
+                    changeLog.append(buffer.toByteArray());
+                }
+            } catch (IOException e) {
+                restorePending(file, records);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Puts writes that failed back, unless something newer has been prepared since
+     * @param file the data file that wasn't written, or null
+     * @param records the change log records that weren't written, by inventory id
+     */
+    private void restorePending(byte[] file, Map<String, byte[]> records) {
+        synchronized (pendingLock) {
+            // A data file prepared since already contains every change
+            if (pendingFile != null) {
+                return;
+            }
+
+            pendingFile = file;
+            for (var record : records.entrySet()) {
+                addPendingRecord(record.getKey(), record.getValue(), false);
+            }
+        }
+    }
+
+    /**
+     * Adds a change log record to the pending records. Must be called with the pending lock held.
+     * @param id the id of the inventory the record is about
+     * @param record the record
+     * @param replace true to replace a pending record of the same inventory, false to keep it since it's newer
+     */
+    private void addPendingRecord(String id, byte[] record, boolean replace) {
+        byte[] existing = pendingRecords.get(id);
+        if (existing != null && !replace) {
+            return;
+        }
+
+        pendingRecords.put(id, record);
+        pendingRecordsSize += record.length - (existing != null ? existing.length : 0);
+    }
+
+    /**
+     * Writes a whole data file
+     * @param inventories the inventories to write
+     * @param format the format to write the file in
+     * @return the content of the data file
+     * @throws IOException if an inventory couldn't be written
+     */
+    static byte[] toBytes(Collection<Inventory> inventories, InventoryFormat format) throws IOException {
+        var buffer = new ByteArrayOutputStream();
+        if (format == InventoryFormat.Binary) {
+            InventoryBinaryCodec.write(buffer, inventories);
+        } else {
+            try (var writer = new InventoryFileWriter(buffer)) {
+                for (Inventory inventory : inventories) {
+                    writer.write(inventory);
+                }
+            }
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Remembers that inventories have been saved
+     * @param versions the inventories that were saved, and the version they were saved in
+     */
+    private void markSaved(Map<Inventory, Long> versions) {
+        savedVersions.putAll(versions);
+        removedIds.clear();
+    }
+
+    /**
+     * Adds an inventory. If the inventory has no id, or an inventory with the same id already exists,
+     * e.g. when the same file is imported twice, the added inventory gets a new id.
+     * @param inventory the inventory to add
+     */
     public void addInventory(Inventory inventory) {
+        if (inventory.getId() == null || inventoryFile.containsId(inventory.getId())) {
+            inventory.setId(UUID.randomUUID().toString());
+        }
+
+        // Removals are written after the changes, so a removal of the same id would remove this inventory again
+        removedIds.remove(inventory.getId());
         inventoryFile.addInventory(inventory);
     }
 
     @Override
     public void removeInventory(Inventory inventory) {
         inventoryFile.removeInventory(inventory);
+        savedVersions.remove(inventory);
+        removedIds.add(inventory.getId());
     }
 }
-
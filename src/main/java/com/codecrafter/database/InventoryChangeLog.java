@@ -0,0 +1,271 @@
+package com.codecrafter.database;
+
+import com.codecrafter.inventory.Inventory;
+import com.codecrafter.inventory.InventoryJsonCodec;
+import com.codecrafter.inventory.JsonMappers;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A single change in the change log.
+ * Either a whole inventory that was added or changed, or the id of an inventory that was removed.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+class ChangeRecord {
+    /**
+     * The inventory that was added or changed
+     */
+    private Inventory put;
+    /**
+     * The id of the inventory that was removed
+     */
+    private String remove;
+
+    /**
+     * Private empty constructor for Jackson
+     */
+    private ChangeRecord() { }
+
+    /**
+     * @param put the inventory that was added or changed, or null
+     * @param remove the id of the inventory that was removed, or null
+     */
+    ChangeRecord(Inventory put, String remove) {
+        this.put = put;
+        this.remove = remove;
+    }
+
+    /**
+     * @return the inventory that was added or changed, or null
+     */
+    public Inventory getPut() {
+        return put;
+    }
+
+    /**
+     * @return the id of the inventory that was removed, or null
+     */
+    public String getRemove() {
+        return remove;
+    }
+}
+
+/**
+ * An append-only log of changes to inventories, kept next to the data file.
+ * Instead of rewriting every inventory on every save, only the inventories that changed are appended here,
+ * one JSON record per line. When the data file is read, the log is replayed on top of it.
+ */
+class InventoryChangeLog {
+    /**
+     * Where an inventory was written in the log
+     * @param offset the byte offset of the inventory's json object
+     * @param length the length of the json object in bytes
+     */
+    record Position(long offset, int length) { }
+
+    /**
+     * Put records are written by hand, so the position of the inventory in them is known.
+     * This gives the same json as writing the ChangeRecord.
+     */
+    private static final byte[] PUT_PREFIX = "{\"put\":".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * The file with the log
+     */
+    private final File file;
+    /**
+     * Reads a record
+     */
+    private static final ObjectReader RECORD_READER = JsonMappers.readerFor(ChangeRecord.class);
+    /**
+     * Writes a record
+     */
+    private static final ObjectWriter RECORD_WRITER = JsonMappers.writerFor(ChangeRecord.class);
+
+    /**
+     * @param file the file with the log
+     */
+    InventoryChangeLog(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the file with the log
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the size of the log in bytes
+     */
+    long size() {
+        return file.length();
+    }
+
+    /**
+     * Appends changes to the log, and forces them to the disk before returning
+     * @param changed the inventories that were added or changed
+     * @param removedIds the ids of the inventories that were removed
+     * @return where each changed inventory was written, so it can be read again without replaying the log
+     * @throws IOException if the log couldn't be written
+     */
+    Map<Inventory, Position> append(Collection<Inventory> changed, Collection<String> removedIds) throws IOException {
+        Map<Inventory, Position> positions = new IdentityHashMap<>();
+        append(toRecords(changed, removedIds, size(), positions));
+        return positions;
+    }
+
+    /**
+     * Appends records made by {@link #putRecord(Inventory)} and {@link #removeRecord(String)} to the log,
+     * and forces them to the disk before returning
+     * @param records the records to append
+     * @throws IOException if the log couldn't be written
+     */
+    void append(byte[] records) throws IOException {
+        try (var out = new FileOutputStream(file, true)) {
+            out.write(records);
+            out.getChannel().force(false);
+        }
+    }
+
+    /**
+     * Converts an inventory that was added or changed to a record, without writing it yet
+     * @param inventory the inventory
+     * @return the record, as a single line
+     * @throws IOException if the inventory couldn't be converted
+     */
+    static byte[] putRecord(Inventory inventory) throws IOException {
+        byte[] json = InventoryJsonCodec.toBytes(inventory);
+        byte[] record = new byte[PUT_PREFIX.length + json.length + 2];
+        System.arraycopy(PUT_PREFIX, 0, record, 0, PUT_PREFIX.length);
+        System.arraycopy(json, 0, record, PUT_PREFIX.length, json.length);
+        record[record.length - 2] = '}';
+        record[record.length - 1] = '\n';
+        return record;
+    }
+
+    /**
+     * Converts the removal of an inventory to a record, without writing it yet
+     * @param id the id of the inventory that was removed
+     * @return the record, as a single line
+     * @throws IOException if the record couldn't be converted
+     */
+    static byte[] removeRecord(String id) throws IOException {
+        var buffer = new ByteArrayOutputStream();
+        buffer.write(RECORD_WRITER.writeValueAsBytes(new ChangeRecord(null, id)));
+        buffer.write('\n');
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Converts changes to records, and finds where every changed inventory will be in the log
+     * @param changed the inventories that were added or changed
+     * @param removedIds the ids of the inventories that were removed
+     * @param start the offset in the log the records will be written at
+     * @param positions where the position of each changed inventory is put
+     * @return the records, one per line
+     * @throws IOException if an inventory couldn't be converted
+     */
+    private static byte[] toRecords(Collection<Inventory> changed, Collection<String> removedIds, long start,
+                                    Map<Inventory, Position> positions) throws IOException {
+        // Build all records first, so they are written in one go
+        var buffer = new ByteArrayOutputStream();
+        for (Inventory inventory : changed) {
+            byte[] record = putRecord(inventory);
+            // The inventory's json is between the prefix and the closing brace and newline
+            positions.put(inventory, new Position(start + buffer.size() + PUT_PREFIX.length, record.length - PUT_PREFIX.length - 2));
+            buffer.write(record);
+        }
+        for (String id : removedIds) {
+            buffer.write(removeRecord(id));
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Applies every change in the log to the loaded data.
+     * A broken last line, e.g. from a crash while appending, is cut off, so the next append starts on a new line.
+     * @param inventoryFile the data to apply the changes to
+     * @throws IOException if the log couldn't be read, or a line other than the last is broken
+     */
+    void replay(InventoryFile inventoryFile) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        byte[] log = Files.readAllBytes(file.toPath());
+        // The end of the last record that was read completely, including its line break
+        int goodEnd = 0;
+        while (goodEnd < log.length) {
+            int lineEnd = goodEnd;
+            while (lineEnd < log.length && log[lineEnd] != '\n') {
+                lineEnd++;
+            }
+
+            ChangeRecord record;
+            try {
+                record = RECORD_READER.readValue(log, goodEnd, lineEnd - goodEnd);
+            } catch (JsonProcessingException e) {
+                if (lineEnd < log.length - 1) {
+                    throw e;
+                }
+                break;
+            }
+
+            if (record.getPut() != null) {
+                inventoryFile.putInventory(record.getPut());
+            } else if (record.getRemove() != null) {
+                inventoryFile.removeInventory(record.getRemove());
+            }
+
+            if (lineEnd == log.length) {
+                // The record is whole, only the line break after it is missing
+                try (var out = new FileOutputStream(file, true)) {
+                    out.write('\n');
+                    out.getChannel().force(false);
+                }
+            }
+            goodEnd = lineEnd + 1;
+        }
+
+        if (goodEnd < log.length) {
+            truncate(goodEnd);
+        }
+    }
+
+    /**
+     * Cuts the log off at a given size, e.g. to remove a broken last line before appending after it
+     * @param size the size in bytes to keep
+     * @throws IOException if the log couldn't be truncated
+     */
+    void truncate(long size) throws IOException {
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    /**
+     * Removes every change from the log. Done once the changes are saved in the data file.
+     * @throws IOException if the log couldn't be removed
+     */
+    void clear() throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+    }
+}
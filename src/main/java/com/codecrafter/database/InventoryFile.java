@@ -0,0 +1,82 @@
+package com.codecrafter.database;
+
+import com.codecrafter.inventory.Inventory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Contains all data that exists in the saved file
+ */
+class InventoryFile {
+    /**
+     * A list of all loaded inventories
+     */
+    private final List<Inventory> inventories;
+
+    /**
+     * Constructor for creating a new file
+     */
+    public InventoryFile() {
+        inventories = new ArrayList<>();
+    }
+
+    /**
+     * Adds an inventory to the file
+     * @param inventory the inventory to add
+     */
+    void addInventory(Inventory inventory) {
+        inventories.add(inventory);
+    }
+
+    /**
+     * Removes an inventory from the file½
+     * @param inventory the inventory to remove
+     */
+    void removeInventory(Inventory inventory) {
+        inventories.remove(inventory);
+    }
+
+    /**
+     * Removes an inventory from the file by its id
+     * @param id the id of the inventory to remove
+     */
+    void removeInventory(String id) {
+        inventories.removeIf(inventory -> id.equals(inventory.getId()));
+    }
+
+    /**
+     * Replaces the inventory with the same id, or adds it if there is none
+     * @param inventory the inventory to put in the file
+     */
+    void putInventory(Inventory inventory) {
+        for (int i = 0; i < inventories.size(); i++) {
+            if (inventory.getId().equals(inventories.get(i).getId())) {
+                inventories.set(i, inventory);
+                return;
+            }
+        }
+        inventories.add(inventory);
+    }
+
+    /**
+     * @param id the id of an inventory
+     * @return true if an inventory with the given id is in the file
+     */
+    boolean containsId(String id) {
+        for (Inventory inventory : inventories) {
+            if (id.equals(inventory.getId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets all inventories
+     * @return a list of all loaded inventories
+     */
+    public List<Inventory> getInventories() {
+        return inventories;
+    }
+}
@@ -0,0 +1,108 @@
+package com.codecrafter.database;
+
+import com.codecrafter.inventory.Inventory;
+import com.codecrafter.inventory.InventoryJsonCodec;
+import com.codecrafter.inventory.JsonMappers;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reads the inventories in a data file one at a time, so only the inventory being read is kept in memory
+ */
+public class InventoryFileReader implements Closeable {
+    /**
+     * The parser reading the file
+     */
+    private final JsonParser parser;
+    /**
+     * Set once the parser is inside the inventory array
+     */
+    private boolean inInventories;
+    /**
+     * Set once every inventory has been read
+     */
+    private boolean done;
+
+    /**
+     * @param file the data file to read
+     * @throws IOException if the file couldn't be opened, or isn't a data file
+     */
+    public InventoryFileReader(File file) throws IOException {
+        parser = JsonMappers.factory().createParser(file);
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected an object in " + file);
+        }
+    }
+
+    /**
+     * Reads the next inventory
+     * @return the next inventory, or null when there are no more inventories
+     * @throws IOException if the file couldn't be read, or is formatted incorrectly
+     */
+    public Inventory next() throws IOException {
+        if (done) {
+            return null;
+        }
+
+        if (!inInventories && !findInventories()) {
+            done = true;
+            return null;
+        }
+
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.END_ARRAY) {
+            inInventories = false;
+            // The rest of the file is still read, so a file that's cut off after the inventories isn't accepted
+            skipRemainingFields();
+            done = true;
+            return null;
+        }
+        if (token != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected an inventory object");
+        }
+
+        return InventoryJsonCodec.read(parser);
+    }
+
+    /**
+     * Moves the parser into the inventory array, skipping any other fields
+     * @return false if the file has no inventory array
+     * @throws IOException if the file is formatted incorrectly
+     */
+    private boolean findInventories() throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("inventories".equals(field) && value == JsonToken.START_ARRAY) {
+                inInventories = true;
+                return true;
+            }
+            parser.skipChildren();
+        }
+        return false;
+    }
+
+    /**
+     * Skips every field after the inventory array, until the end of the file
+     * @throws IOException if the file is formatted incorrectly
+     */
+    private void skipRemainingFields() throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            parser.nextToken();
+            parser.skipChildren();
+        }
+        if (parser.currentToken() != JsonToken.END_OBJECT) {
+            throw new JsonParseException(parser, "Expected the end of the file");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+}
@@ -0,0 +1,51 @@
+package com.codecrafter.database;
+
+import com.codecrafter.inventory.Inventory;
+import com.codecrafter.inventory.InventoryJsonCodec;
+import com.codecrafter.inventory.JsonMappers;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes inventories to a data file one at a time, in the same format as InventoryFileReader reads.
+ * The file isn't complete until the writer is closed.
+ */
+public class InventoryFileWriter implements Closeable {
+    /**
+     * The generator writing the file
+     */
+    private final JsonGenerator generator;
+
+    /**
+     * @param out where to write the data file. It's closed when the writer is closed.
+     * @throws IOException if the start of the file couldn't be written
+     */
+    public InventoryFileWriter(OutputStream out) throws IOException {
+        generator = JsonMappers.factory().createGenerator(out);
+        generator.writeStartObject();
+        generator.writeArrayFieldStart("inventories");
+    }
+
+    /**
+     * Writes the next inventory
+     * @param inventory the inventory to write
+     * @throws IOException if the inventory couldn't be written
+     */
+    public void write(Inventory inventory) throws IOException {
+        InventoryJsonCodec.write(generator, inventory);
+    }
+
+    /**
+     * Writes the end of the file, and closes it
+     * @throws IOException if the end of the file couldn't be written
+     */
+    @Override
+    public void close() throws IOException {
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.close();
+    }
+}
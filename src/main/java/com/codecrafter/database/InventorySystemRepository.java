@@ -28,6 +28,11 @@ public interface InventorySystemRepository {
      */
     void save();
 
+    /**
+     * Makes sure every save has been written. Repositories that write right away when saving don't have to do anything.
+     */
+    default void flush() { }
+
     /**
      * Adds an existing inventory to the source
      * @param inventory the inventory to add
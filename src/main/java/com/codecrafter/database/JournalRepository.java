@@ -0,0 +1,325 @@
+package com.codecrafter.database;
+
+import com.codecrafter.exceptions.MalformedFileException;
+import com.codecrafter.inventory.Inventory;
+import com.codecrafter.inventory.InventoryFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An implementation of InventorySystemRepository that records every single change to an inventory in a journal,
+ * instead of writing whole inventories when saving. Saving only writes the changes recorded since the last save,
+ * so it costs the same no matter how large the inventories are, and every change can be kept.
+ * <p>
+ * The inventories themselves are kept in a snapshot, in the same format as a FileRepository file, and the journal
+ * is replayed on top of it when the repository is opened. Once the journal grows larger than the snapshot, a
+ * checkpoint writes a new snapshot and empties the journal. A change log left by a FileRepository is applied once,
+ * and then replaced by a checkpoint.
+ * Remember to call close() before exiting, so the last changes are written.
+ * Inventories shouldn't be changed by other threads while a checkpoint is being written, unless they are in
+ * ConcurrencyMode.Striped. Those are all locked from before the snapshot is made until the journal is emptied,
+ * so no change can end up in neither the snapshot nor the journal.
+ */
+public class JournalRepository implements InventorySystemRepository, AutoCloseable {
+    /**
+     * The journal is never checkpointed before it reaches this size, so small snapshots don't get rewritten all the time
+     */
+    private static final long MIN_CHECKPOINT_SIZE = 64 * 1024;
+    /**
+     * Added to the filename to get the journal
+     */
+    static final String JOURNAL_SUFFIX = ".journal";
+
+    /**
+     * The filename or path to the snapshot
+     */
+    private final String fileName;
+    /**
+     * The format the snapshot is written in
+     */
+    private final InventoryFormat format;
+    /**
+     * When the journal is forced to the disk
+     */
+    private final JournalSyncPolicy syncPolicy;
+    /**
+     * The journal with every change since the last checkpoint
+     */
+    private final OperationJournal journal;
+    /**
+     * Commits the journal in the background, so changes aren't only in memory until the next save
+     */
+    private final ScheduledExecutorService scheduler;
+    /**
+     * Every inventory by id, in the order they were added. Guarded by lock.
+     */
+    private final Map<String, Inventory> inventories = new LinkedHashMap<>();
+    /**
+     * Guards the inventories, and makes sure only one checkpoint is written at a time
+     */
+    private final Object lock = new Object();
+    /**
+     * The size of the latest snapshot, used to decide when to checkpoint
+     */
+    private volatile long snapshotSize;
+    /**
+     * The number of checkpoints since the repository was opened
+     */
+    private volatile long checkpoints;
+
+    /**
+     * Opens the repository with group commit, committing at least once a second
+     * @param fileName the filename of the snapshot. The journal is kept next to it.
+     * @throws MalformedFileException if the snapshot or journal is formatted incorrectly
+     */
+    public JournalRepository(String fileName) throws MalformedFileException {
+        this(fileName, FileRepository.DEFAULT_FORMAT, JournalSyncPolicy.GroupCommit, Duration.ofSeconds(1));
+    }
+
+    /**
+     * @param fileName the filename of the snapshot. The journal is kept next to it.
+     * @param format the format to write the snapshot in. A snapshot in the other format is converted at the next checkpoint.
+     * @param syncPolicy when the journal is forced to the disk
+     * @param commitInterval how often the journal is committed in the background. Not used with EveryChange.
+     * @throws MalformedFileException if the snapshot or journal is formatted incorrectly
+     */
+    public JournalRepository(String fileName, InventoryFormat format, JournalSyncPolicy syncPolicy, Duration commitInterval) throws MalformedFileException {
+        this.fileName = fileName;
+        this.format = format;
+        this.syncPolicy = syncPolicy;
+
+        try {
+            this.journal = new OperationJournal(new File(fileName + JOURNAL_SUFFIX), syncPolicy == JournalSyncPolicy.EveryChange);
+            open();
+        } catch (IOException e) {
+            throw new MalformedFileException();
+        }
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "inventory-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (syncPolicy != JournalSyncPolicy.EveryChange) {
+            long interval = Math.max(commitInterval.toMillis(), 1);
+            scheduler.scheduleWithFixedDelay(this::commit, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Reads the snapshot and replays the journal on top of it
+     * @throws IOException if the snapshot or journal couldn't be read
+     */
+    private void open() throws IOException {
+        File file = new File(fileName);
+        // A temp file is only left if a checkpoint was interrupted, and then the snapshot it should have replaced is still intact
+        new File(fileName + AtomicFile.TEMP_SUFFIX).delete();
+
+        byte[] snapshot = file.isFile() ? Files.readAllBytes(file.toPath()) : new byte[0];
+        snapshotSize = snapshot.length;
+        InventoryFile data = snapshot.length == 0 ? new InventoryFile() : FileRepository.readInventories(file);
+
+        boolean needsCheckpoint = snapshot.length > 0 && InventoryFormat.detect(file) != format;
+        var changeLog = new InventoryChangeLog(new File(fileName + ".log"));
+        if (changeLog.getFile().exists()) {
+            changeLog.replay(data);
+            needsCheckpoint = true;
+        }
+
+        for (Inventory inventory : data.getInventories()) {
+            // Changes refer to inventories by id, so inventories from files without ids are given one
+            if (inventory.getId() == null) {
+                inventory.setId(UUID.randomUUID().toString());
+                needsCheckpoint = true;
+            }
+            inventories.put(inventory.getId(), inventory);
+        }
+
+        if (journal.replay(inventories, snapshot.length, OperationJournal.checksum(snapshot)) < 0) {
+            journal.reset(snapshot.length, OperationJournal.checksum(snapshot));
+        }
+
+        for (Inventory inventory : inventories.values()) {
+            inventory.setListener(journal);
+        }
+
+        if (needsCheckpoint) {
+            writeCheckpoint();
+            changeLog.clear();
+        }
+    }
+
+    @Override
+    public List<Inventory> getInventories() {
+        synchronized (lock) {
+            return List.copyOf(inventories.values());
+        }
+    }
+
+    @Override
+    public Inventory newInventory(String name, int unlockedSlots) {
+        var inventory = new Inventory(name, unlockedSlots);
+        addInventory(inventory);
+
+        save();
+
+        return inventory;
+    }
+
+    /**
+     * Writes the changes recorded since the last save to the journal, forcing them to the disk unless the sync policy
+     * is NoForce. Writes a checkpoint instead, if the journal has grown larger than the snapshot.
+     */
+    @Override
+    public void save() {
+        try {
+            if (journal.hasFailed() || journal.size() > Math.max(snapshotSize, MIN_CHECKPOINT_SIZE)) {
+                writeCheckpoint();
+                return;
+            }
+
+            journal.commit(syncPolicy != JournalSyncPolicy.NoForce);
+        } catch (IOException e) {
+            System.out.println("Something went wrong while saving...");
+        }
+    }
+
+    /**
+     * Writes the changes recorded since the last save to the journal
+     */
+    @Override
+    public void flush() {
+        commit();
+    }
+
+    /**
+     * Commits the journal, called in the background at every commit interval
+     */
+    private void commit() {
+        try {
+            journal.commit(syncPolicy != JournalSyncPolicy.NoForce);
+        } catch (IOException e) {
+            System.out.println("Something went wrong while saving...");
+        }
+    }
+
+    /**
+     * Writes a new snapshot with every inventory, and empties the journal
+     */
+    public void checkpoint() {
+        try {
+            writeCheckpoint();
+        } catch (IOException e) {
+            System.out.println("Something went wrong while saving...");
+        }
+    }
+
+    /**
+     * Writes a new snapshot with every inventory, and empties the journal
+     * @throws IOException if the snapshot or journal couldn't be written
+     */
+    private void writeCheckpoint() throws IOException {
+        synchronized (lock) {
+            List<Inventory> all = List.copyOf(inventories.values());
+            // Every inventory stays locked until the journal is emptied, so a change made in between isn't lost
+            boolean[] locked = new boolean[all.size()];
+            try {
+                for (int i = 0; i < all.size(); i++) {
+                    locked[i] = all.get(i).lockInventory();
+                }
+
+                byte[] snapshot = FileRepository.toBytes(all, format);
+                AtomicFile.write(fileName, snapshot);
+                journal.reset(snapshot.length, OperationJournal.checksum(snapshot));
+                snapshotSize = snapshot.length;
+            } finally {
+                for (int i = 0; i < all.size(); i++) {
+                    all.get(i).unlockInventory(locked[i]);
+                }
+            }
+            checkpoints++;
+        }
+    }
+
+    /**
+     * Adds an inventory. If the inventory has no id, or an inventory with the same id already exists,
+     * e.g. when the same file is imported twice, the added inventory gets a new id.
+     * @param inventory the inventory to add
+     */
+    @Override
+    public void addInventory(Inventory inventory) {
+        synchronized (lock) {
+            if (inventory.getId() == null || inventories.containsKey(inventory.getId())) {
+                inventory.setId(UUID.randomUUID().toString());
+            }
+
+            inventories.put(inventory.getId(), inventory);
+            journal.putInventory(inventory);
+            inventory.setListener(journal);
+        }
+    }
+
+    @Override
+    public void removeInventory(Inventory inventory) {
+        synchronized (lock) {
+            if (inventories.get(inventory.getId()) != inventory) {
+                return;
+            }
+
+            inventories.remove(inventory.getId());
+            inventory.setListener(null);
+            journal.removeInventory(inventory);
+        }
+    }
+
+    /**
+     * @return the number of changes recorded since the repository was opened
+     */
+    public long getRecordedChanges() {
+        return journal.getRecords();
+    }
+
+    /**
+     * @return the number of times the journal has been forced to the disk. With group commit, this is a lot less than
+     * the number of changes.
+     */
+    public long getJournalForces() {
+        return journal.getForces();
+    }
+
+    /**
+     * @return the number of checkpoints since the repository was opened
+     */
+    public long getCheckpoints() {
+        return checkpoints;
+    }
+
+    /**
+     * Writes a checkpoint, so the journal doesn't have to be replayed the next time, and closes the journal.
+     * If the checkpoint fails, the last changes are still written to the journal.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        checkpoint();
+
+        for (Inventory inventory : getInventories()) {
+            inventory.setListener(null);
+        }
+        try {
+            journal.close(true);
+        } catch (IOException e) {
+            System.out.println("Something went wrong while saving...");
+        }
+    }
+}
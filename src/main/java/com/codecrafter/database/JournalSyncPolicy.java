@@ -0,0 +1,25 @@
+package com.codecrafter.database;
+
+/**
+ * Defines when the changes in the journal of a JournalRepository are forced to the disk.
+ * Changes are always written together in groups, so a single write and force covers every change since the last one.
+ */
+public enum JournalSyncPolicy {
+    /**
+     * Every change is written and forced to the disk before the method that made it returns.
+     * No change is ever lost, but every change waits for the disk.
+     */
+    EveryChange,
+
+    /**
+     * Changes are written and forced together when the repository is saved, and at least once every commit interval.
+     * Only the changes since the last commit can be lost in a crash.
+     */
+    GroupCommit,
+
+    /**
+     * Changes are written like GroupCommit, but only forced to the disk at checkpoints.
+     * A crash of the app loses nothing that was written, but a crash of the whole system can.
+     */
+    NoForce,
+}
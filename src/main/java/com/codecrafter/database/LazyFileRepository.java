@@ -0,0 +1,719 @@
+package com.codecrafter.database;
+
+import com.codecrafter.exceptions.MalformedFileException;
+import com.codecrafter.inventory.Inventory;
+import com.codecrafter.inventory.InventoryFormat;
+import com.codecrafter.inventory.InventoryJsonCodec;
+import com.codecrafter.inventory.JsonMappers;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * An implementation of InventorySystemRepository that uses the same files as FileRepository, but only loads inventories
+ * when they're used. At startup only an index is read, with the id, name and position in the file of every inventory.
+ * Loaded inventories are kept in a cache of limited size, and the least recently used one is dropped when it's full.
+ * Inventories with unsaved changes are never dropped, so the cache can grow past its size until the next save.
+ * A dropped inventory that's still used somewhere is given out again instead of being loaded a second time,
+ * so there's never more than one instance of the same inventory.
+ * Only JSON files can be used, not the binary format.
+ */
+public class LazyFileRepository implements InventorySystemRepository {
+    /**
+     * The change log is never compacted before it reaches this size, so small files don't get rewritten all the time
+     */
+    private static final long MIN_COMPACT_SIZE = 64 * 1024;
+    /**
+     * Written before the inventories, when the file is rewritten. Gives the same json as FileRepository writes.
+     */
+    private static final byte[] FILE_START = "{\"inventories\":[".getBytes(StandardCharsets.UTF_8);
+    /**
+     * Written after the inventories, when the file is rewritten
+     */
+    private static final byte[] FILE_END = "]}".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Which file the saved form of an inventory is in
+     */
+    private enum Source {
+        DataFile,
+        ChangeLog,
+        /**
+         * The inventory was added, but hasn't been saved yet
+         */
+        None,
+    }
+
+    /**
+     * An inventory in the index
+     * @param id the id of the inventory
+     * @param name the name of the inventory when it was last saved
+     * @param source which file the inventory is in
+     * @param offset the byte offset of the inventory's json object in the file
+     * @param length the length of the json object in bytes
+     * @param hasSavedId false if the saved inventory has no id, e.g. in files written before inventories had ids
+     */
+    private record IndexEntry(String id, String name, Source source, long offset, int length, boolean hasSavedId) { }
+
+    /**
+     * An inventory that was dropped from the cache. Only weakly referenced, so it's gone once nothing else uses it.
+     */
+    private static class DroppedInventory extends WeakReference<Inventory> {
+        /**
+         * The id of the inventory
+         */
+        private final String id;
+        /**
+         * The version the inventory had when it was last saved
+         */
+        private final long savedVersion;
+
+        /**
+         * @param inventory the dropped inventory
+         * @param savedVersion the version the inventory had when it was last saved
+         * @param queue where the reference is put once the inventory is gone
+         */
+        DroppedInventory(Inventory inventory, long savedVersion, ReferenceQueue<Inventory> queue) {
+            super(inventory, queue);
+            this.id = inventory.getId();
+            this.savedVersion = savedVersion;
+        }
+    }
+
+    /**
+     * The filename or path to the file
+     */
+    private final String fileName;
+    /**
+     * The file that the index points into. This is the file itself, unless it was broken and the backup was used instead.
+     */
+    private Path dataPath;
+    /**
+     * The changes that have been saved since the file was last rewritten
+     */
+    private final InventoryChangeLog changeLog;
+    /**
+     * Every inventory by its id, in the order they are in the file
+     */
+    private final Map<String, IndexEntry> index = new LinkedHashMap<>();
+    /**
+     * The most inventories that are kept loaded at once
+     */
+    private final int cacheCapacity;
+    /**
+     * The loaded inventories by their id, with the least recently used first
+     */
+    private final LinkedHashMap<String, Inventory> cache;
+    /**
+     * Inventories that were dropped from the cache by their id, so the same instance is given out if it's still used
+     */
+    private final Map<String, DroppedInventory> dropped = new HashMap<>();
+    /**
+     * Gets the dropped inventories that are gone, so they can be removed from dropped
+     */
+    private final ReferenceQueue<Inventory> droppedQueue = new ReferenceQueue<>();
+    /**
+     * The version every loaded inventory had when it was last saved or loaded. Inventories that aren't in here have never been saved.
+     */
+    private final Map<Inventory, Long> savedVersions = new IdentityHashMap<>();
+    /**
+     * Ids of inventories that have been removed since the last save
+     */
+    private final Set<String> removedIds = new LinkedHashSet<>();
+    /**
+     * Set when the file has to be rewritten on the next save, instead of only appending the changes
+     */
+    private boolean needsCompaction;
+
+    /**
+     * The number of times an inventory was asked for and already loaded
+     */
+    private long cacheHits;
+    /**
+     * The number of times an inventory was asked for and had to be loaded
+     */
+    private long cacheMisses;
+    /**
+     * The number of inventories that have been dropped from the cache
+     */
+    private long cacheEvictions;
+
+    /**
+     * @param fileName the filename of the file to use
+     * @param cacheCapacity the most inventories to keep loaded at once
+     * @throws MalformedFileException if the file is formatted incorrectly, and there's no backup that can be read instead.
+     * Only the structure of the file is checked here. An inventory that's broken inside is only found when it's loaded.
+     */
+    public LazyFileRepository(String fileName, int cacheCapacity) throws MalformedFileException {
+        if (cacheCapacity < 1) {
+            throw new IllegalArgumentException("The cache must hold at least one inventory");
+        }
+
+        this.fileName = fileName;
+        this.cacheCapacity = cacheCapacity;
+        this.changeLog = new InventoryChangeLog(new File(fileName + ".log"));
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Inventory> eldest) {
+                return size() > LazyFileRepository.this.cacheCapacity && evict(eldest.getValue());
+            }
+        };
+
+        File file = new File(fileName);
+        // A temp file is only left if a rewrite was interrupted, and then the file it should have replaced is still intact
+        new File(fileName + AtomicFile.TEMP_SUFFIX).delete();
+
+        // The index points to byte ranges of JSON, so binary files can't be loaded one inventory at a time
+        if (isBinary(file)) {
+            throw new IllegalArgumentException(fileName + " is in the binary format, which can't be loaded lazily");
+        }
+
+        dataPath = file.toPath();
+        try {
+            indexDataFile(file);
+        } catch (IOException e) {
+            recoverFromBackup(file);
+        }
+
+        try {
+            indexChangeLog();
+        } catch (IOException e) {
+            throw new MalformedFileException();
+        }
+    }
+
+    /**
+     * @param file a data file, which may not exist
+     * @return true if the file is in the binary format
+     * @throws MalformedFileException if the file couldn't be read
+     */
+    private static boolean isBinary(File file) throws MalformedFileException {
+        try {
+            return file.length() > 0 && InventoryFormat.detect(file) == InventoryFormat.Binary;
+        } catch (IOException e) {
+            throw new MalformedFileException();
+        }
+    }
+
+    /**
+     * Reads the position of every inventory in a data file, without reading the inventories themselves
+     * @param file the file to read, which is created if it doesn't exist
+     * @throws IOException if the file couldn't be read or is formatted incorrectly
+     */
+    private void indexDataFile(File file) throws IOException {
+        index.clear();
+
+        // A new file stays empty until it's compacted, as the changes go to the change log
+        if (file.createNewFile() || file.length() == 0) {
+            return;
+        }
+
+        try (JsonParser parser = JsonMappers.factory().createParser(file)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected an object in " + file);
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("inventories".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        IndexEntry entry = indexInventory(parser, Source.DataFile);
+                        index.put(entry.id(), entry);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the id and name of the inventory the parser is at, and skips everything else in it
+     * @param parser a parser at the start of an inventory object
+     * @param source the file the parser reads
+     * @return the index entry of the inventory
+     * @throws IOException if the inventory is formatted incorrectly
+     */
+    private IndexEntry indexInventory(JsonParser parser, Source source) throws IOException {
+        long start = parser.currentTokenLocation().getByteOffset();
+        String id = null;
+        String name = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "id" -> id = parser.getValueAsString();
+                case "name" -> name = parser.getValueAsString();
+                default -> parser.skipChildren();
+            }
+        }
+        long end = parser.currentTokenLocation().getByteOffset() + 1;
+
+        boolean hasSavedId = id != null;
+        if (!hasSavedId) {
+            // Files written before inventories had ids are rewritten, so changes can refer to the ids
+            id = UUID.randomUUID().toString();
+            needsCompaction = true;
+        }
+
+        return new IndexEntry(id, name, source, start, (int) (end - start), hasSavedId);
+    }
+
+    /**
+     * Applies the change log to the index. A broken last line, e.g. from a crash while appending, is cut off.
+     * @throws IOException if the log couldn't be read, or a line other than the last is broken
+     */
+    private void indexChangeLog() throws IOException {
+        File file = changeLog.getFile();
+        if (!file.exists()) {
+            return;
+        }
+
+        // The end of the last record that was read completely, including its line break
+        long goodEnd = 0;
+        try (JsonParser parser = JsonMappers.factory().createParser(file)) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token != JsonToken.START_OBJECT) {
+                    throw new IOException("Expected an object in " + file);
+                }
+
+                IndexEntry put = null;
+                String remove = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    JsonToken value = parser.nextToken();
+                    if ("put".equals(field) && value == JsonToken.START_OBJECT) {
+                        put = indexInventory(parser, Source.ChangeLog);
+                    } else if ("remove".equals(field)) {
+                        remove = parser.getValueAsString();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+
+                if (put != null) {
+                    index.put(put.id(), put);
+                } else if (remove != null) {
+                    index.remove(remove);
+                }
+                goodEnd = parser.currentTokenLocation().getByteOffset() + 2;
+            }
+        } catch (IOException e) {
+            if (containsLineBreak(file.toPath(), goodEnd)) {
+                throw e;
+            }
+            changeLog.truncate(goodEnd);
+        }
+    }
+
+    /**
+     * @param path the file to look in
+     * @param from the byte offset to start looking from
+     * @return true if there's a line break anywhere after the offset
+     * @throws IOException if the file couldn't be read
+     */
+    private static boolean containsLineBreak(Path path, long from) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            in.skipNBytes(from);
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b == '\n') {
+                    return true;
+                }
+            }
+            return false;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Indexes the backup, when the file itself can't be read. The broken file is moved away, so it doesn't replace the backup
+     * on the next save, and the file is rewritten on the next save.
+     * @param file the file that couldn't be read
+     * @throws MalformedFileException if there's no backup, or it can't be read either
+     */
+    private void recoverFromBackup(File file) throws MalformedFileException {
+        File backup = new File(fileName + AtomicFile.BACKUP_SUFFIX);
+        if (!backup.isFile()) {
+            throw new MalformedFileException();
+        }
+
+        try {
+            indexDataFile(backup);
+            Files.move(file.toPath(), Path.of(fileName + AtomicFile.CORRUPT_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new MalformedFileException();
+        }
+
+        dataPath = backup.toPath();
+        needsCompaction = true;
+        System.out.println("Data file is corrupted, so the last backup was loaded instead");
+    }
+
+    /**
+     * Gives every inventory, which loads all of them. Use getInventoryNames() and getInventory() to only load some.
+     * Only the most recently used inventories stay in the cache, the rest are only kept as long as the list is used.
+     * @return a list of all inventories that could be loaded. An inventory that can't be loaded is left out.
+     */
+    @Override
+    public List<Inventory> getInventories() {
+        List<Inventory> inventories = new ArrayList<>(index.size());
+        for (String id : new ArrayList<>(index.keySet())) {
+            Inventory inventory = getInventory(id);
+            if (inventory != null) {
+                inventories.add(inventory);
+            }
+        }
+        return inventories;
+    }
+
+    /**
+     * Gives the names of every inventory, without loading them
+     * @return the names, in the same order as getInventories()
+     */
+    public List<String> getInventoryNames() {
+        // Copying the cache doesn't count as using the inventories
+        Map<String, Inventory> loaded = new HashMap<>(cache);
+        List<String> names = new ArrayList<>(index.size());
+        for (IndexEntry entry : index.values()) {
+            Inventory inventory = loaded.get(entry.id());
+            names.add(inventory != null ? inventory.getName() : entry.name());
+        }
+        return names;
+    }
+
+    /**
+     * Gets a single inventory, loading it if it isn't loaded yet
+     * @param id the id of the inventory
+     * @return the inventory, or null if there's no inventory with the id, or it couldn't be loaded
+     */
+    public Inventory getInventory(String id) {
+        Inventory inventory = cache.get(id);
+        if (inventory != null) {
+            cacheHits++;
+            return inventory;
+        }
+
+        IndexEntry entry = index.get(id);
+        if (entry == null) {
+            return null;
+        }
+
+        // An inventory that's still used somewhere is given out again, so changes made to it aren't lost
+        inventory = takeDropped(id);
+        if (inventory != null) {
+            cacheHits++;
+            cache.put(id, inventory);
+            return inventory;
+        }
+
+        cacheMisses++;
+        try {
+            inventory = load(entry);
+        } catch (IOException e) {
+            System.out.println("Something went wrong while loading an inventory...");
+            return null;
+        }
+
+        savedVersions.put(inventory, inventory.getVersion());
+        cache.put(id, inventory);
+        return inventory;
+    }
+
+    /**
+     * Reads an inventory from its position in the files
+     * @param entry the index entry of the inventory
+     * @return the inventory
+     * @throws IOException if the inventory couldn't be read
+     */
+    private Inventory load(IndexEntry entry) throws IOException {
+        Inventory inventory = InventoryJsonCodec.read(readBytes(entry));
+        if (!entry.hasSavedId()) {
+            inventory.setId(entry.id());
+        }
+        return inventory;
+    }
+
+    /**
+     * Reads the saved json of an inventory
+     * @param entry the index entry of the inventory
+     * @return the json of the inventory
+     * @throws IOException if the json couldn't be read
+     */
+    private byte[] readBytes(IndexEntry entry) throws IOException {
+        Path path = switch (entry.source()) {
+            case DataFile -> dataPath;
+            case ChangeLog -> changeLog.getFile().toPath();
+            case None -> throw new IOException("The inventory " + entry.id() + " has never been saved");
+        };
+
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length());
+        try (FileChannel channel = FileChannel.open(path)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, entry.offset() + buffer.position()) < 0) {
+                    throw new EOFException("The inventory " + entry.id() + " is cut off in " + path);
+                }
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Called when an inventory is dropped from the cache
+     * @param inventory the inventory to drop
+     * @return false if the inventory has unsaved changes, which keeps it in the cache until it's saved
+     */
+    private boolean evict(Inventory inventory) {
+        Long savedVersion = savedVersions.get(inventory);
+        if (savedVersion == null || savedVersion != inventory.getVersion()) {
+            return false;
+        }
+
+        purgeDropped();
+        dropped.put(inventory.getId(), new DroppedInventory(inventory, savedVersion, droppedQueue));
+        savedVersions.remove(inventory);
+        cacheEvictions++;
+        return true;
+    }
+
+    /**
+     * Drops the least recently used inventories without unsaved changes, until the cache is back at its size
+     */
+    private void trimCache() {
+        var entries = cache.values().iterator();
+        while (cache.size() > cacheCapacity && entries.hasNext()) {
+            if (evict(entries.next())) {
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * Takes a dropped inventory back, if it's still used somewhere
+     * @param id the id of the inventory
+     * @return the dropped inventory, or null if it's gone or wasn't dropped
+     */
+    private Inventory takeDropped(String id) {
+        purgeDropped();
+        DroppedInventory reference = dropped.remove(id);
+        Inventory inventory = reference == null ? null : reference.get();
+        if (inventory != null) {
+            savedVersions.put(inventory, reference.savedVersion);
+        }
+        return inventory;
+    }
+
+    /**
+     * Forgets the dropped inventories that are gone
+     */
+    private void purgeDropped() {
+        Reference<? extends Inventory> reference;
+        while ((reference = droppedQueue.poll()) != null) {
+            dropped.remove(((DroppedInventory) reference).id, reference);
+        }
+    }
+
+    @Override
+    public Inventory newInventory(String name, int unlockedSlots) {
+        var inventory = new Inventory(name, unlockedSlots);
+        addInventory(inventory);
+
+        save();
+
+        return inventory;
+    }
+
+    /**
+     * Writes all loaded inventories that changed since the last save to the disk
+     */
+    @Override
+    public void save() {
+        // Dropped inventories that were changed since are taken back, so their changes are saved
+        purgeDropped();
+        for (DroppedInventory reference : new ArrayList<>(dropped.values())) {
+            Inventory inventory = reference.get();
+            if (inventory != null && inventory.getVersion() != reference.savedVersion) {
+                cache.put(reference.id, takeDropped(reference.id));
+            }
+        }
+
+        // The versions are read before writing, so a change made while writing is still seen as unsaved
+        Map<Inventory, Long> changed = new IdentityHashMap<>();
+        for (Inventory inventory : cache.values()) {
+            Long savedVersion = savedVersions.get(inventory);
+            if (savedVersion == null || savedVersion != inventory.getVersion()) {
+                changed.put(inventory, inventory.getVersion());
+            }
+        }
+
+        if (changed.isEmpty() && removedIds.isEmpty()) {
+            return;
+        }
+
+        try {
+            if (needsCompaction) {
+                compact();
+                return;
+            }
+
+            appendToLog(changed);
+
+            if (changeLog.size() > Math.max(Files.size(dataPath), MIN_COMPACT_SIZE)) {
+                compact();
+            }
+        } catch (IOException e) {
+            System.out.println("Something went wrong while saving...");
+        } finally {
+            // Inventories that were kept because of unsaved changes can be dropped now
+            trimCache();
+        }
+    }
+
+    /**
+     * Appends changed inventories and removals to the change log, and points the index to the appended inventories
+     * @param changed the inventories to append, and the version they're saved in
+     * @throws IOException if the log couldn't be written
+     */
+    private void appendToLog(Map<Inventory, Long> changed) throws IOException {
+        var positions = changeLog.append(changed.keySet(), removedIds);
+
+        positions.forEach((inventory, position) -> index.put(inventory.getId(), new IndexEntry(inventory.getId(),
+                inventory.getName(), Source.ChangeLog, position.offset(), position.length(), true)));
+        savedVersions.putAll(changed);
+        removedIds.clear();
+    }
+
+    /**
+     * Rewrites the whole file with every inventory, and clears the change log.
+     * Inventories that aren't loaded are copied as they are, without reading them.
+     * @throws IOException if the file couldn't be written
+     */
+    void compact() throws IOException {
+        // Copying the cache doesn't count as using the inventories
+        Map<String, Inventory> loaded = new HashMap<>(cache);
+        Map<Inventory, Long> versions = new IdentityHashMap<>();
+        Map<String, IndexEntry> compacted = new LinkedHashMap<>();
+
+        var buffer = new ByteArrayOutputStream();
+        buffer.write(FILE_START);
+        for (IndexEntry entry : index.values()) {
+            if (!compacted.isEmpty()) {
+                buffer.write(',');
+            }
+
+            Inventory inventory = loaded.get(entry.id());
+            byte[] json;
+            String name = entry.name();
+            if (inventory != null) {
+                versions.put(inventory, inventory.getVersion());
+                json = InventoryJsonCodec.toBytes(inventory);
+                name = inventory.getName();
+            } else if (entry.hasSavedId()) {
+                json = readBytes(entry);
+            } else {
+                json = InventoryJsonCodec.toBytes(load(entry));
+            }
+
+            compacted.put(entry.id(), new IndexEntry(entry.id(), name, Source.DataFile, buffer.size(), json.length, true));
+            buffer.write(json);
+        }
+        buffer.write(FILE_END);
+
+        AtomicFile.write(fileName, buffer.toByteArray());
+
+        // If this is interrupted, replaying the log on top of the new file just writes the same changes again
+        changeLog.clear();
+
+        dataPath = Path.of(fileName);
+        index.clear();
+        index.putAll(compacted);
+        savedVersions.putAll(versions);
+        removedIds.clear();
+        needsCompaction = false;
+    }
+
+    /**
+     * Adds an inventory. If the inventory has no id, or an inventory with the same id already exists,
+     * e.g. when the same file is imported twice, the added inventory gets a new id.
+     * @param inventory the inventory to add
+     */
+    @Override
+    public void addInventory(Inventory inventory) {
+        if (inventory.getId() == null || index.containsKey(inventory.getId())) {
+            inventory.setId(UUID.randomUUID().toString());
+        }
+
+        // Removals are written after the changes, so a removal of the same id would remove this inventory again
+        removedIds.remove(inventory.getId());
+        index.put(inventory.getId(), new IndexEntry(inventory.getId(), inventory.getName(), Source.None, 0, 0, true));
+        cache.put(inventory.getId(), inventory);
+    }
+
+    @Override
+    public void removeInventory(Inventory inventory) {
+        if (!index.containsKey(inventory.getId())) {
+            return;
+        }
+
+        index.remove(inventory.getId());
+        cache.remove(inventory.getId());
+        dropped.remove(inventory.getId());
+        savedVersions.remove(inventory);
+        removedIds.add(inventory.getId());
+    }
+
+    /**
+     * @return the number of times an inventory was asked for and already loaded
+     */
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * @return the number of times an inventory was asked for and had to be loaded
+     */
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     * @return the number of inventories that have been dropped from the cache
+     */
+    public long getCacheEvictions() {
+        return cacheEvictions;
+    }
+
+    /**
+     * @return the number of inventories that are loaded right now
+     */
+    public int getLoadedCount() {
+        return cache.size();
+    }
+}
@@ -0,0 +1,112 @@
+package com.codecrafter.database;
+
+import com.codecrafter.inventory.Inventory;
+import com.codecrafter.inventory.InventoryRecordCodec;
+import com.codecrafter.inventory.Item;
+
+/**
+ * A read-only view of the saved record of an inventory in a MappedRepository.
+ * The slots are read straight from the mapped file, so reading counts and item ids doesn't create any objects.
+ * Only getItem() and load() give objects, and the items are shared, so only load() creates anything new.
+ */
+public class MappedInventoryView {
+    /**
+     * The repository with the record
+     */
+    private final MappedRepository repository;
+    /**
+     * The id of the inventory
+     */
+    private final String id;
+
+    /**
+     * @param repository the repository with the record
+     * @param id the id of the inventory
+     */
+    MappedInventoryView(MappedRepository repository, String id) {
+        this.repository = repository;
+        this.id = id;
+    }
+
+    /**
+     * The record is looked up every time, since it can move to another buffer when the file grows
+     * @return where the record starts in the buffer
+     * @throws IllegalStateException if the inventory has been removed
+     */
+    private int offset() {
+        int record = repository.recordOf(id);
+        if (record < 0) {
+            throw new IllegalStateException("The inventory " + id + " has been removed");
+        }
+        return MappedRepository.dataOffset(record);
+    }
+
+    /**
+     * @return the id of the inventory
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the name of the inventory, as it was saved
+     */
+    public String getName() {
+        return InventoryRecordCodec.getName(repository.buffer(), offset());
+    }
+
+    /**
+     * @return the number of unlocked slots
+     */
+    public int getUnlockedSlots() {
+        return InventoryRecordCodec.getUnlockedSlots(repository.buffer(), offset());
+    }
+
+    /**
+     * @param slot the index of the slot
+     * @return true if the slot has no items
+     */
+    public boolean isEmpty(int slot) {
+        return getCount(slot) <= 0;
+    }
+
+    /**
+     * @param slot the index of the slot
+     * @return the id of the item in the slot. Only meaningful if the slot isn't empty.
+     */
+    public int getItemId(int slot) {
+        return InventoryRecordCodec.getItemId(repository.buffer(), offset(), slot);
+    }
+
+    /**
+     * @param slot the index of the slot
+     * @return the number of items in the slot
+     */
+    public int getCount(int slot) {
+        return InventoryRecordCodec.getCount(repository.buffer(), offset(), slot);
+    }
+
+    /**
+     * @param slot the index of the slot
+     * @return the durability of the stack in the slot
+     */
+    public int getDurability(int slot) {
+        return InventoryRecordCodec.getDurability(repository.buffer(), offset(), slot);
+    }
+
+    /**
+     * @param slot the index of the slot
+     * @return the item in the slot, or null if it's empty or the item isn't known
+     */
+    public Item getItem(int slot) {
+        return isEmpty(slot) ? null : repository.findItem(getItemId(slot));
+    }
+
+    /**
+     * Loads the whole inventory through the repository, so changes to it are saved with the repository
+     * @return the inventory, or null if it couldn't be loaded
+     */
+    public Inventory load() {
+        return repository.getInventory(id);
+    }
+}
@@ -0,0 +1,574 @@
+package com.codecrafter.database;
+
+import com.codecrafter.exceptions.MalformedFileException;
+import com.codecrafter.inventory.Inventory;
+import com.codecrafter.inventory.InventoryRecordCodec;
+import com.codecrafter.inventory.Item;
+import com.codecrafter.inventory.JsonMappers;
+import com.codecrafter.items.ItemManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * An implementation of InventorySystemRepository backed by a memory-mapped file of fixed-size records, one per inventory.
+ * Loading or saving an inventory only touches the pages of its own record, so the number of inventories
+ * doesn't affect how long that takes. Records of removed inventories are reused, and the file grows when it's full.
+ * A changed inventory is written to a free record, and its old record is only freed once the new one is on the disk.
+ * Every record has a checksum, so a record that was only partly written by a crash is ignored, and the old one is used.
+ * <p>
+ * Slots only keep the id of their item, so the items that are used are also kept in a small JSON file next to
+ * the data file. The ItemManager always comes first, and the file is only used for items it doesn't know.
+ * Use {@link #view(String)} to read the slots of an inventory without loading it.
+ */
+public class MappedRepository implements InventorySystemRepository, AutoCloseable {
+    /**
+     * The first bytes of the file
+     */
+    private static final int MAGIC = 0x47494D4D; // "GIMM"
+    /**
+     * The version of the file layout
+     */
+    private static final int VERSION = 2;
+    /**
+     * The version before records had a generation and a checksum. Files in it are upgraded when they're opened.
+     */
+    private static final int VERSION_WITHOUT_CHECKSUMS = 1;
+    /**
+     * The size of the header at the start of the file. Records start after it.
+     */
+    private static final int HEADER_SIZE = 64;
+    /**
+     * Where the header fields are: magic, version, record size, number of records in use, first free record,
+     * and the generation of the next record that's written
+     */
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int RECORD_SIZE_OFFSET = 8;
+    private static final int RECORD_COUNT_OFFSET = 12;
+    private static final int FREE_HEAD_OFFSET = 16;
+    private static final int GENERATION_OFFSET = 20;
+
+    /**
+     * Every record starts with its generation, which is 0 if it's free. After that comes the next free record
+     * if it's free, or the checksum of the record if it's used.
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int FREE = 0;
+    /**
+     * The size of a record, including its header
+     */
+    static final int RECORD_SIZE = RECORD_HEADER_SIZE + InventoryRecordCodec.RECORD_SIZE;
+    /**
+     * The number of records the file has room for when it's created
+     */
+    private static final int INITIAL_RECORDS = 16;
+
+    /**
+     * The file with the records
+     */
+    private final RandomAccessFile file;
+    /**
+     * The channel of the file, used to map it
+     */
+    private final FileChannel channel;
+    /**
+     * The whole file, mapped into memory. It's mapped again when the file grows.
+     */
+    private MappedByteBuffer buffer;
+    /**
+     * The number of records the file has room for
+     */
+    private int capacity;
+    /**
+     * The number of records that have ever been used. Records after this have never been written.
+     */
+    private int recordCount;
+    /**
+     * The first free record, or -1 if there is none. Every free record points to the next.
+     */
+    private int freeHead;
+    /**
+     * The generation of the next record that's written. When a crash leaves two records of the same inventory,
+     * the one with the higher generation is newer.
+     */
+    private int generation;
+
+    /**
+     * The record of every inventory, by id
+     */
+    private final Map<String, Integer> records = new LinkedHashMap<>();
+    /**
+     * The inventories that have been loaded or added, by id
+     */
+    private final Map<String, Inventory> loaded = new HashMap<>();
+    /**
+     * The version every loaded inventory had when it was last saved or loaded. Inventories that aren't in here have never been saved.
+     */
+    private final Map<Inventory, Long> savedVersions = new IdentityHashMap<>();
+    /**
+     * Records of inventories that have been removed since the last save
+     */
+    private final List<Integer> removedRecords = new ArrayList<>();
+
+    /**
+     * The file with the items used in the slots
+     */
+    private final String itemsFileName;
+    /**
+     * The items in the items file, by id
+     */
+    private final Map<Integer, Item> items = new HashMap<>();
+
+    /**
+     * Opens the file, or creates it if it doesn't exist
+     * @param fileName the filename or path of the file
+     * @throws MalformedFileException if the file isn't a record file, or was written with another record size
+     */
+    public MappedRepository(String fileName) throws MalformedFileException {
+        this.itemsFileName = fileName + ".items";
+        try {
+            file = new RandomAccessFile(fileName, "rw");
+            channel = file.getChannel();
+
+            if (file.length() == 0) {
+                createFile();
+            } else {
+                openFile();
+            }
+            readItems();
+        } catch (IOException e) {
+            throw new MalformedFileException();
+        }
+    }
+
+    /**
+     * Writes the header of a new file, and makes room for the first records
+     * @throws IOException if the file couldn't be written
+     */
+    private void createFile() throws IOException {
+        map(INITIAL_RECORDS);
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(RECORD_SIZE_OFFSET, RECORD_SIZE);
+        recordCount = 0;
+        freeHead = -1;
+        generation = 1;
+        writeHeader();
+        buffer.force();
+    }
+
+    /**
+     * Checks the header of an existing file, and finds the record of every inventory.
+     * Records that were only partly written are freed, and so are old records that a crash kept from being freed.
+     * @throws IOException if the file isn't a record file
+     */
+    private void openFile() throws IOException {
+        if (file.length() < HEADER_SIZE) {
+            throw new IOException("The file is too small to be a record file");
+        }
+        map((int) ((file.length() - HEADER_SIZE) / RECORD_SIZE));
+
+        int version = buffer.getInt(VERSION_OFFSET);
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC || (version != VERSION && version != VERSION_WITHOUT_CHECKSUMS)
+                || buffer.getInt(RECORD_SIZE_OFFSET) != RECORD_SIZE) {
+            throw new IOException("Not a record file of this version");
+        }
+        recordCount = buffer.getInt(RECORD_COUNT_OFFSET);
+        if (recordCount < 0 || recordCount > capacity) {
+            throw new IOException("The header of the record file is broken");
+        }
+        generation = version == VERSION_WITHOUT_CHECKSUMS ? 1 : buffer.getInt(GENERATION_OFFSET);
+
+        // Every record is checked, not just the ones the header counts, in case a crash kept the header from being updated.
+        // Files without checksums can't tell a written record from garbage, so only the counted records are used there.
+        int scanned = version == VERSION_WITHOUT_CHECKSUMS ? recordCount : capacity;
+        List<Integer> free = new ArrayList<>();
+        for (int record = 0; record < scanned; record++) {
+            int offset = recordOffset(record);
+            int recordGeneration = buffer.getInt(offset);
+            if (recordGeneration == FREE) {
+                free.add(record);
+                continue;
+            }
+
+            if (version == VERSION_WITHOUT_CHECKSUMS) {
+                buffer.putInt(offset + 4, checksum(record, recordGeneration));
+            } else if (buffer.getInt(offset + 4) != checksum(record, recordGeneration)) {
+                free.add(record);
+                continue;
+            }
+
+            String id = InventoryRecordCodec.getId(buffer, dataOffset(record));
+            Integer other = records.get(id);
+            if (other != null && buffer.getInt(recordOffset(other)) > recordGeneration) {
+                free.add(record);
+                continue;
+            }
+            if (other != null) {
+                free.add(other);
+            }
+            records.put(id, record);
+            recordCount = Math.max(recordCount, record + 1);
+            generation = Math.max(generation, recordGeneration + 1);
+        }
+
+        // The free list is built again, since the one in the file may not include the records freed above.
+        // Records after the last one in use have never been written, and are used in order instead.
+        free.removeIf(record -> record >= recordCount);
+        freeHead = -1;
+        for (int i = free.size() - 1; i >= 0; i--) {
+            int offset = recordOffset(free.get(i));
+            buffer.putInt(offset, FREE);
+            buffer.putInt(offset + 4, freeHead);
+            freeHead = free.get(i);
+        }
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        writeHeader();
+        buffer.force();
+    }
+
+    /**
+     * Calculates the checksum of a used record, from its generation and its data
+     * @param record the record
+     * @param recordGeneration the generation of the record
+     * @return the checksum
+     */
+    private int checksum(int record, int recordGeneration) {
+        var crc = new CRC32();
+        crc.update(ByteBuffer.allocate(4).putInt(0, recordGeneration));
+        crc.update(buffer.slice(dataOffset(record), InventoryRecordCodec.RECORD_SIZE));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads the items used in the slots
+     * @throws IOException if the items file couldn't be read
+     */
+    private void readItems() throws IOException {
+        File itemsFile = new File(itemsFileName);
+        if (!itemsFile.isFile() || itemsFile.length() == 0) {
+            return;
+        }
+
+        Item[] saved = JsonMappers.readerFor(Item[].class).readValue(itemsFile);
+        for (Item item : saved) {
+            items.put(item.getId(), item);
+        }
+    }
+
+    /**
+     * Maps the file, growing it so it has room for the given number of records
+     * @param records the number of records the file should have room for
+     * @throws IOException if the file couldn't be grown or mapped
+     */
+    private void map(int records) throws IOException {
+        long size = HEADER_SIZE + (long) records * RECORD_SIZE;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("The record file can't grow any larger");
+        }
+
+        if (file.length() < size) {
+            file.setLength(size);
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        capacity = records;
+    }
+
+    /**
+     * @return the offset of a record in the file
+     */
+    static int recordOffset(int record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    /**
+     * @return the offset of the inventory data in a record, after the record header
+     */
+    static int dataOffset(int record) {
+        return recordOffset(record) + RECORD_HEADER_SIZE;
+    }
+
+    /**
+     * Writes the number of records in use and the first free record to the header
+     */
+    private void writeHeader() {
+        buffer.putInt(RECORD_COUNT_OFFSET, recordCount);
+        buffer.putInt(FREE_HEAD_OFFSET, freeHead);
+        buffer.putInt(GENERATION_OFFSET, generation);
+    }
+
+    /**
+     * Finds a record for a new inventory. A free record is reused if there is one, otherwise the next record that
+     * has never been used is taken, and the file grows if needed.
+     * @return the record to use
+     * @throws IOException if the file couldn't grow
+     */
+    private int allocateRecord() throws IOException {
+        if (freeHead >= 0) {
+            int record = freeHead;
+            freeHead = buffer.getInt(recordOffset(record) + 4);
+            return record;
+        }
+
+        if (recordCount == capacity) {
+            map(Math.max(INITIAL_RECORDS, capacity * 2));
+        }
+
+        // The header is on the disk before the record is written, so the record is never outside the records in use
+        int record = recordCount++;
+        writeHeader();
+        buffer.force(0, HEADER_SIZE);
+        return record;
+    }
+
+    /**
+     * Marks a record as free, and puts it first in the list of free records
+     * @param record the record to free
+     */
+    private void freeRecord(int record) {
+        int offset = recordOffset(record);
+        buffer.putInt(offset, FREE);
+        buffer.putInt(offset + 4, freeHead);
+        freeHead = record;
+        buffer.force(offset, RECORD_HEADER_SIZE);
+    }
+
+    /**
+     * @return the buffer with the whole file. Only valid until the file grows.
+     */
+    MappedByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * @param id the id of an inventory
+     * @return the record of the inventory, or -1 if it has none
+     */
+    int recordOf(String id) {
+        Integer record = records.get(id);
+        return record == null ? -1 : record;
+    }
+
+    /**
+     * Finds an item by its id, first in the ItemManager, so reloaded items are used, and then among the saved items
+     * @param id the id of the item
+     * @return the item, or null if it isn't known
+     */
+    Item findItem(int id) {
+        Item item = ItemManager.getInstance().getItem(id);
+        return item != null ? item : items.get(id);
+    }
+
+    /**
+     * Gives every inventory. The inventories are only loaded when they're taken from the list.
+     * @return a list of all inventories. An inventory that can't be loaded is null.
+     */
+    @Override
+    public List<Inventory> getInventories() {
+        List<String> ids = new ArrayList<>(records.keySet());
+        for (String id : loaded.keySet()) {
+            if (!records.containsKey(id)) {
+                ids.add(id);
+            }
+        }
+
+        return new AbstractList<>() {
+            @Override
+            public Inventory get(int i) {
+                return getInventory(ids.get(i));
+            }
+
+            @Override
+            public int size() {
+                return ids.size();
+            }
+        };
+    }
+
+    /**
+     * Gets a single inventory, loading it from its record if it isn't loaded yet
+     * @param id the id of the inventory
+     * @return the inventory, or null if there's no inventory with the id, or it couldn't be loaded
+     */
+    public Inventory getInventory(String id) {
+        Inventory inventory = loaded.get(id);
+        if (inventory != null) {
+            return inventory;
+        }
+
+        int record = recordOf(id);
+        if (record < 0) {
+            return null;
+        }
+
+        try {
+            inventory = InventoryRecordCodec.read(buffer, dataOffset(record), this::findItem);
+        } catch (IOException e) {
+            System.out.println("Something went wrong while loading an inventory...");
+            return null;
+        }
+
+        loaded.put(id, inventory);
+        savedVersions.put(inventory, inventory.getVersion());
+        return inventory;
+    }
+
+    /**
+     * Gives a view of the saved record of an inventory, to read its slots without loading it.
+     * The view shows the inventory as it was last saved, and is only valid until the inventory is removed.
+     * @param id the id of the inventory
+     * @return a view of the inventory, or null if it has never been saved
+     */
+    public MappedInventoryView view(String id) {
+        return records.containsKey(id) ? new MappedInventoryView(this, id) : null;
+    }
+
+    @Override
+    public Inventory newInventory(String name, int unlockedSlots) {
+        var inventory = new Inventory(name, unlockedSlots);
+        addInventory(inventory);
+
+        save();
+
+        return inventory;
+    }
+
+    /**
+     * Writes every loaded inventory that changed since the last save to a new record, and frees the records of
+     * removed inventories and the old records of the written ones. Only the written records are forced to the disk.
+     */
+    @Override
+    public void save() {
+        // The versions are read before writing, so a change made while writing is still seen as unsaved
+        Map<Inventory, Long> changed = new IdentityHashMap<>();
+        for (Inventory inventory : loaded.values()) {
+            Long savedVersion = savedVersions.get(inventory);
+            if (savedVersion == null || savedVersion != inventory.getVersion()) {
+                changed.put(inventory, inventory.getVersion());
+            }
+        }
+
+        if (changed.isEmpty() && removedRecords.isEmpty()) {
+            return;
+        }
+
+        try {
+            saveItems(changed.keySet());
+
+            for (int record : removedRecords) {
+                freeRecord(record);
+            }
+            removedRecords.clear();
+
+            for (Inventory inventory : changed.keySet()) {
+                // The old record is left as it is until the new one is on the disk, so a crash never loses the inventory
+                int record = allocateRecord();
+                int offset = recordOffset(record);
+                InventoryRecordCodec.write(buffer, dataOffset(record), inventory);
+                buffer.putInt(offset + 4, checksum(record, generation));
+                buffer.putInt(offset, generation++);
+                buffer.force(offset, RECORD_SIZE);
+
+                Integer oldRecord = records.put(inventory.getId(), record);
+                if (oldRecord != null) {
+                    freeRecord(oldRecord);
+                }
+            }
+
+            writeHeader();
+            buffer.force(0, HEADER_SIZE);
+            savedVersions.putAll(changed);
+        } catch (IOException e) {
+            System.out.println("Something went wrong while saving...");
+        }
+    }
+
+    /**
+     * Puts the items in the inventories in the items file, if they aren't in it yet, or have changed since,
+     * e.g. because the items were reloaded
+     * @param inventories the inventories with the items
+     * @throws IOException if the items file couldn't be written
+     */
+    private void saveItems(Iterable<Inventory> inventories) throws IOException {
+        boolean changed = false;
+        for (Inventory inventory : inventories) {
+            // Locked slots are saved as well, so their items have to be known too
+            int slots = inventory.getCapacity();
+            for (int i = 0; i < slots; i++) {
+                Item item = inventory.getItemAt(i);
+                if (item != null && items.get(item.getId()) != item) {
+                    items.put(item.getId(), item);
+                    changed = true;
+                }
+            }
+        }
+
+        if (changed) {
+            Item[] all = items.values().toArray(new Item[0]);
+            Arrays.sort(all, (a, b) -> Integer.compare(a.getId(), b.getId()));
+            AtomicFile.write(itemsFileName, JsonMappers.writerFor(Item[].class).writeValueAsBytes(all));
+        }
+    }
+
+    /**
+     * Adds an inventory. If the inventory has no id, an id that's too long for a record, or an inventory with
+     * the same id already exists, the added inventory gets a new id.
+     * @param inventory the inventory to add
+     */
+    @Override
+    public void addInventory(Inventory inventory) {
+        String id = inventory.getId();
+        if (id == null || !InventoryRecordCodec.fitsId(id) || records.containsKey(id) || loaded.containsKey(id)) {
+            inventory.setId(UUID.randomUUID().toString());
+        }
+
+        loaded.put(inventory.getId(), inventory);
+    }
+
+    @Override
+    public void removeInventory(Inventory inventory) {
+        if (loaded.get(inventory.getId()) != inventory) {
+            return;
+        }
+
+        loaded.remove(inventory.getId());
+        savedVersions.remove(inventory);
+        Integer record = records.remove(inventory.getId());
+        if (record != null) {
+            removedRecords.add(record);
+        }
+    }
+
+    /**
+     * @return the number of records the file has room for
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Forces everything to the disk, and closes the file. Changes that haven't been saved are lost.
+     * @throws IOException if the file couldn't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+        file.close();
+    }
+}
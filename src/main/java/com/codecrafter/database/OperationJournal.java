@@ -0,0 +1,589 @@
+package com.codecrafter.database;
+
+import com.codecrafter.inventory.Inventory;
+import com.codecrafter.inventory.InventoryJsonCodec;
+import com.codecrafter.inventory.InventoryListener;
+import com.codecrafter.inventory.Item;
+import com.codecrafter.items.ItemManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of every single change made to the inventories, kept next to a snapshot of them.
+ * Every change is a small binary record, so writing a change costs the same no matter how large the inventory is.
+ * When the snapshot is read, the journal is replayed on top of it.
+ * <p>
+ * The journal starts with the length and checksum of the snapshot it belongs to. A journal that doesn't match the
+ * snapshot is left over from before the latest checkpoint, and every change in it is already in the snapshot.
+ * Every record has its length and checksum in front, so a record that was cut off by a crash is found and removed.
+ * <pre>
+ * header:  int magic, int version, long snapshot length, long snapshot checksum
+ * record:  int length of the payload, int checksum of the payload, payload
+ * payload: byte type, int inventory number, then the fields of the change
+ * </pre>
+ * Inventories are referred to by a number, and the id behind every number is written once, the first time it's used.
+ */
+class OperationJournal implements InventoryListener {
+    /**
+     * The first bytes of the journal, "GJNL"
+     */
+    private static final int MAGIC = 0x474A4E4C;
+    /**
+     * The version of the journal layout
+     */
+    private static final int VERSION = 1;
+    /**
+     * The size of the header
+     */
+    private static final int HEADER_SIZE = 24;
+    /**
+     * The size of the length and checksum in front of every record
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+    /**
+     * A record is never larger than this, so a broken length isn't trusted
+     */
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The types of records
+     */
+    private static final byte DEFINE_ID = 0;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte CLEAR = 6;
+    private static final byte SWAP = 7;
+    private static final byte RENAME = 9;
+    private static final byte UNLOCK = 10;
+    private static final byte SET_SLOT = 11;
+    private static final byte REORDER = 12;
+
+    /**
+     * The file with the journal
+     */
+    private final File file;
+    /**
+     * The channel records are appended through
+     */
+    private final FileChannel channel;
+    /**
+     * Guards the pending records, since they're written by a background thread
+     */
+    private final Object lock = new Object();
+    /**
+     * Records that haven't been written to the file yet
+     */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    /**
+     * Used to build a single record, before it's added to the pending records
+     */
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    private final DataOutputStream payloadOut = new DataOutputStream(payload);
+    /**
+     * Computes the checksum of every record
+     */
+    private final CRC32 crc = new CRC32();
+    /**
+     * The number of every inventory id that has been written in this journal
+     */
+    private final Map<String, Integer> inventoryNumbers = new HashMap<>();
+    /**
+     * When set, every record is written and forced right away
+     */
+    private final boolean forceEveryChange;
+
+    /**
+     * Set when a record couldn't be written. The changes since the last checkpoint are then only in memory.
+     */
+    private boolean failed;
+    /**
+     * The number of records added since the journal was opened
+     */
+    private long records;
+    /**
+     * The number of times the journal has been forced to the disk
+     */
+    private long forces;
+
+    /**
+     * Opens the journal, creating it if it doesn't exist. Nothing is read or written until replay() or reset().
+     * @param file the file with the journal
+     * @param forceEveryChange true to write and force every record right away
+     * @throws IOException if the file couldn't be opened
+     */
+    OperationJournal(File file, boolean forceEveryChange) throws IOException {
+        this.file = file;
+        this.forceEveryChange = forceEveryChange;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Computes the checksum a journal stores for its snapshot
+     * @param snapshot the content of the snapshot
+     * @return the checksum
+     */
+    static long checksum(byte[] snapshot) {
+        var checksum = new CRC32();
+        checksum.update(snapshot);
+        return checksum.getValue();
+    }
+
+    /**
+     * Applies every change in the journal to the inventories read from the snapshot.
+     * A broken record at the end, e.g. from a crash while writing, is removed along with anything after it.
+     * @param inventories the inventories in the snapshot by id. Inventories are added, replaced and removed as recorded.
+     * @param snapshotLength the length of the snapshot
+     * @param snapshotChecksum the checksum of the snapshot
+     * @return the number of changes that were applied, or -1 if the journal doesn't belong to the snapshot and has to be reset
+     * @throws IOException if the journal couldn't be read, or a change couldn't be applied
+     */
+    long replay(Map<String, Inventory> inventories, long snapshotLength, long snapshotChecksum) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                || buffer.getLong() != snapshotLength || buffer.getLong() != snapshotChecksum) {
+            return -1;
+        }
+
+        Map<Integer, String> ids = new HashMap<>();
+        long applied = 0;
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            long checksum = buffer.getInt() & 0xFFFFFFFFL;
+            if (length <= 0 || length > MAX_RECORD_SIZE || length > buffer.remaining()) {
+                buffer.position(start);
+                break;
+            }
+
+            crc.reset();
+            crc.update(buffer.array(), buffer.position(), length);
+            if (crc.getValue() != checksum) {
+                buffer.position(start);
+                break;
+            }
+
+            ByteBuffer record = buffer.slice(buffer.position(), length);
+            buffer.position(buffer.position() + length);
+            try {
+                apply(record, ids, inventories);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new IOException("Change " + applied + " in " + file + " is broken", e);
+            }
+            applied++;
+        }
+
+        // Anything after the last whole record was cut off by a crash, and new records are appended after it
+        if (buffer.position() < buffer.limit()) {
+            channel.truncate(buffer.position());
+        }
+        channel.position(buffer.position());
+
+        inventoryNumbers.clear();
+        ids.forEach((number, id) -> inventoryNumbers.put(id, number));
+        return applied;
+    }
+
+    /**
+     * Applies a single record
+     * @param record the payload of the record
+     * @param ids the inventory id of every number defined so far
+     * @param inventories the inventories to apply the record to
+     * @throws IOException if the record refers to something that doesn't exist, or can't be applied
+     */
+    private static void apply(ByteBuffer record, Map<Integer, String> ids, Map<String, Inventory> inventories) throws IOException {
+        byte type = record.get();
+        int number = record.getInt();
+
+        if (type == DEFINE_ID) {
+            ids.put(number, getString(record));
+            return;
+        }
+
+        String id = ids.get(number);
+        if (id == null) {
+            throw new IOException("Undefined inventory " + number + " in the journal");
+        }
+
+        switch (type) {
+            case PUT -> {
+                byte[] json = new byte[record.getInt()];
+                record.get(json);
+                inventories.put(id, InventoryJsonCodec.read(json));
+                return;
+            }
+            case REMOVE -> {
+                inventories.remove(id);
+                return;
+            }
+        }
+
+        Inventory inventory = inventories.get(id);
+        if (inventory == null) {
+            throw new IOException("The journal changes the inventory " + id + " which doesn't exist");
+        }
+
+        try {
+            switch (type) {
+                case CLEAR -> inventory.clearSlot(record.getInt());
+                case SWAP -> inventory.swapSlots(record.getInt(), record.getInt());
+                case REORDER -> {
+                    int[] order = new int[record.getInt()];
+                    for (int i = 0; i < order.length; i++) {
+                        order[i] = record.getInt();
+                    }
+                    inventory.restoreOrder(order);
+                }
+                case RENAME -> inventory.setName(getString(record));
+                case UNLOCK -> inventory.setUnlockedSlots(record.getInt());
+                case SET_SLOT -> {
+                    int slot = record.getInt();
+                    boolean hasItem = record.get() != 0;
+                    int itemId = record.getInt();
+                    inventory.restoreSlot(slot, hasItem ? getItem(itemId) : null, record.getInt(), record.getInt());
+                }
+                default -> throw new IOException("Unknown change " + type + " in the journal");
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            // The change worked when it was made, so it only fails here if the journal doesn't match the snapshot
+            throw new IOException("The change couldn't be applied to the inventory " + id, e);
+        }
+    }
+
+    /**
+     * @param id the id of an item
+     * @return the item
+     * @throws IOException if the item isn't known by the ItemManager
+     */
+    private static Item getItem(int id) throws IOException {
+        Item item = ItemManager.getInstance().getItem(id);
+        if (item == null) {
+            throw new IOException("Unknown item " + id + " in the journal");
+        }
+        return item;
+    }
+
+    /**
+     * Reads a string written by putString()
+     */
+    private static String getString(ByteBuffer record) {
+        int length = record.getInt();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a string with its length in front, or -1 if it's null
+     */
+    private void putString(String string) throws IOException {
+        if (string == null) {
+            payloadOut.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        payloadOut.writeInt(bytes.length);
+        payloadOut.write(bytes);
+    }
+
+    /**
+     * Empties the journal, so it belongs to a new snapshot. Done after a checkpoint, once the snapshot is on the disk.
+     * Records that haven't been written yet are dropped, since their changes are in the snapshot.
+     * @param snapshotLength the length of the new snapshot
+     * @param snapshotChecksum the checksum of the new snapshot
+     * @throws IOException if the journal couldn't be written
+     */
+    void reset(long snapshotLength, long snapshotChecksum) throws IOException {
+        synchronized (lock) {
+            pending.reset();
+            inventoryNumbers.clear();
+            failed = false;
+
+            // If this is interrupted, the old header doesn't match the new snapshot, so the journal is ignored
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(snapshotLength).putLong(snapshotChecksum).flip();
+            channel.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            channel.force(false);
+            forces++;
+        }
+    }
+
+    /**
+     * Writes every pending record to the file in one go
+     * @param force true to also force the records to the disk
+     * @throws IOException if the records couldn't be written
+     */
+    void commit(boolean force) throws IOException {
+        synchronized (lock) {
+            if (pending.size() == 0) {
+                return;
+            }
+
+            ByteBuffer records = ByteBuffer.wrap(pending.toByteArray());
+            pending.reset();
+            try {
+                while (records.hasRemaining()) {
+                    channel.write(records);
+                }
+                if (force) {
+                    channel.force(false);
+                    forces++;
+                }
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return true if a record couldn't be written since the last reset, so a checkpoint is needed to save the changes
+     */
+    boolean hasFailed() {
+        synchronized (lock) {
+            return failed;
+        }
+    }
+
+    /**
+     * @return the size of the journal in bytes, including records that haven't been written yet
+     */
+    long size() throws IOException {
+        synchronized (lock) {
+            return channel.size() + pending.size();
+        }
+    }
+
+    /**
+     * @return the number of records added since the journal was opened
+     */
+    long getRecords() {
+        synchronized (lock) {
+            return records;
+        }
+    }
+
+    /**
+     * @return the number of times the journal has been forced to the disk
+     */
+    long getForces() {
+        synchronized (lock) {
+            return forces;
+        }
+    }
+
+    /**
+     * Writes any pending records, and closes the file
+     * @param force true to force the pending records to the disk
+     * @throws IOException if the records couldn't be written
+     */
+    void close(boolean force) throws IOException {
+        try {
+            commit(force);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Records that an inventory was added or replaced, with all of its contents
+     * @param inventory the inventory
+     */
+    void putInventory(Inventory inventory) {
+        try {
+            byte[] json = InventoryJsonCodec.toBytes(inventory);
+            synchronized (lock) {
+                startRecord(PUT, inventory);
+                payloadOut.writeInt(json.length);
+                payloadOut.write(json);
+                endRecord();
+            }
+        } catch (IOException e) {
+            recordFailed();
+        }
+    }
+
+    /**
+     * Records that an inventory was removed
+     * @param inventory the inventory
+     */
+    void removeInventory(Inventory inventory) {
+        synchronized (lock) {
+            try {
+                startRecord(REMOVE, inventory);
+                endRecord();
+            } catch (IOException e) {
+                recordFailed();
+            }
+        }
+    }
+
+    /**
+     * Starts a record about an inventory, defining the number of the inventory first if it doesn't have one yet
+     * @param type the type of the record
+     * @param inventory the inventory the record is about
+     * @throws IOException if the record couldn't be written
+     */
+    private void startRecord(byte type, Inventory inventory) throws IOException {
+        Integer number = inventoryNumbers.get(inventory.getId());
+        if (number == null) {
+            number = inventoryNumbers.size();
+            inventoryNumbers.put(inventory.getId(), number);
+
+            payload.reset();
+            payloadOut.writeByte(DEFINE_ID);
+            payloadOut.writeInt(number);
+            putString(inventory.getId());
+            endRecord();
+        }
+
+        payload.reset();
+        payloadOut.writeByte(type);
+        payloadOut.writeInt(number);
+    }
+
+    /**
+     * Adds the record that was built to the pending records, with its length and checksum in front.
+     * With EveryChange, the record is written and forced right away.
+     * @throws IOException if the record couldn't be written
+     */
+    private void endRecord() throws IOException {
+        crc.reset();
+        crc.update(payload.toByteArray());
+
+        var header = new DataOutputStream(pending);
+        header.writeInt(payload.size());
+        header.writeInt((int) crc.getValue());
+        payload.writeTo(pending);
+        records++;
+
+        if (forceEveryChange) {
+            commit(true);
+        }
+    }
+
+    /**
+     * Remembers that a change couldn't be recorded, so the next save writes a checkpoint instead
+     */
+    private void recordFailed() {
+        synchronized (lock) {
+            failed = true;
+        }
+        System.out.println("Something went wrong while saving...");
+    }
+
+    @Override
+    public void slotCleared(Inventory inventory, int slot) {
+        slotRecord(CLEAR, inventory, slot);
+    }
+
+    /**
+     * Records a change that only needs the index of the slot
+     */
+    private void slotRecord(byte type, Inventory inventory, int slot) {
+        synchronized (lock) {
+            try {
+                startRecord(type, inventory);
+                payloadOut.writeInt(slot);
+                endRecord();
+            } catch (IOException e) {
+                recordFailed();
+            }
+        }
+    }
+
+    @Override
+    public void slotsSwapped(Inventory inventory, int slot1, int slot2) {
+        synchronized (lock) {
+            try {
+                startRecord(SWAP, inventory);
+                payloadOut.writeInt(slot1);
+                payloadOut.writeInt(slot2);
+                endRecord();
+            } catch (IOException e) {
+                recordFailed();
+            }
+        }
+    }
+
+    @Override
+    public void sorted(Inventory inventory, int[] order) {
+        synchronized (lock) {
+            try {
+                startRecord(REORDER, inventory);
+                payloadOut.writeInt(order.length);
+                for (int index : order) {
+                    payloadOut.writeInt(index);
+                }
+                endRecord();
+            } catch (IOException e) {
+                recordFailed();
+            }
+        }
+    }
+
+    @Override
+    public void renamed(Inventory inventory, String name) {
+        synchronized (lock) {
+            try {
+                startRecord(RENAME, inventory);
+                putString(name);
+                endRecord();
+            } catch (IOException e) {
+                recordFailed();
+            }
+        }
+    }
+
+    @Override
+    public void unlockedSlotsChanged(Inventory inventory, int unlockedSlots) {
+        synchronized (lock) {
+            try {
+                startRecord(UNLOCK, inventory);
+                payloadOut.writeInt(unlockedSlots);
+                endRecord();
+            } catch (IOException e) {
+                recordFailed();
+            }
+        }
+    }
+
+    @Override
+    public void slotChanged(Inventory inventory, int slot, Item item, int count, int durability) {
+        synchronized (lock) {
+            try {
+                startRecord(SET_SLOT, inventory);
+                payloadOut.writeInt(slot);
+                payloadOut.writeByte(item != null ? 1 : 0);
+                payloadOut.writeInt(item != null ? item.getId() : 0);
+                payloadOut.writeInt(count);
+                payloadOut.writeInt(durability);
+                endRecord();
+            } catch (IOException e) {
+                recordFailed();
+            }
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package com.codecrafter.database;
+
+import com.codecrafter.inventory.Inventory;
+import com.codecrafter.inventory.Item;
+import com.codecrafter.inventory.JsonMappers;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * An implementation of InventorySystemRepository to save to a SQLite database.
+ * Inventories, their slots and the items in them are kept in separate tables, and slots refer to items by their id.
+ * Inventories are only loaded when they're asked for, and saving only writes the inventories that changed.
+ * This needs the sqlite-jdbc driver on the classpath.
+ */
+public class SqliteRepository implements InventorySystemRepository, AutoCloseable {
+    /**
+     * The statements that create the tables, if they don't exist yet
+     */
+    private static final String[] SCHEMA = {
+            """
+            CREATE TABLE IF NOT EXISTS items (
+                id INTEGER PRIMARY KEY,
+                name TEXT NOT NULL,
+                data TEXT NOT NULL
+            )""",
+            """
+            CREATE TABLE IF NOT EXISTS inventories (
+                id TEXT PRIMARY KEY,
+                name TEXT NOT NULL,
+                unlocked_slots INTEGER NOT NULL
+            )""",
+            """
+            CREATE TABLE IF NOT EXISTS slots (
+                inventory_id TEXT NOT NULL REFERENCES inventories(id) ON DELETE CASCADE,
+                slot_index INTEGER NOT NULL,
+                item_id INTEGER NOT NULL REFERENCES items(id),
+                count INTEGER NOT NULL,
+                durability INTEGER,
+                PRIMARY KEY (inventory_id, slot_index)
+            ) WITHOUT ROWID""",
+    };
+
+    /**
+     * The connection to the database
+     */
+    private final Connection connection;
+    /**
+     * The ids of every inventory, in the order they were added
+     */
+    private final List<String> ids = new ArrayList<>();
+    /**
+     * The inventories that have been loaded or added, by their id
+     */
+    private final Map<String, Inventory> loaded = new HashMap<>();
+    /**
+     * The version every inventory had when it was last saved or loaded. Inventories that aren't in here have never been saved.
+     */
+    private final Map<Inventory, Long> savedVersions = new IdentityHashMap<>();
+    /**
+     * The slots that held something in the database when every inventory was last saved or loaded
+     */
+    private final Map<Inventory, BitSet> savedSlots = new IdentityHashMap<>();
+    /**
+     * Ids of inventories that have been removed since the last save
+     */
+    private final Set<String> removedIds = new LinkedHashSet<>();
+    /**
+     * The items in the item table, as json, by their id
+     */
+    private Map<Integer, JsonNode> itemNodes;
+
+    /**
+     * Opens the database, and creates the tables if they don't exist
+     * @param fileName the filename or path of the database file
+     * @throws SQLException if the database couldn't be opened
+     */
+    public SqliteRepository(String fileName) throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite:" + fileName);
+
+        try (Statement statement = connection.createStatement()) {
+            // The write-ahead log lets readers continue while saving, and makes each save a single append
+            statement.execute("PRAGMA journal_mode = WAL");
+            statement.execute("PRAGMA synchronous = NORMAL");
+            statement.execute("PRAGMA foreign_keys = ON");
+            for (String table : SCHEMA) {
+                statement.execute(table);
+            }
+
+            try (ResultSet rows = statement.executeQuery("SELECT id FROM inventories ORDER BY rowid")) {
+                while (rows.next()) {
+                    ids.add(rows.getString(1));
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads every inventory that isn't loaded yet
+     * @return a list of all inventories
+     */
+    @Override
+    public List<Inventory> getInventories() {
+        List<Inventory> inventories = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            Inventory inventory = getInventory(id);
+            if (inventory != null) {
+                inventories.add(inventory);
+            }
+        }
+        return inventories;
+    }
+
+    /**
+     * @return the ids of every inventory, without loading them
+     */
+    public List<String> getInventoryIds() {
+        return List.copyOf(ids);
+    }
+
+    /**
+     * Gets a single inventory, loading it from the database if it isn't loaded yet
+     * @param id the id of the inventory
+     * @return the inventory, or null if there's no inventory with the id
+     */
+    public Inventory getInventory(String id) {
+        Inventory inventory = loaded.get(id);
+        if (inventory != null || !ids.contains(id)) {
+            return inventory;
+        }
+
+        try {
+            inventory = loadInventory(id);
+        } catch (SQLException | JsonProcessingException e) {
+            System.out.println("Something went wrong while loading an inventory...");
+            return null;
+        }
+
+        if (inventory != null) {
+            loaded.put(id, inventory);
+        }
+        return inventory;
+    }
+
+    /**
+     * Reads an inventory and its slots from the database.
+     * The inventory is built in the same form as it's saved in json, so it's read exactly like a json file.
+     * @param id the id of the inventory
+     * @return the inventory, or null if it isn't in the database
+     * @throws SQLException if the database couldn't be read
+     * @throws JsonProcessingException if an item in the database is malformed
+     */
+    private Inventory loadInventory(String id) throws SQLException, JsonProcessingException {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT name, unlocked_slots FROM inventories WHERE id = ?")) {
+            statement.setString(1, id);
+            try (ResultSet row = statement.executeQuery()) {
+                if (!row.next()) {
+                    return null;
+                }
+                node.put("id", id);
+                node.put("name", row.getString(1));
+                node.put("unlockedSlots", row.getInt(2));
+            }
+        }
+
+        ArrayNode slots = node.putArray("slots");
+        BitSet occupied = new BitSet();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT slot_index, item_id, count, durability FROM slots WHERE inventory_id = ? ORDER BY slot_index")) {
+            statement.setString(1, id);
+            try (ResultSet rows = statement.executeQuery()) {
+                while (rows.next()) {
+                    JsonNode item = getItemNodes().get(rows.getInt(2));
+                    if (item == null) {
+                        System.out.println("Skipping a slot with an unknown item id: " + rows.getInt(2));
+                        continue;
+                    }
+
+                    ObjectNode slot = slots.addObject();
+                    slot.put("index", rows.getInt(1));
+                    slot.set("item", item);
+                    slot.put("count", rows.getInt(3));
+                    int durability = rows.getInt(4);
+                    if (!rows.wasNull()) {
+                        slot.put("durability", durability);
+                    }
+                    occupied.set(rows.getInt(1));
+                }
+            }
+        }
+
+        Inventory inventory = JsonMappers.INVENTORY_READER.treeToValue(node, Inventory.class);
+        savedVersions.put(inventory, inventory.getVersion());
+        savedSlots.put(inventory, occupied);
+        return inventory;
+    }
+
+    /**
+     * @return the items in the item table, read the first time they're needed
+     * @throws SQLException if the table couldn't be read
+     * @throws JsonProcessingException if an item is malformed
+     */
+    private Map<Integer, JsonNode> getItemNodes() throws SQLException, JsonProcessingException {
+        if (itemNodes == null) {
+            Map<Integer, JsonNode> nodes = new HashMap<>();
+            try (Statement statement = connection.createStatement();
+                 ResultSet rows = statement.executeQuery("SELECT id, data FROM items")) {
+                while (rows.next()) {
+                    nodes.put(rows.getInt(1), JsonMappers.ITEM_READER.readTree(rows.getString(2)));
+                }
+            }
+            itemNodes = nodes;
+        }
+        return itemNodes;
+    }
+
+    @Override
+    public Inventory newInventory(String name, int unlockedSlots) {
+        var inventory = new Inventory(name, unlockedSlots);
+        addInventory(inventory);
+
+        save();
+
+        return inventory;
+    }
+
+    /**
+     * Writes all inventories that changed since the last save to the database, in a single transaction
+     */
+    @Override
+    public void save() {
+        // The versions are read before writing, so a change made while writing is still seen as unsaved
+        Map<Inventory, Long> changed = new IdentityHashMap<>();
+        for (Inventory inventory : loaded.values()) {
+            Long savedVersion = savedVersions.get(inventory);
+            if (savedVersion == null || savedVersion != inventory.getVersion()) {
+                changed.put(inventory, inventory.getVersion());
+            }
+        }
+
+        if (changed.isEmpty() && removedIds.isEmpty()) {
+            return;
+        }
+
+        try {
+            connection.setAutoCommit(false);
+            try {
+                Map<Inventory, BitSet> occupied = write(changed.keySet());
+                connection.commit();
+
+                savedVersions.putAll(changed);
+                savedSlots.putAll(occupied);
+                removedIds.clear();
+            } catch (SQLException | JsonProcessingException e) {
+                connection.rollback();
+                // Items added in the failed transaction aren't in the table, so it's read again when needed
+                itemNodes = null;
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException | JsonProcessingException e) {
+            System.out.println("Something went wrong while saving...");
+        }
+    }
+
+    /**
+     * Writes the changed inventories and the removals. Must be called inside a transaction.
+     * @param changed the inventories to write
+     * @return the slots that hold something in the database for each written inventory, after writing
+     * @throws SQLException if the database couldn't be written
+     * @throws JsonProcessingException if an item couldn't be converted to json
+     */
+    private Map<Inventory, BitSet> write(Set<Inventory> changed) throws SQLException, JsonProcessingException {
+        Map<Inventory, BitSet> occupiedSlots = new IdentityHashMap<>();
+
+        try (PreparedStatement deleteSlots = connection.prepareStatement(
+                     "DELETE FROM slots WHERE inventory_id = ?");
+             PreparedStatement deleteInventory = connection.prepareStatement(
+                     "DELETE FROM inventories WHERE id = ?")) {
+            for (String id : removedIds) {
+                deleteSlots.setString(1, id);
+                deleteSlots.addBatch();
+                deleteInventory.setString(1, id);
+                deleteInventory.addBatch();
+            }
+            deleteSlots.executeBatch();
+            deleteInventory.executeBatch();
+        }
+
+        writeItems(changed);
+
+        try (PreparedStatement upsertInventory = connection.prepareStatement("""
+                     INSERT INTO inventories (id, name, unlocked_slots) VALUES (?, ?, ?)
+                     ON CONFLICT (id) DO UPDATE SET name = excluded.name, unlocked_slots = excluded.unlocked_slots""");
+             PreparedStatement upsertSlot = connection.prepareStatement("""
+                     INSERT INTO slots (inventory_id, slot_index, item_id, count, durability) VALUES (?, ?, ?, ?, ?)
+                     ON CONFLICT (inventory_id, slot_index) DO UPDATE SET
+                         item_id = excluded.item_id, count = excluded.count, durability = excluded.durability""");
+             PreparedStatement deleteSlot = connection.prepareStatement(
+                     "DELETE FROM slots WHERE inventory_id = ? AND slot_index = ?")) {
+            for (Inventory inventory : changed) {
+                upsertInventory.setString(1, inventory.getId());
+                upsertInventory.setString(2, inventory.getName());
+                upsertInventory.setInt(3, inventory.getUnlockedSlots());
+                upsertInventory.addBatch();
+
+                BitSet occupied = new BitSet();
+                // Locked slots are written as well, so the items in them aren't lost
+                int capacity = inventory.getCapacity();
+                for (int index = 0; index < capacity; index++) {
+                    Item item = inventory.getItemAt(index);
+                    int count = inventory.getCountAt(index);
+                    if (item == null || count <= 0) {
+                        continue;
+                    }
+
+                    occupied.set(index);
+                    upsertSlot.setString(1, inventory.getId());
+                    upsertSlot.setInt(2, index);
+                    upsertSlot.setInt(3, item.getId());
+                    upsertSlot.setInt(4, count);
+                    if (item.getMaxDurability() == 0) {
+                        upsertSlot.setNull(5, Types.INTEGER);
+                    } else {
+                        upsertSlot.setInt(5, inventory.getDurabilityAt(index));
+                    }
+                    upsertSlot.addBatch();
+                }
+
+                // Slots that held something when last saved, but are empty now
+                BitSet emptied = (BitSet) savedSlots.getOrDefault(inventory, new BitSet()).clone();
+                emptied.andNot(occupied);
+                for (int index = emptied.nextSetBit(0); index >= 0; index = emptied.nextSetBit(index + 1)) {
+                    deleteSlot.setString(1, inventory.getId());
+                    deleteSlot.setInt(2, index);
+                    deleteSlot.addBatch();
+                }
+
+                occupiedSlots.put(inventory, occupied);
+            }
+
+            // The inventories are written first, as the slots refer to them
+            upsertInventory.executeBatch();
+            deleteSlot.executeBatch();
+            upsertSlot.executeBatch();
+        }
+
+        return occupiedSlots;
+    }
+
+    /**
+     * Adds the items in the inventories to the item table, if they aren't there yet
+     * @param inventories the inventories with the items
+     * @throws SQLException if the table couldn't be written
+     * @throws JsonProcessingException if an item couldn't be converted to json
+     */
+    private void writeItems(Set<Inventory> inventories) throws SQLException, JsonProcessingException {
+        Map<Integer, Item> newItems = new HashMap<>();
+        Set<Integer> known = getItemNodes().keySet();
+        for (Inventory inventory : inventories) {
+            int capacity = inventory.getCapacity();
+            for (int index = 0; index < capacity; index++) {
+                Item item = inventory.getItemAt(index);
+                if (item != null && !known.contains(item.getId())) {
+                    newItems.putIfAbsent(item.getId(), item);
+                }
+            }
+        }
+
+        if (newItems.isEmpty()) {
+            return;
+        }
+
+        try (PreparedStatement insertItem = connection.prepareStatement(
+                "INSERT INTO items (id, name, data) VALUES (?, ?, ?) ON CONFLICT (id) DO NOTHING")) {
+            for (Item item : newItems.values()) {
+                String data = JsonMappers.ITEM_WRITER.writeValueAsString(item);
+                insertItem.setInt(1, item.getId());
+                insertItem.setString(2, item.getName());
+                insertItem.setString(3, data);
+                insertItem.addBatch();
+                itemNodes.put(item.getId(), JsonMappers.ITEM_READER.readTree(data));
+            }
+            insertItem.executeBatch();
+        }
+    }
+
+    /**
+     * Adds an inventory. If the inventory has no id, or an inventory with the same id already exists,
+     * e.g. when the same file is imported twice, the added inventory gets a new id.
+     * @param inventory the inventory to add
+     */
+    @Override
+    public void addInventory(Inventory inventory) {
+        if (inventory.getId() == null || ids.contains(inventory.getId())) {
+            inventory.setId(UUID.randomUUID().toString());
+        }
+
+        // If an inventory with the same id was removed before saving, it's still deleted first when saving
+        ids.add(inventory.getId());
+        loaded.put(inventory.getId(), inventory);
+    }
+
+    @Override
+    public void removeInventory(Inventory inventory) {
+        if (loaded.get(inventory.getId()) != inventory) {
+            return;
+        }
+
+        ids.remove(inventory.getId());
+        loaded.remove(inventory.getId());
+        savedVersions.remove(inventory);
+        savedSlots.remove(inventory);
+        removedIds.add(inventory.getId());
+    }
+
+    /**
+     * Copies every inventory from another repository, e.g. a FileRepository reading inventories.json.
+     * This is meant to be done once, when moving to the database, so it's skipped if the database already has inventories.
+     * @param source the repository to copy from
+     * @return the number of inventories that were copied
+     */
+    public int migrateFrom(InventorySystemRepository source) {
+        if (!ids.isEmpty()) {
+            return 0;
+        }
+
+        int copied = 0;
+        for (Inventory inventory : source.getInventories()) {
+            addInventory(inventory);
+            copied++;
+        }
+
+        save();
+        return copied;
+    }
+
+    /**
+     * Closes the connection to the database. Changes that haven't been saved are lost.
+     * @throws SQLException if the connection couldn't be closed
+     */
+    @Override
+    public void close() throws SQLException {
+        connection.close();
+    }
+}
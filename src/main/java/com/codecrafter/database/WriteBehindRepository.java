@@ -0,0 +1,253 @@
+package com.codecrafter.database;
+
+import com.codecrafter.inventory.Inventory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps a FileRepository, so saving only converts the changed inventories on the calling thread, and writing them
+ * to the disk is done in the background once the save window has passed. Every save made within the window is
+ * written in one go, and an inventory saved several times is only written in its latest version. Since the inventories are only read on the thread that calls save(), they can be changed
+ * while a save is being written.
+ * Remember to call close() before exiting, so pending saves are written.
+ */
+public class WriteBehindRepository implements InventorySystemRepository, AutoCloseable {
+    /**
+     * The repository that does the actual saving
+     */
+    private final FileRepository repository;
+    /**
+     * How long to wait after the first unsaved change before saving
+     */
+    private final Duration window;
+    /**
+     * Runs the saves in the background
+     */
+    private final ScheduledExecutorService scheduler;
+    /**
+     * Guards the inventories in the wrapped repository and the scheduled save
+     */
+    private final Object lock = new Object();
+    /**
+     * Held while writing, so a background write and a write on the calling thread don't run at the same time
+     */
+    private final Object flushLock = new Object();
+
+    /**
+     * Set when a save has been requested, but not written yet
+     */
+    private boolean dirty;
+    /**
+     * The scheduled background save, if any
+     */
+    private ScheduledFuture<?> pendingFlush;
+    /**
+     * When set, every save is written right away on the calling thread
+     */
+    private volatile boolean synchronous;
+    /**
+     * Set once the repository is closed. Saves after that are written right away.
+     */
+    private volatile boolean closed;
+
+    /**
+     * The number of times save() has been called
+     */
+    private final AtomicLong requestedSaves = new AtomicLong();
+    /**
+     * The number of times the wrapped repository has actually saved
+     */
+    private final AtomicLong flushes = new AtomicLong();
+    /**
+     * How long the latest save in the wrapped repository took, in nanoseconds
+     */
+    private volatile long lastFlushNanos;
+    /**
+     * How long the slowest save in the wrapped repository took, in nanoseconds
+     */
+    private volatile long maxFlushNanos;
+
+    /**
+     * @param repository the repository that does the actual saving
+     * @param window how long to wait after the first unsaved change before saving
+     */
+    public WriteBehindRepository(FileRepository repository, Duration window) {
+        this.repository = repository;
+        this.window = window;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "inventory-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public List<Inventory> getInventories() {
+        synchronized (lock) {
+            return repository.getInventories();
+        }
+    }
+
+    @Override
+    public Inventory newInventory(String name, int unlockedSlots) {
+        var inventory = new Inventory(name, unlockedSlots);
+        addInventory(inventory);
+
+        save();
+
+        return inventory;
+    }
+
+    /**
+     * Converts the changed inventories on the calling thread. They are written once the save window has passed,
+     * or right away if the repository is synchronous or closed.
+     */
+    @Override
+    public void save() {
+        requestedSaves.incrementAndGet();
+
+        synchronized (lock) {
+            try {
+                repository.prepareSave();
+            } catch (IOException e) {
+                System.out.println("Something went wrong while saving...");
+                return;
+            }
+            dirty = true;
+        }
+
+        if (synchronous || closed) {
+            flush();
+            return;
+        }
+
+        synchronized (lock) {
+            if (pendingFlush == null) {
+                pendingFlush = scheduler.schedule(this::scheduledFlush, window.toMillis(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Runs when the save window has passed
+     */
+    private void scheduledFlush() {
+        synchronized (lock) {
+            pendingFlush = null;
+        }
+        flush();
+    }
+
+    /**
+     * Writes any pending save right away, on the calling thread
+     */
+    @Override
+    public void flush() {
+        synchronized (flushLock) {
+            synchronized (lock) {
+                if (pendingFlush != null) {
+                    pendingFlush.cancel(false);
+                    pendingFlush = null;
+                }
+                if (!dirty) {
+                    return;
+                }
+                dirty = false;
+            }
+
+            long start = System.nanoTime();
+            try {
+                repository.writePrepared();
+            } catch (IOException e) {
+                // The writes are kept by the repository, so mark them as pending again
+                synchronized (lock) {
+                    dirty = true;
+                }
+                System.out.println("Something went wrong while saving...");
+                return;
+            }
+            long elapsed = System.nanoTime() - start;
+
+            flushes.incrementAndGet();
+            lastFlushNanos = elapsed;
+            maxFlushNanos = Math.max(maxFlushNanos, elapsed);
+        }
+    }
+
+    @Override
+    public void addInventory(Inventory inventory) {
+        synchronized (lock) {
+            repository.addInventory(inventory);
+        }
+    }
+
+    @Override
+    public void removeInventory(Inventory inventory) {
+        synchronized (lock) {
+            repository.removeInventory(inventory);
+        }
+    }
+
+    /**
+     * Sets if saves should be written right away on the calling thread, instead of in the background
+     * @param synchronous true to write every save right away
+     */
+    public void setSynchronous(boolean synchronous) {
+        this.synchronous = synchronous;
+        if (synchronous) {
+            flush();
+        }
+    }
+
+    /**
+     * @return the number of times save() has been called
+     */
+    public long getRequestedSaves() {
+        return requestedSaves.get();
+    }
+
+    /**
+     * @return the number of times the data has actually been written
+     */
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    /**
+     * @return the number of saves that were merged into another save, instead of being written on their own
+     */
+    public long getMergedSaves() {
+        return requestedSaves.get() - flushes.get();
+    }
+
+    /**
+     * @return how long the latest write took
+     */
+    public Duration getLastFlushLatency() {
+        return Duration.ofNanos(lastFlushNanos);
+    }
+
+    /**
+     * @return how long the slowest write took
+     */
+    public Duration getMaxFlushLatency() {
+        return Duration.ofNanos(maxFlushNanos);
+    }
+
+    /**
+     * Writes any pending save and stops the background thread. Saves made after this are written right away.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        flush();
+        scheduler.shutdown();
+    }
+}
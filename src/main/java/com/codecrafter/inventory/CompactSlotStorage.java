@@ -0,0 +1,131 @@
+package com.codecrafter.inventory;
+
+import com.codecrafter.items.ItemCatalog;
+import com.codecrafter.items.ItemManager;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores only the item id and count of every slot in primitive arrays.
+ * Items are looked up in the catalog of the ItemManager when they are read, so every inventory
+ * shares the same item instances, and no objects are kept per slot. The inventory decides which version of the
+ * catalog is used, so a reloaded item doesn't show up before the inventory has updated its totals for it.
+ */
+class CompactSlotStorage extends SlotStorage {
+    /**
+     * The id used for slots without an item
+     */
+    static final int NO_ITEM = -1;
+
+    /**
+     * The id of the item in every slot, or NO_ITEM
+     */
+    private int[] itemIds;
+    /**
+     * The number of items in every slot
+     */
+    private int[] counts;
+    /**
+     * Items that aren't known by the ItemManager, e.g. items imported from another device.
+     * These have to be kept here, since they can't be looked up. Only created when needed.
+     */
+    private Map<Integer, Item> unknownItems;
+    /**
+     * The catalog items are looked up in
+     */
+    private ItemCatalog catalog = ItemManager.getInstance().getCatalog();
+
+    /**
+     * @param capacity the number of slots to store
+     */
+    CompactSlotStorage(int capacity) {
+        itemIds = new int[capacity];
+        counts = new int[capacity];
+        Arrays.fill(itemIds, NO_ITEM);
+    }
+
+    @Override
+    int capacity() {
+        return itemIds.length;
+    }
+
+    @Override
+    Item getItem(int index) {
+        int id = itemIds[index];
+        if (id == NO_ITEM) {
+            return null;
+        }
+
+        Item item = catalog.getItem(id);
+        if (item == null && unknownItems != null) {
+            item = unknownItems.get(id);
+        }
+        return item;
+    }
+
+    @Override
+    int getCount(int index) {
+        return counts[index];
+    }
+
+    @Override
+    void set(int index, Item item, int count) {
+        if (item == null) {
+            itemIds[index] = NO_ITEM;
+        } else {
+            int id = item.getId();
+            if (catalog.getItem(id) == null) {
+                if (unknownItems == null) {
+                    unknownItems = new HashMap<>();
+                }
+                unknownItems.put(id, item);
+            }
+            itemIds[index] = id;
+        }
+        counts[index] = count;
+    }
+
+    @Override
+    void useCatalog(ItemCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    @Override
+    void swap(int index1, int index2) {
+        int id = itemIds[index1];
+        itemIds[index1] = itemIds[index2];
+        itemIds[index2] = id;
+
+        int count = counts[index1];
+        counts[index1] = counts[index2];
+        counts[index2] = count;
+
+        swapStates(index1, index2);
+    }
+
+    @Override
+    void permute(int[] order) {
+        int[] newItemIds = new int[itemIds.length];
+        int[] newCounts = new int[counts.length];
+        for (int i = 0; i < order.length; i++) {
+            newItemIds[i] = itemIds[order[i]];
+            newCounts[i] = counts[order[i]];
+        }
+        itemIds = newItemIds;
+        counts = newCounts;
+
+        permuteStates(order);
+    }
+
+    @Override
+    void grow(int capacity) {
+        int oldCapacity = itemIds.length;
+        itemIds = Arrays.copyOf(itemIds, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        Arrays.fill(itemIds, oldCapacity, capacity, NO_ITEM);
+
+        growStates(capacity);
+    }
+}
@@ -0,0 +1,18 @@
+package com.codecrafter.inventory;
+
+/**
+ * Defines if an inventory can be used by several threads at once
+ */
+public enum ConcurrencyMode {
+    /**
+     * The inventory has no locks, and must only be used by one thread at a time
+     */
+    None,
+
+    /**
+     * The inventory can be used by any number of threads at once.
+     * Changes to single slots only lock the slot, the weight limit is kept by reserving the weight before a slot
+     * changes, and reads don't lock at all unless they overlap a change. See InventoryLocks.
+     */
+    Striped,
+}
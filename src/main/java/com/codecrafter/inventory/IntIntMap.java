@@ -0,0 +1,166 @@
+package com.codecrafter.inventory;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from int to int, without boxing any keys or values.
+ * Uses open addressing with linear probing. Missing keys have the value 0, and keys are
+ * removed when their value is set back to 0, so the map only holds non-zero values.
+ */
+class IntIntMap {
+    /**
+     * The initial number of buckets. Must be a power of two.
+     */
+    private static final int INITIAL_CAPACITY = 8;
+
+    /**
+     * The key in every bucket
+     */
+    private int[] keys = new int[INITIAL_CAPACITY];
+    /**
+     * The value in every bucket
+     */
+    private int[] values = new int[INITIAL_CAPACITY];
+    /**
+     * Whether a bucket holds a key
+     */
+    private boolean[] used = new boolean[INITIAL_CAPACITY];
+    /**
+     * The number of keys in the map
+     */
+    private int size;
+
+    /**
+     * @param key the key
+     * @return the value of the key, or 0 if the key isn't in the map
+     */
+    int get(int key) {
+        int bucket = find(key);
+        return used[bucket] ? values[bucket] : 0;
+    }
+
+    /**
+     * Adds to the value of a key. The key is removed if its value becomes 0.
+     * @param key the key
+     * @param delta the number to add to the value
+     */
+    void add(int key, int delta) {
+        if (delta == 0) {
+            return;
+        }
+
+        int bucket = find(key);
+        if (used[bucket]) {
+            values[bucket] += delta;
+            if (values[bucket] == 0) {
+                removeAt(bucket);
+            }
+            return;
+        }
+
+        keys[bucket] = key;
+        values[bucket] = delta;
+        used[bucket] = true;
+        size++;
+
+        // Keep the map at most half full, so probing stays short
+        if (size * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+    }
+
+    /**
+     * Sets the value of a key. The key is removed if the value is 0.
+     * @param key the key
+     * @param value the new value
+     */
+    void put(int key, int value) {
+        add(key, value - get(key));
+    }
+
+    /**
+     * Removes all keys
+     */
+    void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    /**
+     * @return the number of keys in the map
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Finds the bucket of a key
+     * @param key the key
+     * @return the bucket holding the key, or the empty bucket where it should be inserted
+     */
+    private int find(int key) {
+        int mask = keys.length - 1;
+        int bucket = hash(key) & mask;
+        while (used[bucket] && keys[bucket] != key) {
+            bucket = (bucket + 1) & mask;
+        }
+        return bucket;
+    }
+
+    /**
+     * Removes the key in a bucket, and moves later keys back so no probe sequence is broken
+     * @param bucket the bucket to empty
+     */
+    private void removeAt(int bucket) {
+        int mask = keys.length - 1;
+        int gap = bucket;
+        int next = (gap + 1) & mask;
+
+        while (used[next]) {
+            int ideal = hash(keys[next]) & mask;
+            // The key can fill the gap if the gap is between its ideal bucket and where it is now
+            if (((next - ideal) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+
+        used[gap] = false;
+        size--;
+    }
+
+    /**
+     * Moves all keys into a new set of buckets
+     * @param capacity the new number of buckets, which must be a power of two
+     */
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+
+        keys = new int[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int bucket = find(oldKeys[i]);
+                keys[bucket] = oldKeys[i];
+                values[bucket] = oldValues[i];
+                used[bucket] = true;
+            }
+        }
+    }
+
+    /**
+     * Spreads the bits of a key, so ids that are close to each other don't end up in the same buckets
+     * @param key the key
+     * @return the hash of the key
+     */
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
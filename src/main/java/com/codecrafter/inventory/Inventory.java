@@ -2,20 +2,29 @@ package com.codecrafter.inventory;
 
 import com.codecrafter.exceptions.InvalidSlotException;
 import com.codecrafter.exceptions.TooMuchWeightException;
+import com.codecrafter.items.ItemCatalog;
+import com.codecrafter.items.ItemManager;
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.fasterxml.jackson.annotation.JsonSetter;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
 
 /**
  * The primary class to manage and manipulate an inventory.
  * The inventory is designed able to be converted into a JSON string and deserialized with
  * the help of the Jackson library.
  */
+@JsonPropertyOrder({"id", "name", "unlockedSlots", "slots"})
 public class Inventory {
     /**
      * The max-weight that an inventory can carry.
@@ -26,7 +35,40 @@ public class Inventory {
      * The maximum number of slots that you can unlock in the inventory
      */
     final static int MAX_SLOTS = 192;
+    /**
+     * How many weight units one unit of weight is split into.
+     * Weight is tracked in whole units of this size internally, so adding and removing
+     * the same items over and over can't build up floating point errors.
+     */
+    final static long WEIGHT_SCALE = 1000;
+    /**
+     * The max-weight in weight units
+     */
+    final static long MAX_WEIGHT_UNITS = toWeightUnits(MAX_WEIGHT);
+
+    /**
+     * When enabled, the running weight total is compared against a full recompute after every change.
+     * Only meant for debugging, since it makes every mutation linear in the number of slots.
+     * Can be enabled from the start with -Dinventory.verifyWeight=true
+     */
+    private static boolean verifyWeight = Boolean.getBoolean("inventory.verifyWeight");
+
+    /**
+     * The storage mode used for new inventories, including inventories read from JSON.
+     * Can be set from the start with -Dinventory.storage=Compact
+     */
+    private static StorageMode defaultStorageMode = StorageMode.valueOf(System.getProperty("inventory.storage", StorageMode.Objects.name()));
+    /**
+     * The concurrency mode used for new inventories, including inventories read from JSON.
+     * Can be set from the start with -Dinventory.concurrency=Striped
+     */
+    private static ConcurrencyMode defaultConcurrencyMode = ConcurrencyMode.valueOf(System.getProperty("inventory.concurrency", ConcurrencyMode.None.name()));
 
+    /**
+     * A unique id of the inventory, so it can be recognized across saves, even when it's renamed.
+     * Inventories read from files written before ids were added have no id, until one is given to them.
+     */
+    private String id;
     /**
      * Name of the inventory.
      * Primarily used as a human-readable way of distinguishing this inventory from others.
@@ -34,84 +76,992 @@ public class Inventory {
     private String name;
 
     /**
-     * All slots that an inventory is able to have.
+     * The contents of the slots in the inventory.
+     * Only the slots that have been unlocked at some point are allocated, and the storage
+     * grows when more slots are unlocked, up to MAX_SLOTS.
+     */
+    private final SlotStorage storage;
+    /**
+     * Keeps track of empty slots and stacks that aren't full, so items can be added without scanning every slot
+     */
+    private final SlotIndex slotIndex = new SlotIndex();
+    /**
+     * The number of slots that are unlocked. If this is less than the capacity
+     * of the storage, only those slots will be available through the getters.
+     */
+    private int unlockedSlots;
+    /**
+     * The total weight of all unlocked slots in weight units.
+     * Kept up to date on every change to a slot.
+     */
+    private long weightUnits;
+    /**
+     * The total number of every item in the unlocked slots, by item id.
+     * Kept up to date on every change to a slot, together with the weight.
+     */
+    private final IntIntMap itemCounts = new IntIntMap();
+    /**
+     * Counts every change made to the inventory. Used to find out if the inventory has changed since it was last saved.
+     */
+    private long version;
+    /**
+     * Gets told about every change, e.g. to record the changes in a journal. Null if nothing listens.
+     */
+    private InventoryListener listener;
+    /**
+     * The version of the item catalog the slots and running totals are up to date with.
+     * When the items are reloaded, the inventory catches up the next time it's used, see syncCatalog().
+     */
+    private ItemCatalog catalog = ItemManager.getInstance().getCatalog();
+    /**
+     * The locks that let several threads use the inventory at once, or null if it's only used by one thread.
+     * See ConcurrencyMode.
+     */
+    private final InventoryLocks locks;
+
+    /**
+     * Empty constructor for Jackson and InventoryJsonCodec to properly convert JSON to objects
+     */
+    Inventory() {
+        storage = SlotStorage.create(defaultStorageMode, 0);
+        storage.useCatalog(catalog);
+        locks = defaultConcurrencyMode == ConcurrencyMode.Striped ? new InventoryLocks() : null;
+    }
+
+    /**
+     * The public constructor of an inventory
+     * @param name The name of the inventory
+     * @param unlockedSlots The number of unlocked slots
+     */
+    public Inventory(String name, int unlockedSlots) {
+        this(name, unlockedSlots, defaultStorageMode);
+    }
+
+    /**
+     * Constructor of an inventory with a specific storage mode
+     * @param name The name of the inventory
+     * @param unlockedSlots The number of unlocked slots
+     * @param storageMode how the contents of the slots should be stored
+     */
+    public Inventory(String name, int unlockedSlots, StorageMode storageMode) {
+        this(name, unlockedSlots, storageMode, defaultConcurrencyMode);
+    }
+
+    /**
+     * Constructor of an inventory with a specific storage mode and concurrency mode
+     * @param name The name of the inventory
+     * @param unlockedSlots The number of unlocked slots
+     * @param storageMode how the contents of the slots should be stored
+     * @param concurrencyMode if the inventory can be used by several threads at once
+     */
+    public Inventory(String name, int unlockedSlots, StorageMode storageMode, ConcurrencyMode concurrencyMode) {
+        this.id = UUID.randomUUID().toString();
+        this.name = name;
+        this.unlockedSlots = Math.max(Math.min(unlockedSlots, MAX_SLOTS), 0);
+        this.storage = SlotStorage.create(storageMode, this.unlockedSlots);
+        storage.useCatalog(catalog);
+        this.locks = concurrencyMode == ConcurrencyMode.Striped ? new InventoryLocks() : null;
+        slotIndex.rebuild(storage);
+    }
+
+    /**
+     * Converts a weight to weight units
+     * @param weight the weight to convert
+     * @return the weight in whole weight units
+     */
+    static long toWeightUnits(double weight) {
+        return Math.round(weight * WEIGHT_SCALE);
+    }
+
+    /**
+     * Enables or disables the debug check of the running weight total
+     * @param enabled true to compare the running total against a full recompute after every change
+     */
+    public static void setVerifyWeight(boolean enabled) {
+        verifyWeight = enabled;
+    }
+
+    /**
+     * Sets the storage mode used for new inventories, including inventories read from JSON
+     * @param storageMode the storage mode to use
+     */
+    public static void setDefaultStorageMode(StorageMode storageMode) {
+        defaultStorageMode = storageMode;
+    }
+
+    /**
+     * Sets the concurrency mode used for new inventories, including inventories read from JSON
+     * @param concurrencyMode the concurrency mode to use
+     */
+    public static void setDefaultConcurrencyMode(ConcurrencyMode concurrencyMode) {
+        defaultConcurrencyMode = concurrencyMode;
+    }
+
+    /**
+     * Tagged with @JsonIgnore since it only describes how the inventory is used while it's loaded.
+     * @return if the inventory can be used by several threads at once
+     */
+    @JsonIgnore
+    public ConcurrencyMode getConcurrencyMode() {
+        return locks != null ? ConcurrencyMode.Striped : ConcurrencyMode.None;
+    }
+
+    /**
+     * Locks the whole inventory, if it can be used by several threads and the current thread doesn't hold it already.
+     * Meant for changes to many slots at once, and for reading every slot as they are at one point in time,
+     * e.g. by a repository that writes several inventories together.
+     * Must be followed by unlockInventory() with the returned value, in a finally block.
+     * @return true if the inventory was locked
+     */
+    public boolean lockInventory() {
+        if (locks == null || locks.isHeldByCurrentThread()) {
+            return false;
+        }
+
+        locks.lockAll();
+        syncCatalog();
+        return true;
+    }
+
+    /**
+     * Unlocks the inventory after lockInventory()
+     * @param locked the value returned by lockInventory()
+     */
+    public void unlockInventory(boolean locked) {
+        if (locked) {
+            locks.unlockAll(weightUnits);
+        }
+    }
+
+    /**
+     * Locks a single slot, if the inventory can be used by several threads. Other slots can still be changed.
+     * Must be followed by unlockSlot() with the returned value, in a finally block.
+     * @param index the index of the slot
+     * @return true if the slot was locked
+     */
+    private boolean lockSlot(int index) {
+        if (!lockShared()) {
+            return false;
+        }
+
+        locks.lockStripe(index);
+        return true;
+    }
+
+    /**
+     * Unlocks a slot after lockSlot()
+     * @param index the index of the slot
+     * @param locked the value returned by lockSlot()
+     */
+    private void unlockSlot(int index, boolean locked) {
+        if (locked) {
+            locks.unlockStripe(index);
+            locks.unlockShared();
+        }
+    }
+
+    /**
+     * Locks two slots for a swap, if the inventory can be used by several threads.
+     * Only possible if both slots are allocated and on the same side of the unlocked slots, since the swap doesn't
+     * change the running totals then. Otherwise nothing is locked, and the whole inventory has to be locked instead.
+     * @param index1 the index of a slot
+     * @param index2 the index of another slot
+     * @return true if the slots were locked
+     */
+    private boolean lockSlots(int index1, int index2) {
+        if (!lockShared()) {
+            return false;
+        }
+
+        boolean crossesLock = (index1 < unlockedSlots) != (index2 < unlockedSlots);
+        if (crossesLock || Math.max(index1, index2) >= storage.capacity()) {
+            locks.unlockShared();
+            return false;
+        }
+
+        locks.lockStripes(index1, index2);
+        return true;
+    }
+
+    /**
+     * Unlocks two slots after lockSlots()
+     * @param index1 the index of a slot
+     * @param index2 the index of another slot
+     * @param locked the value returned by lockSlots()
+     */
+    private void unlockSlots(int index1, int index2, boolean locked) {
+        if (locked) {
+            locks.unlockStripes(index1, index2);
+            locks.unlockShared();
+        }
+    }
+
+    /**
+     * Releases the hold from lockShared()
+     * @param locked the value returned by lockShared()
+     */
+    private void unlockShared(boolean locked) {
+        if (locked) {
+            locks.unlockShared();
+        }
+    }
+
+    /**
+     * Holds the inventory shared, if it can be used by several threads, and the current thread doesn't hold it already.
+     * If the items have been reloaded, the whole inventory is locked first to bring the slots up to date, since that
+     * can't be done while other slots change.
+     * @return true if the inventory is now held shared
+     */
+    private boolean lockShared() {
+        if (locks == null || locks.isHeldByCurrentThread()) {
+            return false;
+        }
+
+        locks.lockShared();
+        if (catalog != ItemManager.getInstance().getCatalog()) {
+            locks.unlockShared();
+            unlockInventory(lockInventory());
+            locks.lockShared();
+        }
+        return true;
+    }
+
+    /**
+     * Reserves the weight a change to a slot adds, so other slots can't use it at the same time.
+     * For inventories used by only one thread, this only checks the weight.
+     * @param units the weight units the change adds, or negative if it removes weight
+     * @return the weight units that were reserved, which must be passed on to applySlotContents()
+     * @throws TooMuchWeightException if the weight would exceed the max weight
+     */
+    private long reserveWeight(long units) throws TooMuchWeightException {
+        if (locks == null || locks.isHeldByCurrentThread()) {
+            if (weightUnits + units > MAX_WEIGHT_UNITS) {
+                throw new TooMuchWeightException();
+            }
+            return 0;
+        }
+
+        if (!locks.reserve(units, MAX_WEIGHT_UNITS)) {
+            throw new TooMuchWeightException();
+        }
+        return Math.max(units, 0);
+    }
+
+    /**
+     * @return the unique id of the inventory, or null if it was read from a file without ids
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Sets the id of the inventory. Only needed when reading an inventory, or if two inventories end up with the same id.
+     * @param id the new id of the inventory
+     */
+    public void setId(String id) {
+        boolean locked = lockInventory();
+        try {
+            this.id = id;
+            changed();
+        } finally {
+            unlockInventory(locked);
+        }
+    }
+
+    /**
+     * Tagged with @JsonIgnore since it only describes the inventory while it's loaded.
+     * @return a number that changes every time the inventory is changed
+     */
+    @JsonIgnore
+    public long getVersion() {
+        if (locks == null || locks.isHeldByCurrentThread()) {
+            return version;
+        }
+        return locks.readTotals(() -> version);
+    }
+
+    /**
+     * Tagged with @JsonIgnore since it only describes the inventory while it's loaded.
+     * @return the listener that gets told about every change, or null
+     */
+    @JsonIgnore
+    public InventoryListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Sets the listener that gets told about every change. An inventory only has one listener.
+     * @param listener the new listener, or null to stop telling anyone
+     */
+    @JsonIgnore
+    public void setListener(InventoryListener listener) {
+        boolean locked = lockInventory();
+        try {
+            this.listener = listener;
+        } finally {
+            unlockInventory(locked);
+        }
+    }
+
+    /**
+     * Marks that the inventory has changed
+     */
+    private void changed() {
+        version++;
+    }
+
+    /**
+     * @return the name of the inventory
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Set the name of the inventory
+     * @param name new name of the inventory
+     */
+    public void setName(String name) {
+        boolean locked = lockInventory();
+        try {
+            this.name = name;
+            changed();
+
+            if (listener != null) {
+                listener.renamed(this, name);
+            }
+        } finally {
+            unlockInventory(locked);
+        }
+    }
+
+    /**
+     * @return the number of unlocked slots in this inventory
+     */
+    public int getUnlockedSlots() {
+        if (locks == null || locks.isHeldByCurrentThread()) {
+            return unlockedSlots;
+        }
+        return (int) locks.readTotals(() -> unlockedSlots);
+    }
+
+    /**
+     * Sets the number of unlocked slots in this inventory
+     * Be careful with this, since items in slots outside of this range is unavailable.
+     * @param unlockedSlots the new number of unlocked slots
+     */
+    public void setUnlockedSlots(int unlockedSlots) {
+        boolean locked = lockInventory();
+        try {
+            syncCatalog();
+            int newUnlockedSlots = Math.max(Math.min(unlockedSlots, MAX_SLOTS), 0);
+            ensureCapacity(newUnlockedSlots);
+
+            // Slots that get locked no longer count towards the totals, and newly unlocked slots do
+            for (int i = newUnlockedSlots; i < this.unlockedSlots; i++) {
+                countSlot(i, -1);
+            }
+            for (int i = this.unlockedSlots; i < newUnlockedSlots; i++) {
+                countSlot(i, 1);
+            }
+
+            this.unlockedSlots = newUnlockedSlots;
+            changed();
+            verifyWeightUnits();
+
+            if (listener != null) {
+                listener.unlockedSlotsChanged(this, newUnlockedSlots);
+            }
+        } finally {
+            unlockInventory(locked);
+        }
+    }
+
+    /**
+     * Grows the storage, if needed, so it can hold the given number of slots
+     * @param capacity the number of slots that must be available
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity > storage.capacity()) {
+            int oldCapacity = storage.capacity();
+            storage.grow(capacity);
+            for (int i = oldCapacity; i < capacity; i++) {
+                slotIndex.add(i, null, 0);
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of all unlocked slots. This allocates a new array on every call, so prefer
+     * {@link #getSlot(int)} or {@link #forEachSlot(SlotVisitor)} when you just need to look at the slots.
+     * Tagged with @JsonIgnore since only the non-empty slots are written to JSON, see getOccupiedSlots().
+     * @return an array of slots of all unlocked slots, meaning from index 0 to the number of unlocked slots.
+     */
+    @JsonIgnore
+    public Slot[] getSlots() {
+        Slot[] slots = new Slot[getUnlockedSlots()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot(this, i);
+        }
+        return slots;
+    }
+
+    /**
+     * Gets the slots that should be written to JSON.
+     * Empty slots are left out, and every slot knows its own index, so locked slots with items are kept as well.
+     * @return all slots that aren't empty
+     */
+    @JsonProperty("slots")
+    private List<Slot> getOccupiedSlots() {
+        boolean locked = lockInventory();
+        try {
+            syncCatalog();
+            List<Slot> occupied = new ArrayList<>();
+            for (int i = 0; i < storage.capacity(); i++) {
+                Item item = storage.getItem(i);
+                if (item != null && storage.getCount(i) > 0) {
+                    occupied.add(new Slot(this, i));
+                }
+            }
+            return occupied;
+        } finally {
+            unlockInventory(locked);
+        }
+    }
+
+    /**
+     * Sets the slots when the inventory is read from JSON.
+     * The contents of the read slots are copied into the storage of this inventory.
+     * Slots without an index, as written by older versions with every slot included, are placed by their position.
+     * @param slots the slots that were read
+     * @throws IllegalArgumentException if a slot has an index outside the inventory
+     */
+    @JsonSetter("slots")
+    private void setSlots(Slot[] slots) {
+        startReadingSlots();
+
+        for (int i = 0; i < slots.length; i++) {
+            Slot slot = slots[i];
+            if (slot == null || slot.isEmpty()) {
+                continue;
+            }
+
+            int index = slot.getIndex() >= 0 ? slot.getIndex() : i;
+            readSlot(index, slot.getItem(), slot.getCount(), slot.isNewStack() ? -1 : slot.getDurability());
+        }
+
+        finishReadingSlots();
+    }
+
+    /**
+     * Empties every slot, before the slots are read. Must be followed by readSlot() for every slot
+     * that isn't empty, and then finishReadingSlots().
+     */
+    void startReadingSlots() {
+        // Every slot is replaced, so there's nothing to bring up to date, and the read items come from the current catalog
+        catalog = ItemManager.getInstance().getCatalog();
+        storage.useCatalog(catalog);
+        for (int i = 0; i < storage.capacity(); i++) {
+            storage.set(i, null, 0);
+            storage.setState(i, 0);
+        }
+    }
+
+    /**
+     * Places a slot that was read. The running totals aren't updated until finishReadingSlots().
+     * @param index the index of the slot
+     * @param item the item that was read
+     * @param count the number of items in the slot
+     * @param durability the durability of the stack, or -1 if it wasn't saved, which makes it a new stack
+     * @throws IllegalArgumentException if the index is outside the inventory
+     */
+    void readSlot(int index, Item item, int count, int durability) {
+        if (index < 0 || index >= MAX_SLOTS) {
+            throw new IllegalArgumentException("Slot index " + index + " is outside the inventory");
+        }
+
+        // Use the shared item instead of the copy that was read, so every slot doesn't keep its own copy
+        Item known = catalog.getItem(item.getId());
+        Item shared = known != null ? known : item;
+
+        ensureCapacity(index + 1);
+        storage.set(index, shared, count);
+        storage.setState(index, durability < 0 ? shared.getMaxDurability() : durability);
+    }
+
+    /**
+     * Brings the slot index and running totals up to date, once every slot has been read
+     */
+    void finishReadingSlots() {
+        slotIndex.rebuild(storage);
+        recountUnlockedSlots();
+        changed();
+
+        if (locks != null) {
+            // Nothing else can use the inventory while it's being read, so only the reserved weight has to start over
+            locks.resetReserved(weightUnits);
+        }
+    }
+
+    /**
+     * Get a specific slot from the inventory.
+     * The returned slot is a view of the slot at the given index, and reads and writes directly
+     * to the inventory, so no copying of the slots is done. Creating the view is still an allocation, so code that
+     * reads many slots should use getItemAt(), getCountAt() and getDurabilityAt() instead.
+     * @param index the index of the slot
+     * @return a reference to the given slot
+     * @throws InvalidSlotException when index is either negative, or over `unlockedSlots`
+     */
+    public Slot getSlot(int index) throws InvalidSlotException {
+        boolean locked = lockShared();
+        try {
+            checkSlotIndex(index);
+        } finally {
+            unlockShared(locked);
+        }
+        return new Slot(this, index);
+    }
+
+    /**
+     * Visits every unlocked slot in order, without copying the slots or creating a Slot for each of them.
+     * A slot that's empty in the sense of {@link Slot#isEmpty()} is visited with no item, even if a decrement left
+     * the item in it with a count of 0.
+     * @param visitor the visitor to call for every unlocked slot
+     */
+    public void forEachSlot(SlotVisitor visitor) {
+        int slots = getUnlockedSlots();
+        for (int i = 0; i < slots; i++) {
+            Item item = getItemAt(i);
+            int count = getCountAt(i);
+            if (item == null || count <= 0) {
+                visitor.visit(i, null, 0);
+            } else {
+                visitor.visit(i, item, count);
+            }
+        }
+    }
+
+    /**
+     * Tagged with @JsonIgnore since it's a detail of how the slots are stored.
+     * @return the number of slots that are allocated, which includes locked slots that have been unlocked before
+     */
+    @JsonIgnore
+    public int getCapacity() {
+        if (locks == null || locks.isHeldByCurrentThread()) {
+            return storage.capacity();
+        }
+        return (int) locks.readTotals(storage::capacity);
+    }
+
+    /**
+     * Reads the item in a slot without creating a Slot, so it's cheap to call for every slot.
+     * Slots that are locked can be read as well.
+     * @param index the index of the slot
+     * @return the item in the slot at the given index, or null if there is none or the slot isn't allocated
+     */
+    public Item getItemAt(int index) {
+        if (locks == null || locks.isHeldByCurrentThread()) {
+            syncCatalog();
+            return itemIn(index);
+        }
+        return locks.readSlotObject(index, this::itemIn);
+    }
+
+    /**
+     * Reads the number of items in a slot without creating a Slot, so it's cheap to call for every slot
+     * @param index the index of the slot
+     * @return the number of items in the slot at the given index, or 0 if the slot isn't allocated
+     */
+    public int getCountAt(int index) {
+        if (locks == null || locks.isHeldByCurrentThread()) {
+            return countIn(index);
+        }
+        return locks.readSlot(index, this::countIn);
+    }
+
+    /**
+     * Reads the durability of the stack in a slot without creating a Slot, so it's cheap to call for every slot
+     * @param index the index of the slot
+     * @return the durability of the stack in the slot at the given index, or 0 if the slot isn't allocated
+     */
+    public int getDurabilityAt(int index) {
+        if (locks == null || locks.isHeldByCurrentThread()) {
+            syncCatalog();
+            return stateIn(index);
+        }
+        return locks.readSlot(index, this::stateIn);
+    }
+
+    /**
+     * @param index the index of a slot
+     * @return the item in the slot, or null if there is none or the slot isn't allocated
+     */
+    private Item itemIn(int index) {
+        return index >= 0 && index < storage.capacity() ? storage.getItem(index) : null;
+    }
+
+    /**
+     * @param index the index of a slot
+     * @return the number of items in the slot, or 0 if the slot isn't allocated
+     */
+    private int countIn(int index) {
+        return index >= 0 && index < storage.capacity() ? storage.getCount(index) : 0;
+    }
+
+    /**
+     * @param index the index of a slot
+     * @return the state of the stack in the slot, or 0 if the slot isn't allocated
+     */
+    private int stateIn(int index) {
+        return index >= 0 && index < storage.capacity() ? storage.getState(index) : 0;
+    }
+
+    /**
+     * Uses the item in a slot, which may wear down the stack in the slot
+     * @param index the index of the slot
+     */
+    void useSlot(int index) {
+        boolean locked = lockSlot(index);
+        try {
+            syncCatalog();
+            Item item = storage.getItem(index);
+            if (item != null) {
+                setSlotContents(index, item, storage.getCount(index), item.use(storage.getState(index)));
+            }
+        } finally {
+            unlockSlot(index, locked);
+        }
+    }
+
+    /**
+     * Sets the item in a slot, keeping the number of items. Used by the Slot view.
+     * @param index the index of the slot
+     * @param item the item to set
+     */
+    void setSlotItem(int index, Item item) {
+        boolean locked = lockSlot(index);
+        try {
+            setSlotContents(index, item, storage.getCount(index));
+        } finally {
+            unlockSlot(index, locked);
+        }
+    }
+
+    /**
+     * Sets the number of items in a slot, limited by the max stack of the item. Used by the Slot view.
+     * Done in one step, so another thread can't change the slot between reading and writing it.
+     * @param index the index of the slot
+     * @param count the new number of items, or the current number plus this if relative
+     * @param relative true to add count to the current number instead of replacing it
+     */
+    void setSlotCount(int index, int count, boolean relative) {
+        boolean locked = lockSlot(index);
+        try {
+            Item item = storage.getItem(index);
+            int newCount = relative ? storage.getCount(index) + count : count;
+            setSlotContents(index, item, Slot.limitCount(item, newCount));
+        } finally {
+            unlockSlot(index, locked);
+        }
+    }
+
+    /**
+     * Empties a slot. Used by the Slot view.
+     * @param index the index of the slot
+     */
+    void clearSlotContents(int index) {
+        boolean locked = lockSlot(index);
+        try {
+            setSlotContents(index, null, 0);
+        } finally {
+            unlockSlot(index, locked);
+        }
+    }
+
+    /**
+     * Sets the contents of a slot like {@link #setSlotContents(int, Item, int, int)}.
+     * The durability of the stack is kept if the slot already holds the same item, otherwise it's a new stack.
+     * @param index the index of the slot
+     * @param item the item to set, or null to remove the item
+     * @param count the number of items in the slot
+     */
+    void setSlotContents(int index, Item item, int count) {
+        Item current = storage.getItem(index);
+        boolean sameItem = item != null && current != null && current.getId() == item.getId();
+        setSlotContents(index, item, count, sameItem ? storage.getState(index) : newDurability(item));
+    }
+
+    /**
+     * @param item an item, or null
+     * @return the durability a new stack of the item starts with
+     */
+    static int newDurability(Item item) {
+        return item == null ? 0 : item.getMaxDurability();
+    }
+
+    /**
+     * Sets the contents of a slot exactly as they were reported to an InventoryListener, without checking the weight.
+     * Only meant for replaying recorded changes on a copy of the inventory from before the changes.
+     * @param index the index of the slot
+     * @param item the item in the slot, or null
+     * @param count the number of items in the slot
+     * @param durability the durability of the stack in the slot
+     * @throws IllegalArgumentException if the index is outside the inventory
+     */
+    public void restoreSlot(int index, Item item, int count, int durability) {
+        if (index < 0 || index >= MAX_SLOTS) {
+            throw new IllegalArgumentException("Slot index " + index + " is outside the inventory");
+        }
+
+        boolean locked = lockInventory();
+        try {
+            ensureCapacity(index + 1);
+            setSlotContents(index, item, count, durability);
+        } finally {
+            unlockInventory(locked);
+        }
+    }
+
+    /**
+     * Rearranges the unlocked slots exactly as they were reported to an InventoryListener after a sort,
+     * without sorting again. Only meant for replaying recorded changes on a copy of the inventory from before the changes.
+     * @param order the old index of every unlocked slot, in the new order
+     * @throws IllegalArgumentException if the order isn't a rearrangement of the unlocked slots
+     */
+    public void restoreOrder(int[] order) {
+        boolean locked = lockInventory();
+        try {
+            if (order.length > unlockedSlots) {
+                throw new IllegalArgumentException("The order has " + order.length + " slots, but only " + unlockedSlots + " are unlocked");
+            }
+            boolean[] seen = new boolean[order.length];
+            for (int index : order) {
+                if (index < 0 || index >= order.length || seen[index]) {
+                    throw new IllegalArgumentException("The order isn't a rearrangement of the slots");
+                }
+                seen[index] = true;
+            }
+
+            // Slots only move within the unlocked part, so the weight stays the same
+            int[] fullOrder = new int[storage.capacity()];
+            System.arraycopy(order, 0, fullOrder, 0, order.length);
+            for (int i = order.length; i < fullOrder.length; i++) {
+                fullOrder[i] = i;
+            }
+            storage.permute(fullOrder);
+            slotIndex.rebuild(storage);
+            changed();
+            verifyWeightUnits();
+        } finally {
+            unlockInventory(locked);
+        }
+    }
+
+    /**
+     * Tells the listener what a slot holds after a change, so the change can be replayed without being checked again
+     * @param index the index of the slot
      */
-    private final Slot[] slots = new Slot[MAX_SLOTS];
+    private void reportSlot(int index) {
+        listener.slotChanged(this, index, storage.getItem(index), storage.getCount(index), storage.getState(index));
+    }
+
     /**
-     * The number of slots that are unlocked. If this is less than the total length
-     * of the slots variable, only those fields will be available through the getter.
+     * Sets the contents of a slot directly, without any validation, and tells the listener about the change
+     * @param index the index of the slot
+     * @param item the item to set, or null to remove the item
+     * @param count the number of items in the slot
+     * @param durability the durability of the stack in the slot
      */
-    private int unlockedSlots;
+    void setSlotContents(int index, Item item, int count, int durability) {
+        applySlotContents(index, item, count, durability);
+
+        if (listener != null) {
+            listener.slotChanged(this, index, item, count, durability);
+        }
+    }
 
     /**
-     * Private empty constructor for Jackson to properly convert JSON to objects
+     * Sets the contents of a slot directly, without any validation, and keeps the running weight,
+     * item counts and slot index up to date.
+     * Every change to the contents of a slot goes through here. The listener isn't told, so the caller can tell it
+     * what kind of change it was.
+     * @param index the index of the slot
+     * @param item the item to set, or null to remove the item
+     * @param count the number of items in the slot
+     * @param durability the durability of the stack in the slot
      */
-    private Inventory() { }
+    private void applySlotContents(int index, Item item, int count, int durability) {
+        applySlotContents(index, item, count, durability, 0);
+    }
 
     /**
-     * The public constructor of an inventory
-     * @param name The name of the inventory
-     * @param unlockedSlots The number of unlocked slots
+     * Sets the contents of a slot like {@link #applySlotContents(int, Item, int, int)}, after weight has been
+     * reserved for the change. If other threads can change other slots at the same time, the running totals are
+     * locked while they are updated, and the reserved weight is settled with the weight the change actually added.
+     * @param index the index of the slot
+     * @param item the item to set, or null to remove the item
+     * @param count the number of items in the slot
+     * @param durability the durability of the stack in the slot
+     * @param reservedUnits the weight units reserved by reserveWeight()
      */
-    public Inventory(String name, int unlockedSlots) {
-        this.name = name;
-        this.unlockedSlots = unlockedSlots;
+    private void applySlotContents(int index, Item item, int count, int durability, long reservedUnits) {
+        if (locks == null || locks.isHeldByCurrentThread()) {
+            writeSlotContents(index, item, count, durability);
+            return;
+        }
 
-        // Initialize all slots, so it's not just null values
-        for (int i = 0; i < slots.length; i++) {
-            slots[i] = new Slot();
+        long units = 0;
+        if (index < unlockedSlots && item != null && count > 0) {
+            units = toWeightUnits(item.getWeight()) * count;
         }
-    }
+        units -= index < unlockedSlots ? slotWeightUnits(index) : 0;
 
-    /**
-     * @return the name of the inventory
-     */
-    public String getName() {
-        return name;
+        // Weight that wasn't reserved is added before the change, and reserved weight that wasn't used is released after
+        if (units > reservedUnits) {
+            locks.adjustReserved(units - reservedUnits);
+        }
+        locks.lockTotals();
+        try {
+            writeSlotContents(index, item, count, durability);
+        } finally {
+            locks.unlockTotals();
+        }
+        if (units < reservedUnits) {
+            locks.adjustReserved(units - reservedUnits);
+        }
     }
 
     /**
-     * Set the name of the inventory
-     * @param name new name of the inventory
+     * Does the work of applySlotContents(), without any locking
+     * @param index the index of the slot
+     * @param item the item to set, or null to remove the item
+     * @param count the number of items in the slot
+     * @param durability the durability of the stack in the slot
      */
-    public void setName(String name) {
-        this.name = name;
+    private void writeSlotContents(int index, Item item, int count, int durability) {
+        syncCatalog();
+        boolean unlocked = index < unlockedSlots;
+        if (unlocked) {
+            countSlot(index, -1);
+        }
+
+        slotIndex.remove(index, storage.getItem(index), storage.getCount(index));
+        storage.set(index, item, count);
+        storage.setState(index, durability);
+        slotIndex.add(index, item, count);
+        changed();
+
+        if (unlocked) {
+            countSlot(index, 1);
+        }
+
+        verifyWeightUnits();
     }
 
     /**
-     * @return the number of unlocked slots in this inventory
+     * Adds or removes the contents of a slot from the running weight and item counts
+     * @param index the index of the slot
+     * @param sign 1 to add the contents, or -1 to remove them
      */
-    public int getUnlockedSlots() {
-        return unlockedSlots;
+    private void countSlot(int index, int sign) {
+        Item item = storage.getItem(index);
+        int count = storage.getCount(index);
+        if (item == null || count <= 0) {
+            return;
+        }
+
+        weightUnits += sign * toWeightUnits(item.getWeight()) * count;
+        itemCounts.add(item.getId(), sign * count);
     }
 
     /**
-     * Sets the number of unlocked slots in this inventory
-     * Be careful with this, since items in slots outside of this range is unavailable.
-     * @param unlockedSlots the new number of unlocked slots
+     * Brings the slots up to date with the catalog of the ItemManager, if the items have been reloaded since the
+     * inventory last looked. Only the slots with items that were added or changed are touched. They get the new
+     * instance of their item, the running weight is corrected by the difference in weight, the slot index is updated
+     * for the new max stack, and a durability above the new max durability is lowered to it.
+     * Stacks larger than a lowered max stack are kept, so no items are lost, but they can't grow until they are below it.
+     * Called before the slots or running totals are used, so the inventory never mixes items from two versions.
      */
-    public void setUnlockedSlots(int unlockedSlots) {
-        this.unlockedSlots = Math.max(Math.min(unlockedSlots, slots.length), 0);
+    private void syncCatalog() {
+        if (locks != null && !locks.isHeldByCurrentThread()) {
+            // Other slots may be changing, so this is only done with the whole inventory locked, see lockShared()
+            return;
+        }
+
+        ItemCatalog current = ItemManager.getInstance().getCatalog();
+        if (current == catalog) {
+            return;
+        }
+
+        // Null means the catalog wasn't built from the old one, so every slot has to be checked
+        int[] changedIds = current.changedSince(catalog);
+        catalog = current;
+        if (changedIds != null && changedIds.length == 0) {
+            storage.useCatalog(current);
+            return;
+        }
+
+        // The items are collected before the storage moves to the new catalog, since compact storage looks them up there
+        int[] affected = new int[storage.capacity()];
+        Item[] previous = new Item[storage.capacity()];
+        int affectedCount = 0;
+        for (int i = 0; i < storage.capacity(); i++) {
+            Item item = storage.getItem(i);
+            if (item != null && (changedIds == null || Arrays.binarySearch(changedIds, item.getId()) >= 0)) {
+                affected[affectedCount] = i;
+                previous[affectedCount++] = item;
+            }
+        }
+        storage.useCatalog(current);
+
+        for (int i = 0; i < affectedCount; i++) {
+            int index = affected[i];
+            Item old = previous[i];
+            // Items that are no longer in the catalog are kept as they were
+            Item item = current.getItem(old.getId());
+            if (item == null) {
+                item = old;
+            }
+
+            int count = storage.getCount(index);
+            if (index < unlockedSlots && count > 0) {
+                weightUnits += (toWeightUnits(item.getWeight()) - toWeightUnits(old.getWeight())) * count;
+            }
+            slotIndex.remove(index, old, count);
+            storage.set(index, item, count);
+            slotIndex.add(index, item, count);
+
+            int durability = storage.getState(index);
+            if (item.getMaxDurability() > 0 && durability > item.getMaxDurability()) {
+                storage.setState(index, item.getMaxDurability());
+                changed();
+                if (listener != null) {
+                    listener.slotChanged(this, index, item, count, item.getMaxDurability());
+                }
+            }
+        }
+
+        verifyWeightUnits();
     }
 
     /**
-     * @return an array of slots of all unlocked slots, meaning from index 0 to the number of unlocked slots.
+     * Recalculates the running weight and item counts from scratch
      */
-    public Slot[] getSlots() {
-        // Note that this functions to is exclusive
-        return Arrays.copyOfRange(slots, 0, unlockedSlots);
+    private void recountUnlockedSlots() {
+        weightUnits = 0;
+        itemCounts.clear();
+        for (int i = 0; i < unlockedSlots; i++) {
+            countSlot(i, 1);
+        }
     }
 
     /**
-     * Get a specific slot from the inventory
-     * @param index the index of the slot
-     * @return a reference to the given slot
+     * @param index the index of a slot
      * @throws InvalidSlotException when index is either negative, or over `unlockedSlots`
      */
-    public Slot getSlot(int index) throws InvalidSlotException {
-        try {
-            return getSlots()[index];
-        } catch (IndexOutOfBoundsException e) {
+    void checkSlotIndex(int index) throws InvalidSlotException {
+        syncCatalog();
+        if (index < 0 || index >= unlockedSlots) {
             throw new InvalidSlotException();
         }
     }
@@ -125,32 +1075,51 @@ public class Inventory {
      * @throws InvalidSlotException if an invalid slot-index is given
      */
     public void insertToSlot(int slotIndex, Item item, int count) throws TooMuchWeightException, InvalidSlotException {
-        Slot slot = getSlot(slotIndex);
+        boolean locked = lockSlot(slotIndex);
+        try {
+            checkSlotIndex(slotIndex);
 
-        if (slot != null) {
-            if (getWeight() + (item.getWeight() * count) > MAX_WEIGHT) {
-                throw new TooMuchWeightException();
-            }
+            int newCount = Math.max(Math.min(count, item.getMaxStack()), 0);
+            long newSlotUnits = toWeightUnits(item.getWeight()) * newCount;
+            long reserved = reserveWeight(newSlotUnits - slotWeightUnits(slotIndex));
 
-            slot.setItem(item);
-            slot.setCount(count);
+            applySlotContents(slotIndex, item, newCount, newDurability(item), reserved);
+
+            if (listener != null) {
+                reportSlot(slotIndex);
+            }
+        } finally {
+            unlockSlot(slotIndex, locked);
         }
     }
 
     /**
-     * Increments the item-count in a given slot by one
+     * Increments the item-count in a given slot by one. Nothing happens if the slot is empty.
      * @param slotIndex the index of the slot
      * @throws TooMuchWeightException if the incremented item-slot exceeds the max weight of the inventory
      * @throws InvalidSlotException if an invalid slot-index is given
      */
     public void incrementSlot(int slotIndex) throws TooMuchWeightException, InvalidSlotException {
-        Slot slot = getSlot(slotIndex);
-        if (slot != null) {
-            if (getWeight() + slot.getItem().getWeight() > MAX_WEIGHT) {
-                throw new TooMuchWeightException();
+        boolean locked = lockSlot(slotIndex);
+        try {
+            checkSlotIndex(slotIndex);
+
+            // An empty slot has nothing to increment, and another thread may have just emptied it
+            Item item = storage.getItem(slotIndex);
+            if (item == null) {
+                return;
             }
+            long reserved = reserveWeight(toWeightUnits(item.getWeight()));
+
+            // A stack can be larger than the max stack if the item was reloaded with a lower one, and then it's left as it is
+            int count = storage.getCount(slotIndex);
+            applySlotContents(slotIndex, item, Math.min(count + 1, Math.max(item.getMaxStack(), count)), storage.getState(slotIndex), reserved);
 
-            slot.incrementCount();
+            if (listener != null) {
+                reportSlot(slotIndex);
+            }
+        } finally {
+            unlockSlot(slotIndex, locked);
         }
     }
 
@@ -161,9 +1130,19 @@ public class Inventory {
      * @throws InvalidSlotException if an invalid slot-index is given
      */
     public void decrementSlot(int slotIndex) throws InvalidSlotException {
-        Slot slot = getSlot(slotIndex);
-        if (slot != null) {
-            slot.decrementCount();
+        boolean locked = lockSlot(slotIndex);
+        try {
+            checkSlotIndex(slotIndex);
+
+            Item item = storage.getItem(slotIndex);
+            int newCount = item == null ? 0 : Math.max(storage.getCount(slotIndex) - 1, 0);
+            applySlotContents(slotIndex, item, newCount, storage.getState(slotIndex));
+
+            if (listener != null) {
+                reportSlot(slotIndex);
+            }
+        } finally {
+            unlockSlot(slotIndex, locked);
         }
     }
 
@@ -173,10 +1152,177 @@ public class Inventory {
      * @throws InvalidSlotException if an invalid slot-index is given
      */
     public void clearSlot(int slotIndex) throws InvalidSlotException {
-        Slot slot = getSlot(slotIndex);
-        if (slot != null) {
-            slot.clear();
+        boolean locked = lockSlot(slotIndex);
+        try {
+            checkSlotIndex(slotIndex);
+            applySlotContents(slotIndex, null, 0, 0);
+
+            if (listener != null) {
+                listener.slotCleared(this, slotIndex);
+            }
+        } finally {
+            unlockSlot(slotIndex, locked);
+        }
+    }
+
+    /**
+     * Adds items to the inventory without having to pick a slot.
+     * Stacks of the same item that aren't full are filled first, and then empty slots are used.
+     * Only as many items as the weight limit allows are added.
+     * @param item the item to add
+     * @param count the number of items to add
+     * @return the number of items that couldn't be added, either because of the weight or because there was no room
+     */
+    public int add(Item item, int count) {
+        if (item == null || count <= 0) {
+            return Math.max(count, 0);
+        }
+
+        boolean locked = lockInventory();
+        try {
+            return addToSlots(item, count);
+        } finally {
+            unlockInventory(locked);
+        }
+    }
+
+    /**
+     * Does the work of add(), once the inventory is locked if needed
+     * @param item the item to add
+     * @param count the number of items to add, more than 0
+     * @return the number of items that couldn't be added
+     */
+    private int addToSlots(Item item, int count) {
+        syncCatalog();
+
+        // Only add as many items as the weight allows, the rest is left over no matter what
+        int remaining = count;
+        long itemUnits = toWeightUnits(item.getWeight());
+        if (itemUnits > 0) {
+            long fits = Math.max((MAX_WEIGHT_UNITS - weightUnits) / itemUnits, 0);
+            remaining = (int) Math.min(remaining, fits);
+        }
+        int overweight = count - remaining;
+
+        // Fill up existing stacks of the same item first, but only stacks that aren't worn down
+        int from = 0;
+        while (remaining > 0) {
+            int index = slotIndex.nextPartialStack(item.getId(), from, unlockedSlots);
+            if (index < 0) {
+                break;
+            }
+            from = index + 1;
+
+            if (storage.getState(index) != newDurability(item)) {
+                continue;
+            }
+
+            Item stackItem = storage.getItem(index);
+            int stackCount = storage.getCount(index);
+            int added = Math.min(remaining, stackItem.getMaxStack() - stackCount);
+            if (added <= 0) {
+                break;
+            }
+
+            setSlotContents(index, stackItem, stackCount + added);
+            remaining -= added;
+        }
+
+        // Then start new stacks in empty slots
+        while (remaining > 0 && item.getMaxStack() > 0) {
+            int index = slotIndex.firstFreeSlot(unlockedSlots);
+            if (index < 0) {
+                break;
+            }
+
+            int added = Math.min(remaining, item.getMaxStack());
+            setSlotContents(index, item, added, newDurability(item));
+            remaining -= added;
+        }
+
+        return overweight + remaining;
+    }
+
+    /**
+     * Counts how many of an item there are in the unlocked slots. This is looked up, not counted, so it's cheap.
+     * @param itemId the id of the item
+     * @return the total number of the item across all stacks
+     */
+    public int countOf(int itemId) {
+        if (locks == null || locks.isHeldByCurrentThread()) {
+            return itemCounts.get(itemId);
+        }
+        return locks.readTotalsLocked(itemCounts::get, itemId);
+    }
+
+    /**
+     * Checks if the unlocked slots hold at least a given number of an item
+     * @param itemId the id of the item
+     * @param count the number of items needed
+     * @return true if there are at least count of the item
+     */
+    public boolean contains(int itemId, int count) {
+        return countOf(itemId) >= count;
+    }
+
+    /**
+     * Removes a number of an item from the unlocked slots, taking from as many stacks as needed.
+     * The last stacks are emptied first, so the first stacks stay full. Nothing is removed if
+     * there aren't enough of the item.
+     * @param itemId the id of the item
+     * @param count the number of items to remove
+     * @return true if the items were removed, false if there weren't enough
+     */
+    public boolean removeItems(int itemId, int count) {
+        if (count <= 0) {
+            return true;
+        }
+
+        boolean locked = lockInventory();
+        try {
+            return removeFromSlots(itemId, count);
+        } finally {
+            unlockInventory(locked);
+        }
+    }
+
+    /**
+     * Does the work of removeItems(), once the inventory is locked if needed
+     * @param itemId the id of the item
+     * @param count the number of items to remove, more than 0
+     * @return true if the items were removed, false if there weren't enough
+     */
+    private boolean removeFromSlots(int itemId, int count) {
+        if (!contains(itemId, count)) {
+            return false;
+        }
+        syncCatalog();
+
+        int remaining = count;
+        int index = unlockedSlots;
+        while (remaining > 0) {
+            index = slotIndex.lastStackBefore(itemId, index);
+
+            int stackCount = storage.getCount(index);
+            int removed = Math.min(remaining, stackCount);
+            if (removed == stackCount) {
+                setSlotContents(index, null, 0);
+            } else {
+                setSlotContents(index, storage.getItem(index), stackCount - removed);
+            }
+            remaining -= removed;
         }
+
+        return true;
+    }
+
+    /**
+     * Starts a batch of slot mutations, which are validated once and applied all at once when committed.
+     * Useful when many slots have to change together, e.g. when moving a lot of items.
+     * @return a new, empty batch for this inventory
+     */
+    public InventoryBatch batch() {
+        return new InventoryBatch(this);
     }
 
     /**
@@ -186,131 +1332,264 @@ public class Inventory {
      */
     @JsonIgnore
     public double getWeight() {
-        double weight = 0;
-        for (var slot : getSlots()) {
-            if (slot != null) {
-                weight += slot.getWeight();
-            }
+        return (double) getWeightUnits() / WEIGHT_SCALE;
+    }
+
+    /**
+     * @return the total weight of the inventory in weight units
+     */
+    long getWeightUnits() {
+        if (locks == null || locks.isHeldByCurrentThread()) {
+            syncCatalog();
+            return weightUnits;
         }
-        return weight;
+        return locks.readTotals(() -> weightUnits);
     }
 
     /**
-     * Sorts the inventory
-     * @param sort how to sort the slots
+     * @param index the index of the slot
+     * @return the weight of the slot at the given index in weight units
      */
-    public void sortInventory(SortValue sort) {
-        switch (sort) {
-            case SortValue.Id -> Arrays.sort(slots, new SortById());
-            case SortValue.Alphabetical -> Arrays.sort(slots, new SortByAlphabetical());
-            case SortValue.ItemType -> Arrays.sort(slots, new SortByItemType());
-            case SortValue.Weight -> Arrays.sort(slots, new SortByWeight());
+    private long slotWeightUnits(int index) {
+        Item item = storage.getItem(index);
+        int count = storage.getCount(index);
+        if (item == null || count <= 0) {
+            return 0;
         }
+
+        return toWeightUnits(item.getWeight()) * count;
     }
 
     /**
-     * Swaps two slots.
-     * This function doesn't care in which direction these are inputted, since the result is the same anyway.
-     * @param slot1 the first slot
-     * @param slot2 the second slot
+     * Sums the weight of all unlocked slots from scratch
+     * @return the total weight in weight units
      */
-    public void swapSlots(int slot1, int slot2) {
-        Slot tmp = slots[slot1];
-        slots[slot1] = slots[slot2];
-        slots[slot2] = tmp;
+    private long computeWeightUnits() {
+        long units = 0;
+        for (int i = 0; i < unlockedSlots; i++) {
+            units += slotWeightUnits(i);
+        }
+        return units;
     }
 
     /**
-     * Writes the inventory to a file.
-     * @param w a writer
-     * @throws IOException if something goes wrong in the conversion process.
+     * Compares the running weight total against a full recompute, if the debug check is enabled
+     * @throws IllegalStateException if the running total has drifted from the actual weight
      */
-    public void writeToFile(Writer w) throws IOException {
-        var mapper = new ObjectMapper();
-        mapper.writeValue(w, this);
+    private void verifyWeightUnits() {
+        if (!verifyWeight) {
+            return;
+        }
+
+        long actual = computeWeightUnits();
+        if (actual != weightUnits) {
+            throw new IllegalStateException("Running weight " + weightUnits + " does not match actual weight " + actual);
+        }
     }
 
     /**
-     * Creates an inventory from a json-file.
-     * @param file the file to read
-     * @return a new inventory instance
-     * @throws IOException if something goes wrong in the deserialization process
+     * Sorts the unlocked slots in the inventory. Empty slots are moved to the end, and locked slots are left alone.
+     * Several sort values can be given, e.g. item type, then weight, then name, where the later values
+     * decide the order of slots that are equal on the earlier ones.
+     * Nothing is moved if the slots are already sorted.
+     * @param sort how to sort the slots, in order of priority
      */
-    public static Inventory fromFile(File file) throws IOException {
-        var mapper = new ObjectMapper();
-        return mapper.readValue(file, Inventory.class);
+    public void sortInventory(SortValue... sort) {
+        boolean locked = lockInventory();
+        try {
+            sortSlots(sort);
+        } finally {
+            unlockInventory(locked);
+        }
     }
-}
 
-/**
- * A sorting implementation to sort slots by item id
- */
-class SortById implements Comparator<Slot> {
-    @Override
-    public int compare(Slot x, Slot y) {
-        if (x.isEmpty() && y.isEmpty()) {
-            return 0;
-        } else if (x.isEmpty()) {
-            return 1;
-        } else if (y.isEmpty()) {
-            return -1;
+    /**
+     * Does the work of sortInventory(), once the inventory is locked if needed
+     * @param sort how to sort the slots, in order of priority
+     */
+    private void sortSlots(SortValue[] sort) {
+        syncCatalog();
+        int[] order = SlotSorter.sortedOrder(storage, unlockedSlots, sort);
+        if (order == null) {
+            return;
         }
 
-        return x.getItem().getId() - y.getItem().getId();
+        // Slots only move within the unlocked part, so the weight stays the same
+        storage.permute(order);
+        slotIndex.rebuild(storage);
+        changed();
+        verifyWeightUnits();
+
+        if (listener != null) {
+            listener.sorted(this, Arrays.copyOf(order, unlockedSlots));
+        }
     }
-}
 
-/**
- * A sorting implementation to sort slots by item name
- */
-class SortByAlphabetical implements Comparator<Slot> {
-    @Override
-    public int compare(Slot x, Slot y) {
-        if (x.isEmpty() && y.isEmpty()) {
-            return 0;
-        } else if (x.isEmpty()) {
-            return 1;
-        } else if (y.isEmpty()) {
-            return -1;
+    /**
+     * Merges partial stacks of the same item in the unlocked slots, filling earlier stacks up to the max stack
+     * of the item first. Slots that are emptied by this are cleared.
+     * Done in a single pass, by remembering the earliest stack of every item that still has room.
+     * @return the number of slots that were freed
+     */
+    public int compact() {
+        boolean locked = lockInventory();
+        try {
+            return compactSlots();
+        } finally {
+            unlockInventory(locked);
+        }
+    }
+
+    /**
+     * Does the work of compact(), once the inventory is locked if needed
+     * @return the number of slots that were freed
+     */
+    private int compactSlots() {
+        syncCatalog();
+        // Item id to one more than the index of the earliest stack of that item that isn't full, since 0 means none
+        IntIntMap openStacks = new IntIntMap();
+        int freedSlots = 0;
+
+        for (int i = 0; i < unlockedSlots; i++) {
+            Item item = storage.getItem(i);
+            int count = storage.getCount(i);
+            if (item == null || count <= 0) {
+                continue;
+            }
+
+            // Stacks are only merged if they are worn down equally
+            int open = openStacks.get(item.getId()) - 1;
+            if (open >= 0 && storage.getState(open) == storage.getState(i)) {
+                int openCount = storage.getCount(open);
+                int moved = Math.min(count, item.getMaxStack() - openCount);
+                setSlotContents(open, storage.getItem(open), openCount + moved);
+                count -= moved;
+
+                if (openCount + moved >= item.getMaxStack()) {
+                    openStacks.put(item.getId(), 0);
+                }
+
+                if (count <= 0) {
+                    setSlotContents(i, null, 0);
+                    freedSlots++;
+                    continue;
+                }
+
+                setSlotContents(i, item, count);
+            }
+
+            if (count < item.getMaxStack() && openStacks.get(item.getId()) == 0) {
+                openStacks.put(item.getId(), i + 1);
+            }
         }
 
-        return x.getItem().getName().compareTo(y.getItem().getName());
+        return freedSlots;
     }
-}
 
-/**
- * An implementation to sort slots by item type
- */
-class SortByItemType implements Comparator<Slot> {
-    @Override
-    public int compare(Slot x, Slot y) {
-        if (x.isEmpty() && y.isEmpty()) {
-            return 0;
-        } else if (x.isEmpty()) {
-            return 1;
-        } else if (y.isEmpty()) {
-            return -1;
+    /**
+     * Swaps two slots.
+     * This function doesn't care in which direction these are inputted, since the result is the same anyway.
+     * Locked slots can be swapped with as well, so any slot an inventory can have is valid, not just the unlocked ones.
+     * @param slot1 the first slot
+     * @param slot2 the second slot
+     * @throws InvalidSlotException if a slot is outside what an inventory can have, checked before anything is changed
+     */
+    public void swapSlots(int slot1, int slot2) throws InvalidSlotException {
+        if (slot1 < 0 || slot1 >= MAX_SLOTS || slot2 < 0 || slot2 >= MAX_SLOTS) {
+            throw new InvalidSlotException();
         }
 
-        return x.getItem().getType().ordinal() - y.getItem().getType().ordinal();
+        // Swaps within the unlocked or locked part only lock the two slots, other swaps lock the whole inventory
+        boolean slotsLocked = lockSlots(slot1, slot2);
+        boolean inventoryLocked = !slotsLocked && lockInventory();
+        try {
+            if (slotsLocked) {
+                locks.lockTotals();
+            }
+            try {
+                swapSlotContents(slot1, slot2);
+            } finally {
+                if (slotsLocked) {
+                    locks.unlockTotals();
+                }
+            }
+
+            if (listener != null) {
+                listener.slotsSwapped(this, slot1, slot2);
+            }
+        } finally {
+            unlockSlots(slot1, slot2, slotsLocked);
+            unlockInventory(inventoryLocked);
+        }
     }
-}
 
-/**
- * An implementation to sort slots by slot weight
- */
-class SortByWeight implements Comparator<Slot> {
-    @Override
-    public int compare(Slot x, Slot y) {
-        if (x.isEmpty() && y.isEmpty()) {
-            return 0;
-        } else if (x.isEmpty()) {
-            return 1;
-        } else if (y.isEmpty()) {
-            return -1;
+    /**
+     * Does the work of swapSlots(), once the slots or the inventory are locked if needed
+     * @param slot1 the first slot
+     * @param slot2 the second slot
+     */
+    private void swapSlotContents(int slot1, int slot2) {
+        syncCatalog();
+        // Swapping with a locked slot that has never been unlocked needs it to be allocated
+        ensureCapacity(Math.max(slot1, slot2) + 1);
+
+        // A swap only changes the totals if a slot moves between the locked and unlocked part
+        boolean crossesLock = (slot1 < unlockedSlots) != (slot2 < unlockedSlots);
+        if (crossesLock) {
+            countSlot(slot1 < unlockedSlots ? slot1 : slot2, -1);
         }
 
-        return (int)(x.getWeight() * 100) - (int)(y.getWeight() * 100);
+        slotIndex.remove(slot1, storage.getItem(slot1), storage.getCount(slot1));
+        slotIndex.remove(slot2, storage.getItem(slot2), storage.getCount(slot2));
+        storage.swap(slot1, slot2);
+        changed();
+        slotIndex.add(slot1, storage.getItem(slot1), storage.getCount(slot1));
+        slotIndex.add(slot2, storage.getItem(slot2), storage.getCount(slot2));
+
+        if (crossesLock) {
+            countSlot(slot1 < unlockedSlots ? slot1 : slot2, 1);
+        }
+        verifyWeightUnits();
+    }
+
+    /**
+     * Writes the inventory to a file.
+     * @param w a writer
+     * @throws IOException if something goes wrong in the conversion process.
+     */
+    public void writeToFile(Writer w) throws IOException {
+        InventoryJsonCodec.write(w, this);
     }
-}
 
+    /**
+     * Writes the inventory to a file in the given format.
+     * @param out an output stream. It isn't closed.
+     * @param format the format to write
+     * @throws IOException if something goes wrong in the conversion process.
+     */
+    public void writeToFile(OutputStream out, InventoryFormat format) throws IOException {
+        switch (format) {
+            case Json -> out.write(InventoryJsonCodec.toBytes(this));
+            case Binary -> InventoryBinaryCodec.write(out, List.of(this));
+        }
+    }
+
+    /**
+     * Creates an inventory from a file, in either format.
+     * @param file the file to read
+     * @return a new inventory instance
+     * @throws IOException if something goes wrong in the deserialization process
+     */
+    public static Inventory fromFile(File file) throws IOException {
+        if (InventoryFormat.detect(file) == InventoryFormat.Binary) {
+            try (var in = new FileInputStream(file)) {
+                List<Inventory> inventories = InventoryBinaryCodec.read(in);
+                if (inventories.size() != 1) {
+                    throw new IOException("Expected a single inventory in " + file);
+                }
+                return inventories.get(0);
+            }
+        }
+        return InventoryJsonCodec.read(file);
+    }
+}
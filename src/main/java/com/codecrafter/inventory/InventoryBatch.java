@@ -0,0 +1,232 @@
+package com.codecrafter.inventory;
+
+import com.codecrafter.exceptions.InvalidSlotException;
+import com.codecrafter.exceptions.TooMuchWeightException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A batch of slot mutations that is validated once and then applied to an inventory all at once.
+ * Either every queued mutation is applied, or none of them are.
+ * Created with {@link Inventory#batch()}.
+ */
+public class InventoryBatch {
+    /**
+     * The different kinds of mutations that can be queued
+     */
+    private enum OperationType {
+        Insert,
+        Increment,
+        Decrement,
+        Clear,
+        Swap,
+    }
+
+    /**
+     * A single queued mutation
+     * @param type the kind of mutation
+     * @param slot the slot to mutate
+     * @param otherSlot the second slot of a swap
+     * @param item the item to insert
+     * @param count the number of items to insert
+     */
+    private record Operation(OperationType type, int slot, int otherSlot, Item item, int count) { }
+
+    /**
+     * The pending contents of a slot while the batch is being validated
+     */
+    private static class PendingSlot {
+        Item item;
+        int count;
+        int durability;
+
+        PendingSlot(Item item, int count, int durability) {
+            this.item = item;
+            this.count = count;
+            this.durability = durability;
+        }
+
+        /**
+         * @return the weight of the pending contents in weight units
+         */
+        long getWeightUnits() {
+            if (item == null || count <= 0) {
+                return 0;
+            }
+
+            return Inventory.toWeightUnits(item.getWeight()) * count;
+        }
+    }
+
+    /**
+     * The inventory the batch is applied to
+     */
+    private final Inventory inventory;
+    /**
+     * All queued mutations in the order they were added
+     */
+    private final List<Operation> operations = new ArrayList<>();
+
+    /**
+     * @param inventory the inventory to apply the batch to
+     */
+    InventoryBatch(Inventory inventory) {
+        this.inventory = inventory;
+    }
+
+    /**
+     * Queues an insert of an item into a slot, see {@link Inventory#insertToSlot(int, Item, int)}
+     * @param slotIndex the slot-index to insert the item into
+     * @param item the item to be inserted
+     * @param count the number of the given item to be inserted
+     * @return this batch
+     */
+    public InventoryBatch insert(int slotIndex, Item item, int count) {
+        operations.add(new Operation(OperationType.Insert, slotIndex, -1, item, count));
+        return this;
+    }
+
+    /**
+     * Queues an increment of a slot by one
+     * @param slotIndex the index of the slot
+     * @return this batch
+     */
+    public InventoryBatch increment(int slotIndex) {
+        operations.add(new Operation(OperationType.Increment, slotIndex, -1, null, 0));
+        return this;
+    }
+
+    /**
+     * Queues a decrement of a slot by one
+     * @param slotIndex the index of the slot
+     * @return this batch
+     */
+    public InventoryBatch decrement(int slotIndex) {
+        operations.add(new Operation(OperationType.Decrement, slotIndex, -1, null, 0));
+        return this;
+    }
+
+    /**
+     * Queues a clear of a slot
+     * @param slotIndex the index of the slot
+     * @return this batch
+     */
+    public InventoryBatch clear(int slotIndex) {
+        operations.add(new Operation(OperationType.Clear, slotIndex, -1, null, 0));
+        return this;
+    }
+
+    /**
+     * Queues a swap of the contents of two slots
+     * @param slot1 the first slot
+     * @param slot2 the second slot
+     * @return this batch
+     */
+    public InventoryBatch swap(int slot1, int slot2) {
+        operations.add(new Operation(OperationType.Swap, slot1, slot2, null, 0));
+        return this;
+    }
+
+    /**
+     * @return the number of queued mutations
+     */
+    public int size() {
+        return operations.size();
+    }
+
+    /**
+     * Validates the whole batch against the slot bounds and the max weight, and then applies it.
+     * If validation fails, the inventory is left untouched.
+     * @throws TooMuchWeightException if the batch makes the inventory heavier and it would exceed the max weight after the batch
+     * @throws InvalidSlotException if any of the queued mutations use an invalid slot-index
+     */
+    public void commit() throws TooMuchWeightException, InvalidSlotException {
+        // An inventory used by several threads is locked, so no slot changes between validating and applying
+        boolean locked = inventory.lockInventory();
+        try {
+            validateAndApply();
+        } finally {
+            inventory.unlockInventory(locked);
+        }
+    }
+
+    /**
+     * Does the work of commit(), once the inventory is locked if needed
+     * @throws TooMuchWeightException if the batch makes the inventory heavier and it would exceed the max weight after the batch
+     * @throws InvalidSlotException if any of the queued mutations use an invalid slot-index
+     */
+    private void validateAndApply() throws TooMuchWeightException, InvalidSlotException {
+        // Play all operations on a copy of the touched slots, so nothing is changed before we know it's valid
+        Map<Integer, PendingSlot> pending = new HashMap<>();
+        long startUnits = inventory.getWeightUnits();
+        long weightUnits = startUnits;
+
+        for (Operation operation : operations) {
+            PendingSlot slot = pendingSlot(pending, operation.slot());
+            weightUnits -= slot.getWeightUnits();
+
+            switch (operation.type()) {
+                case Insert -> {
+                    slot.item = operation.item();
+                    slot.count = Math.max(Math.min(operation.count(), operation.item().getMaxStack()), 0);
+                    slot.durability = Inventory.newDurability(operation.item());
+                }
+                case Increment -> {
+                    if (slot.item != null) {
+                        slot.count = Math.min(slot.count + 1, slot.item.getMaxStack());
+                    }
+                }
+                case Decrement -> {
+                    if (slot.item != null) {
+                        slot.count = Math.max(slot.count - 1, 0);
+                    }
+                }
+                case Clear -> {
+                    slot.item = null;
+                    slot.count = 0;
+                    slot.durability = 0;
+                }
+                case Swap -> {
+                    PendingSlot other = pendingSlot(pending, operation.otherSlot());
+                    pending.put(operation.slot(), other);
+                    pending.put(operation.otherSlot(), slot);
+                }
+            }
+
+            weightUnits += slot.getWeightUnits();
+        }
+
+        // An inventory that is already too heavy, e.g. after a catalog reload, can still be made lighter
+        if (weightUnits > Inventory.MAX_WEIGHT_UNITS && weightUnits > startUnits) {
+            throw new TooMuchWeightException();
+        }
+
+        // Everything is valid, so write the final state of every touched slot
+        for (var entry : pending.entrySet()) {
+            PendingSlot state = entry.getValue();
+            inventory.setSlotContents(entry.getKey(), state.item, state.item == null ? 0 : state.count, state.durability);
+        }
+
+        operations.clear();
+    }
+
+    /**
+     * Gets the pending state of a slot, copying it from the inventory the first time it's touched
+     * @param pending the pending slots touched so far
+     * @param slotIndex the index of the slot
+     * @return the pending state of the slot
+     * @throws InvalidSlotException if the slot-index is invalid
+     */
+    private PendingSlot pendingSlot(Map<Integer, PendingSlot> pending, int slotIndex) throws InvalidSlotException {
+        PendingSlot slot = pending.get(slotIndex);
+        if (slot == null) {
+            inventory.checkSlotIndex(slotIndex);
+            slot = new PendingSlot(inventory.getItemAt(slotIndex), inventory.getCountAt(slotIndex), inventory.getDurabilityAt(slotIndex));
+            pending.put(slotIndex, slot);
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,349 @@
+package com.codecrafter.inventory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes inventories in a compact binary format.
+ * <p>
+ * The file starts with the magic bytes "GINV" and a version byte. Then follows a string table with every
+ * id, name and item definition, so each of them is only written once, and a table of every item used in the slots.
+ * Last comes every inventory, where only the slots with items are written, each with the number of empty slots before it.
+ * All numbers are varints, so small numbers only take a single byte.
+ * <pre>
+ * file      = magic version strings items varint(inventory count) inventory*
+ * strings   = varint(count) (varint(byte length) utf-8 bytes)*
+ * items     = varint(count) (zigzag(item id) varint(string of the item as json))*
+ * inventory = ref(id) ref(name) varint(unlocked slots) varint(slot count) slot*
+ * slot      = varint(empty slots before it) varint(item) varint(count) varint(durability + 1, or 0 if not saved)
+ * </pre>
+ * A ref is the index in the string table plus one, or 0 for null.
+ * Item definitions are kept as JSON in the string table, since every type of item has its own fields.
+ */
+public final class InventoryBinaryCodec {
+    /**
+     * The first bytes of every binary file
+     */
+    static final byte[] MAGIC = {'G', 'I', 'N', 'V'};
+    /**
+     * The version of the format that's written. Files with a newer version can't be read.
+     */
+    private static final int VERSION = 1;
+    /**
+     * The longest string that's read, so a broken length doesn't allocate a huge array
+     */
+    private static final int MAX_STRING_LENGTH = 1 << 24;
+
+    private InventoryBinaryCodec() { }
+
+    /**
+     * @param start the first bytes of a file
+     * @return true if the bytes are the start of a binary file
+     */
+    static boolean hasMagic(byte[] start) {
+        return start.length >= MAGIC.length && Arrays.equals(start, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    /**
+     * Writes inventories in the binary format
+     * @param out where to write the inventories. It isn't closed.
+     * @param inventories the inventories to write
+     * @throws IOException if the inventories couldn't be written
+     */
+    public static void write(OutputStream out, Collection<Inventory> inventories) throws IOException {
+        // Inventories used by several threads are locked for the whole write, so the tables match the slots that are written
+        List<Inventory> locked = new ArrayList<>();
+        try {
+            for (Inventory inventory : inventories) {
+                if (inventory.lockInventory()) {
+                    locked.add(inventory);
+                }
+            }
+            writeInventories(out, inventories);
+        } finally {
+            for (Inventory inventory : locked) {
+                inventory.unlockInventory(true);
+            }
+        }
+    }
+
+    /**
+     * Does the work of write(), once the inventories are locked if needed
+     * @param out where to write the inventories
+     * @param inventories the inventories to write
+     * @throws IOException if the inventories couldn't be written
+     */
+    private static void writeInventories(OutputStream out, Collection<Inventory> inventories) throws IOException {
+        // Every string and item is collected first, so the tables can be written before the inventories
+        Map<String, Integer> strings = new HashMap<>();
+        List<String> stringTable = new ArrayList<>();
+        Map<Item, Integer> items = new IdentityHashMap<>();
+        List<Item> itemTable = new ArrayList<>();
+        List<Integer> itemDefinitions = new ArrayList<>();
+
+        for (Inventory inventory : inventories) {
+            addString(strings, stringTable, inventory.getId());
+            addString(strings, stringTable, inventory.getName());
+            for (int i = 0; i < inventory.getCapacity(); i++) {
+                Item item = inventory.getItemAt(i);
+                if (item != null && inventory.getCountAt(i) > 0 && !items.containsKey(item)) {
+                    items.put(item, itemTable.size());
+                    itemTable.add(item);
+                    itemDefinitions.add(addString(strings, stringTable, JsonMappers.ITEM_WRITER.writeValueAsString(item)));
+                }
+            }
+        }
+
+        var buffer = new ByteArrayOutputStream();
+        buffer.write(MAGIC);
+        buffer.write(VERSION);
+
+        writeVarint(buffer, stringTable.size());
+        for (String string : stringTable) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeVarint(buffer, bytes.length);
+            buffer.write(bytes);
+        }
+
+        writeVarint(buffer, itemTable.size());
+        for (int i = 0; i < itemTable.size(); i++) {
+            writeVarint(buffer, zigzag(itemTable.get(i).getId()));
+            writeVarint(buffer, itemDefinitions.get(i));
+        }
+
+        writeVarint(buffer, inventories.size());
+        for (Inventory inventory : inventories) {
+            writeInventory(buffer, inventory, strings, items);
+        }
+
+        buffer.writeTo(out);
+    }
+
+    /**
+     * Writes a single inventory record
+     * @param out where to write the record
+     * @param inventory the inventory to write
+     * @param strings the index of every string in the string table
+     * @param items the index of every item in the item table
+     * @throws IOException if the record couldn't be written
+     */
+    private static void writeInventory(OutputStream out, Inventory inventory, Map<String, Integer> strings,
+                                       Map<Item, Integer> items) throws IOException {
+        writeVarint(out, ref(strings, inventory.getId()));
+        writeVarint(out, ref(strings, inventory.getName()));
+        writeVarint(out, inventory.getUnlockedSlots());
+
+        int occupied = 0;
+        for (int i = 0; i < inventory.getCapacity(); i++) {
+            if (inventory.getItemAt(i) != null && inventory.getCountAt(i) > 0) {
+                occupied++;
+            }
+        }
+        writeVarint(out, occupied);
+
+        int next = 0;
+        for (int i = 0; i < inventory.getCapacity(); i++) {
+            Item item = inventory.getItemAt(i);
+            int count = inventory.getCountAt(i);
+            if (item == null || count <= 0) {
+                continue;
+            }
+
+            writeVarint(out, i - next);
+            writeVarint(out, items.get(item));
+            writeVarint(out, count);
+            writeVarint(out, item.getMaxDurability() != 0 ? inventory.getDurabilityAt(i) + 1 : 0);
+            next = i + 1;
+        }
+    }
+
+    /**
+     * Reads every inventory in the binary format
+     * @param in where to read the inventories from. It isn't closed.
+     * @return the inventories, in the order they were written
+     * @throws IOException if the inventories couldn't be read, or aren't in the binary format
+     */
+    public static List<Inventory> read(InputStream in) throws IOException {
+        in = new BufferedInputStream(in);
+        if (!hasMagic(in.readNBytes(MAGIC.length))) {
+            throw new IOException("Not a binary inventory file");
+        }
+        int version = in.read();
+        if (version < 0 || version > VERSION) {
+            throw new IOException("Unsupported binary inventory version " + version);
+        }
+
+        String[] strings = new String[readVarint(in)];
+        for (int i = 0; i < strings.length; i++) {
+            int length = readVarint(in);
+            if (length > MAX_STRING_LENGTH) {
+                throw new IOException("String in binary inventory file is too long");
+            }
+            byte[] bytes = in.readNBytes(length);
+            if (bytes.length != length) {
+                throw new EOFException();
+            }
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // Every item is only converted once, no matter how many slots it's in
+        Item[] items = new Item[readVarint(in)];
+        for (int i = 0; i < items.length; i++) {
+            int id = unzigzag(readRawVarint(in));
+            Item item = JsonMappers.ITEM_READER.readValue(string(strings, readVarint(in) + 1));
+            if (item == null || item.getId() != id) {
+                throw new IOException("Item " + id + " in binary inventory file doesn't match its definition");
+            }
+            items[i] = item;
+        }
+
+        int count = readVarint(in);
+        List<Inventory> inventories = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            inventories.add(readInventory(in, strings, items));
+        }
+        return inventories;
+    }
+
+    /**
+     * Reads a single inventory record
+     * @param in where to read the record from
+     * @param strings the string table
+     * @param items the item table
+     * @return the inventory
+     * @throws IOException if the record is broken
+     */
+    private static Inventory readInventory(InputStream in, String[] strings, Item[] items) throws IOException {
+        Inventory inventory = new Inventory();
+        inventory.setId(string(strings, readVarint(in)));
+        inventory.setName(string(strings, readVarint(in)));
+        inventory.setUnlockedSlots(readVarint(in));
+
+        inventory.startReadingSlots();
+        int occupied = readVarint(in);
+        int index = 0;
+        for (int i = 0; i < occupied; i++) {
+            index += readVarint(in);
+            int itemIndex = readVarint(in);
+            if (itemIndex >= items.length) {
+                throw new IOException("Unknown item " + itemIndex + " in binary inventory file");
+            }
+            Item item = items[itemIndex];
+            int count = readVarint(in);
+            int durability = readVarint(in) - 1;
+
+            try {
+                inventory.readSlot(index, item, count, durability);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage());
+            }
+            index++;
+        }
+        inventory.finishReadingSlots();
+
+        return inventory;
+    }
+
+    /**
+     * Adds a string to the string table, if it isn't there already
+     * @return the index of the string in the table, or -1 for null
+     */
+    private static int addString(Map<String, Integer> strings, List<String> table, String string) {
+        if (string == null) {
+            return -1;
+        }
+        return strings.computeIfAbsent(string, s -> {
+            table.add(s);
+            return table.size() - 1;
+        });
+    }
+
+    /**
+     * @return the ref of a string, meaning its index in the table plus one, or 0 for null
+     */
+    private static int ref(Map<String, Integer> strings, String string) {
+        return string == null ? 0 : strings.get(string) + 1;
+    }
+
+    /**
+     * @return the string a ref points to, or null for 0
+     * @throws IOException if the ref is outside the table
+     */
+    private static String string(String[] strings, int ref) throws IOException {
+        if (ref == 0) {
+            return null;
+        }
+        if (ref > strings.length) {
+            throw new IOException("Unknown string " + ref + " in binary inventory file");
+        }
+        return strings[ref - 1];
+    }
+
+    /**
+     * Writes a number that isn't negative, using 7 bits per byte, with the high bit set when more bytes follow
+     */
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Reads a number written by writeVarint(), which must not be negative
+     * @throws IOException if the stream ends, or the number is too large
+     */
+    private static int readVarint(InputStream in) throws IOException {
+        int value = readRawVarint(in);
+        if (value < 0) {
+            throw new IOException("Number in binary inventory file is too large");
+        }
+        return value;
+    }
+
+    /**
+     * Reads all 32 bits of a number written by writeVarint(), e.g. a zigzag number
+     * @throws IOException if the stream ends, or the number is longer than 32 bits
+     */
+    private static int readRawVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Number in binary inventory file is too large");
+    }
+
+    /**
+     * Maps a number that can be negative to one that can't, so small negative numbers stay small
+     */
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * Reverses zigzag()
+     */
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,32 @@
+package com.codecrafter.inventory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Defines how inventories are written to files. Reading always finds out the format by itself.
+ */
+public enum InventoryFormat {
+    /**
+     * Readable JSON, with the full item in every slot
+     */
+    Json,
+
+    /**
+     * A compact binary format, where every item and name is only written once, see {@link InventoryBinaryCodec}
+     */
+    Binary;
+
+    /**
+     * Finds out which format a file is written in, by looking at the start of it
+     * @param file the file to look at
+     * @return the format of the file. Empty and unknown files are treated as JSON.
+     * @throws IOException if the file couldn't be read
+     */
+    public static InventoryFormat detect(File file) throws IOException {
+        try (var in = new FileInputStream(file)) {
+            return InventoryBinaryCodec.hasMagic(in.readNBytes(InventoryBinaryCodec.MAGIC.length)) ? Binary : Json;
+        }
+    }
+}
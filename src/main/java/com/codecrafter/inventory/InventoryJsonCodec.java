@@ -0,0 +1,267 @@
+package com.codecrafter.inventory;
+
+import com.codecrafter.items.ItemManager;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Reads and writes inventories as JSON with Jackson's streaming parser and generator, instead of data binding.
+ * The slots are read straight into the storage of the inventory, without creating a Slot for each of them,
+ * and empty slots in older files are skipped without creating anything.
+ * The JSON is the same as what data binding reads and writes. Only the items themselves are still converted with data
+ * binding, since every type of item has its own fields.
+ * With ItemPersistence.ById, slots only hold the id of their item, so no items are converted at all.
+ */
+public final class InventoryJsonCodec {
+    /**
+     * How items are written when nothing else is given.
+     * Can be set from the start with -Dinventory.items=ById
+     */
+    private static ItemPersistence defaultItemPersistence = ItemPersistence.valueOf(System.getProperty("inventory.items", ItemPersistence.Embedded.name()));
+
+    private InventoryJsonCodec() { }
+
+    /**
+     * Sets how items are written when nothing else is given
+     * @param itemPersistence how to write the item in every slot
+     */
+    public static void setDefaultItemPersistence(ItemPersistence itemPersistence) {
+        defaultItemPersistence = itemPersistence;
+    }
+
+    /**
+     * Reads an inventory from a file
+     * @param file the file to read
+     * @return the inventory in the file
+     * @throws IOException if the file couldn't be read, or isn't an inventory
+     */
+    public static Inventory read(File file) throws IOException {
+        try (JsonParser parser = JsonMappers.factory().createParser(file)) {
+            return read(parser);
+        }
+    }
+
+    /**
+     * Reads an inventory from json bytes
+     * @param json the json of the inventory
+     * @return the inventory
+     * @throws IOException if the json isn't an inventory
+     */
+    public static Inventory read(byte[] json) throws IOException {
+        try (JsonParser parser = JsonMappers.factory().createParser(json)) {
+            return read(parser);
+        }
+    }
+
+    /**
+     * Reads an inventory object. Afterwards the parser is at the end of the object.
+     * @param parser a parser at the start of the object, or before it
+     * @return the inventory
+     * @throws IOException if the json isn't an inventory
+     */
+    public static Inventory read(JsonParser parser) throws IOException {
+        if (parser.currentToken() == null) {
+            parser.nextToken();
+        }
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected an inventory object");
+        }
+
+        Inventory inventory = new Inventory();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "id" -> inventory.setId(parser.getValueAsString());
+                case "name" -> inventory.setName(parser.getValueAsString());
+                case "unlockedSlots" -> inventory.setUnlockedSlots(parser.getValueAsInt());
+                case "slots" -> {
+                    if (value == JsonToken.START_ARRAY) {
+                        readSlots(parser, inventory);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                default -> parser.skipChildren();
+            }
+        }
+
+        if (parser.currentToken() != JsonToken.END_OBJECT) {
+            throw new JsonParseException(parser, "Expected the end of the inventory");
+        }
+        return inventory;
+    }
+
+    /**
+     * Reads the slot array into the inventory
+     * @param parser a parser at the start of the array
+     * @param inventory the inventory to read the slots into
+     * @throws IOException if a slot is formatted incorrectly
+     */
+    private static void readSlots(JsonParser parser, Inventory inventory) throws IOException {
+        inventory.startReadingSlots();
+
+        int position = 0;
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token == JsonToken.START_OBJECT) {
+                readSlot(parser, inventory, position);
+            } else if (token != JsonToken.VALUE_NULL) {
+                throw new JsonParseException(parser, "Expected a slot object");
+            }
+            position++;
+        }
+
+        inventory.finishReadingSlots();
+    }
+
+    /**
+     * Reads a single slot object into the inventory. Empty slots are skipped.
+     * @param parser a parser at the start of the slot
+     * @param inventory the inventory to read the slot into
+     * @param position the position of the slot in the array, used as the index when the slot has none
+     * @throws IOException if the slot is formatted incorrectly, or its item id isn't known by the ItemManager
+     */
+    private static void readSlot(JsonParser parser, Inventory inventory, int position) throws IOException {
+        int index = -1;
+        Item item = null;
+        int itemId = 0;
+        boolean hasItemId = false;
+        int count = 0;
+        int durability = -1;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "index" -> index = parser.getValueAsInt(-1);
+                case "item" -> item = value == JsonToken.START_OBJECT ? JsonMappers.ITEM_READER.readValue(parser) : null;
+                case "itemId" -> {
+                    itemId = parser.getValueAsInt();
+                    hasItemId = value == JsonToken.VALUE_NUMBER_INT;
+                }
+                case "count" -> count = parser.getValueAsInt();
+                case "durability" -> durability = value == JsonToken.VALUE_NULL ? -1 : parser.getValueAsInt();
+                default -> parser.skipChildren();
+            }
+        }
+
+        if (item == null && hasItemId && count > 0) {
+            item = ItemManager.getInstance().getItem(itemId);
+            if (item == null) {
+                // Skipping the slot would lose its items on the next save, so the inventory isn't read at all
+                throw new JsonParseException(parser, "Unknown item id " + itemId);
+            }
+        }
+        if (item == null || count <= 0) {
+            return;
+        }
+        try {
+            inventory.readSlot(index >= 0 ? index : position, item, count, durability);
+        } catch (IllegalArgumentException e) {
+            throw new JsonParseException(parser, e.getMessage());
+        }
+    }
+
+    /**
+     * Writes an inventory to a writer
+     * @param writer where to write the json
+     * @param inventory the inventory to write
+     * @throws IOException if the json couldn't be written
+     */
+    public static void write(Writer writer, Inventory inventory) throws IOException {
+        try (JsonGenerator generator = JsonMappers.factory().createGenerator(writer)) {
+            write(generator, inventory, defaultItemPersistence);
+        }
+    }
+
+    /**
+     * @param inventory the inventory to write
+     * @return the json of the inventory
+     * @throws IOException if the json couldn't be written
+     */
+    public static byte[] toBytes(Inventory inventory) throws IOException {
+        var buffer = new ByteArrayOutputStream();
+        try (JsonGenerator generator = JsonMappers.factory().createGenerator(buffer)) {
+            write(generator, inventory, defaultItemPersistence);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Writes an inventory object, with only the slots that aren't empty, and items written the default way
+     * @param generator where to write the json
+     * @param inventory the inventory to write
+     * @throws IOException if the json couldn't be written
+     */
+    public static void write(JsonGenerator generator, Inventory inventory) throws IOException {
+        write(generator, inventory, defaultItemPersistence);
+    }
+
+    /**
+     * Writes an inventory object, with only the slots that aren't empty
+     * @param generator where to write the json
+     * @param inventory the inventory to write
+     * @param itemPersistence how to write the item in every slot
+     * @throws IOException if the json couldn't be written
+     */
+    public static void write(JsonGenerator generator, Inventory inventory, ItemPersistence itemPersistence) throws IOException {
+        // An inventory used by several threads is locked, so every slot is written as it was at the same time
+        boolean locked = inventory.lockInventory();
+        try {
+            writeInventory(generator, inventory, itemPersistence);
+        } finally {
+            inventory.unlockInventory(locked);
+        }
+    }
+
+    /**
+     * Does the work of write(), once the inventory is locked if needed
+     * @param generator where to write the json
+     * @param inventory the inventory to write
+     * @param itemPersistence how to write the item in every slot
+     * @throws IOException if the json couldn't be written
+     */
+    private static void writeInventory(JsonGenerator generator, Inventory inventory, ItemPersistence itemPersistence) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("id", inventory.getId());
+        generator.writeStringField("name", inventory.getName());
+        generator.writeNumberField("unlockedSlots", inventory.getUnlockedSlots());
+
+        generator.writeArrayFieldStart("slots");
+        // Locked slots are written as well, so the items in them aren't lost
+        int capacity = inventory.getCapacity();
+        for (int i = 0; i < capacity; i++) {
+            Item item = inventory.getItemAt(i);
+            int count = inventory.getCountAt(i);
+            if (item == null || count <= 0) {
+                continue;
+            }
+
+            generator.writeStartObject();
+            generator.writeNumberField("index", i);
+            // Only the catalog's own item is written by id. Any other item with that id is written in full, so it isn't lost
+            if (itemPersistence == ItemPersistence.ById && ItemManager.getInstance().getItem(item.getId()) == item) {
+                generator.writeNumberField("itemId", item.getId());
+            } else {
+                generator.writeFieldName("item");
+                JsonMappers.ITEM_WRITER.writeValue(generator, item);
+            }
+            generator.writeNumberField("count", count);
+            if (item.getMaxDurability() != 0) {
+                generator.writeNumberField("durability", inventory.getDurabilityAt(i));
+            }
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+
+        generator.writeEndObject();
+    }
+}
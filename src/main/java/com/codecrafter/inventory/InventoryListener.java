@@ -0,0 +1,47 @@
+package com.codecrafter.inventory;
+
+/**
+ * Gets told about every change made to an inventory, after the change has been made.
+ * Changes that fail, e.g. because of the weight, aren't reported.
+ * Used to record the changes, so they can be made again on a saved copy of the inventory.
+ * For inventories in ConcurrencyMode.Striped, changes to different slots are reported from several threads at once,
+ * but the changes to one slot are always reported in the order they were made.
+ */
+public interface InventoryListener {
+    /**
+     * A slot was changed with clearSlot()
+     */
+    void slotCleared(Inventory inventory, int slot);
+
+    /**
+     * Two slots were swapped with swapSlots()
+     */
+    void slotsSwapped(Inventory inventory, int slot1, int slot2);
+
+    /**
+     * The inventory was sorted with sortInventory(). Not reported if the slots were already sorted.
+     * The resulting order is given instead of what was sorted by, since sorting again may give another order
+     * once the items have been reloaded.
+     * @param order the old index of every unlocked slot, in the new order
+     */
+    void sorted(Inventory inventory, int[] order);
+
+    /**
+     * The inventory was renamed
+     */
+    void renamed(Inventory inventory, String name);
+
+    /**
+     * The number of unlocked slots was changed
+     */
+    void unlockedSlotsChanged(Inventory inventory, int unlockedSlots);
+
+    /**
+     * The contents of a slot were changed in any other way, e.g. by insertToSlot(), incrementSlot(), add(), a batch
+     * or using an item. The new contents are given, so replaying the change doesn't depend on the weight or the items.
+     * @param item the item now in the slot, or null
+     * @param count the number of items now in the slot
+     * @param durability the durability of the stack now in the slot
+     */
+    void slotChanged(Inventory inventory, int slot, Item item, int count, int durability);
+}
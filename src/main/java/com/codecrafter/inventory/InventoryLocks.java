@@ -0,0 +1,300 @@
+package com.codecrafter.inventory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongSupplier;
+
+/**
+ * The locks of an inventory that can be used by several threads at once, see ConcurrencyMode.Striped.
+ * <p>
+ * The inventory lock is held shared by every change to a single slot, and exclusively by everything that changes
+ * many slots or the layout of the storage, like adding items, sorting or unlocking slots. Every slot belongs to one
+ * of a fixed number of stripes, so changes to different slots only wait for each other while the running totals
+ * are updated, which is done under the totals lock.
+ * <p>
+ * The weight limit can't be checked against the running weight when other slots may change at the same time, so
+ * a change that adds weight first reserves it. The reserved weight is the running weight plus every reservation
+ * that isn't applied yet, so it's never less than the actual weight, and a reservation that would take it over the
+ * limit is refused.
+ * <p>
+ * Locks are always taken in the order inventory, stripe, totals. Reads try without locking first, and only lock
+ * if a change overlapped them.
+ */
+class InventoryLocks {
+    /**
+     * The number of stripes the slots are spread over
+     */
+    static final int STRIPES = 16;
+
+    /**
+     * Held shared by changes to single slots, and exclusively by changes to the whole inventory
+     */
+    private final StampedLock inventory = new StampedLock();
+    /**
+     * The locks of the stripes. Slot i belongs to stripe i % STRIPES.
+     */
+    private final StampedLock[] stripes = new StampedLock[STRIPES];
+    /**
+     * Guards the running totals, the slot index and the version, which every change to a slot updates
+     */
+    private final StampedLock totals = new StampedLock();
+    /**
+     * The running weight plus every reservation that hasn't been applied yet, in weight units
+     */
+    private final AtomicLong reservedUnits = new AtomicLong();
+    /**
+     * The thread that holds the inventory exclusively, if any
+     */
+    private volatile Thread owner;
+
+    InventoryLocks() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new StampedLock();
+        }
+    }
+
+    /**
+     * @param index the index of a slot
+     * @return the lock of the stripe the slot belongs to
+     */
+    private StampedLock stripe(int index) {
+        return stripes[Math.floorMod(index, STRIPES)];
+    }
+
+    /**
+     * @return true if the current thread holds the inventory exclusively, so it doesn't have to lock anything else
+     */
+    boolean isHeldByCurrentThread() {
+        return owner == Thread.currentThread();
+    }
+
+    /**
+     * Locks the whole inventory, waiting for every change to a slot to finish
+     */
+    void lockAll() {
+        inventory.writeLock();
+        totals.writeLock();
+        owner = Thread.currentThread();
+    }
+
+    /**
+     * Unlocks the whole inventory
+     * @param weightUnits the running weight after the changes, which every later reservation starts from
+     */
+    void unlockAll(long weightUnits) {
+        resetReserved(weightUnits);
+        owner = null;
+        totals.tryUnlockWrite();
+        inventory.tryUnlockWrite();
+    }
+
+    /**
+     * Starts the reserved weight over from the running weight, when nothing can be reserved at the same time
+     * @param weightUnits the running weight in weight units
+     */
+    void resetReserved(long weightUnits) {
+        reservedUnits.set(weightUnits);
+    }
+
+    /**
+     * Holds the inventory shared, so it can't be locked as a whole, while a slot is being changed
+     */
+    void lockShared() {
+        inventory.readLock();
+    }
+
+    /**
+     * Releases the shared hold from lockShared()
+     */
+    void unlockShared() {
+        inventory.tryUnlockRead();
+    }
+
+    /**
+     * Locks the stripe of a slot. The inventory must be held shared.
+     * @param index the index of the slot
+     */
+    void lockStripe(int index) {
+        stripe(index).writeLock();
+    }
+
+    /**
+     * Locks the stripes of two slots, in a fixed order so two threads can't wait for each other.
+     * The inventory must be held shared.
+     * @param index1 the index of a slot
+     * @param index2 the index of another slot
+     */
+    void lockStripes(int index1, int index2) {
+        int first = Math.min(Math.floorMod(index1, STRIPES), Math.floorMod(index2, STRIPES));
+        int second = Math.max(Math.floorMod(index1, STRIPES), Math.floorMod(index2, STRIPES));
+        stripes[first].writeLock();
+        if (second != first) {
+            stripes[second].writeLock();
+        }
+    }
+
+    /**
+     * Unlocks the stripe of a slot
+     * @param index the index of the slot
+     */
+    void unlockStripe(int index) {
+        stripe(index).tryUnlockWrite();
+    }
+
+    /**
+     * Unlocks the stripes of two slots
+     * @param index1 the index of a slot
+     * @param index2 the index of another slot
+     */
+    void unlockStripes(int index1, int index2) {
+        stripe(index1).tryUnlockWrite();
+        if (stripe(index2) != stripe(index1)) {
+            stripe(index2).tryUnlockWrite();
+        }
+    }
+
+    /**
+     * Locks the running totals, while a slot applies its change to them
+     */
+    void lockTotals() {
+        totals.writeLock();
+    }
+
+    /**
+     * Unlocks the running totals
+     */
+    void unlockTotals() {
+        totals.tryUnlockWrite();
+    }
+
+    /**
+     * Reserves weight for a change to a slot, unless it would take the reserved weight over the limit.
+     * Removing weight is never reserved, since the weight isn't gone until the change is applied.
+     * @param units the weight the change adds, in weight units
+     * @param maxUnits the weight limit in weight units
+     * @return true if the weight was reserved, or nothing had to be reserved
+     */
+    boolean reserve(long units, long maxUnits) {
+        while (true) {
+            long reserved = reservedUnits.get();
+            if (reserved + units > maxUnits) {
+                return false;
+            }
+            if (units <= 0 || reservedUnits.compareAndSet(reserved, reserved + units)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Adds to or removes from the reserved weight, when a change turned out to add more or less than was reserved.
+     * More weight must be added before the change is applied, and less weight released after, so the reserved weight
+     * is never less than the actual weight.
+     * @param units the weight units to add, or negative to release them
+     */
+    void adjustReserved(long units) {
+        reservedUnits.addAndGet(units);
+    }
+
+    /**
+     * Reads a number from a slot without locking, unless a change to the slot or the inventory overlaps the read
+     * @param index the index of the slot
+     * @param reader reads the number from the slot at the given index
+     * @return the number that was read
+     */
+    int readSlot(int index, IntUnaryOperator reader) {
+        StampedLock stripe = stripe(index);
+        long inventoryStamp = inventory.tryOptimisticRead();
+        long stripeStamp = stripe.tryOptimisticRead();
+        if (inventoryStamp != 0 && stripeStamp != 0) {
+            try {
+                int value = reader.applyAsInt(index);
+                if (inventory.validate(inventoryStamp) && stripe.validate(stripeStamp)) {
+                    return value;
+                }
+            } catch (RuntimeException e) {
+                // The storage changed under the read, e.g. by growing, so it's read again with the locks held
+            }
+        }
+
+        inventory.readLock();
+        stripe.readLock();
+        try {
+            return reader.applyAsInt(index);
+        } finally {
+            stripe.tryUnlockRead();
+            inventory.tryUnlockRead();
+        }
+    }
+
+    /**
+     * Reads an object from a slot without locking, unless a change to the slot or the inventory overlaps the read
+     * @param index the index of the slot
+     * @param reader reads the object from the slot at the given index
+     * @return the object that was read
+     */
+    <T> T readSlotObject(int index, IntFunction<T> reader) {
+        StampedLock stripe = stripe(index);
+        long inventoryStamp = inventory.tryOptimisticRead();
+        long stripeStamp = stripe.tryOptimisticRead();
+        if (inventoryStamp != 0 && stripeStamp != 0) {
+            try {
+                T value = reader.apply(index);
+                if (inventory.validate(inventoryStamp) && stripe.validate(stripeStamp)) {
+                    return value;
+                }
+            } catch (RuntimeException e) {
+                // The storage changed under the read, e.g. by growing, so it's read again with the locks held
+            }
+        }
+
+        inventory.readLock();
+        stripe.readLock();
+        try {
+            return reader.apply(index);
+        } finally {
+            stripe.tryUnlockRead();
+            inventory.tryUnlockRead();
+        }
+    }
+
+    /**
+     * Reads one of the running totals without locking, unless a change overlaps the read
+     * @param reader reads the total
+     * @return the total that was read
+     */
+    long readTotals(LongSupplier reader) {
+        long stamp = totals.tryOptimisticRead();
+        if (stamp != 0) {
+            long value = reader.getAsLong();
+            if (totals.validate(stamp)) {
+                return value;
+            }
+        }
+
+        stamp = totals.readLock();
+        try {
+            return reader.getAsLong();
+        } finally {
+            totals.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Reads one of the running totals with the totals locked, for totals that can't be read while they change,
+     * like the item counts
+     * @param reader reads the total for a key
+     * @param key the key of the total, e.g. an item id
+     * @return the total that was read
+     */
+    int readTotalsLocked(IntUnaryOperator reader, int key) {
+        long stamp = totals.readLock();
+        try {
+            return reader.applyAsInt(key);
+        } finally {
+            totals.unlockRead(stamp);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.codecrafter.inventory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.IntFunction;
+
+/**
+ * Reads and writes inventories as fixed-size records in a ByteBuffer, e.g. a memory-mapped file.
+ * Every record has room for every slot an inventory can have, so an inventory can be rewritten in place,
+ * and a single slot can be read straight from the buffer without creating any objects.
+ * Slots only keep the id of their item, so the items have to be found again when reading.
+ * <pre>
+ * int       unlocked slots
+ * short     length of the id, then the id as utf-8, padded to ID_BYTES
+ * short     length of the name, then the name as utf-8, padded to NAME_BYTES
+ * slot * MAX_SLOTS, where every slot is: int item id, int count (0 if empty), int durability
+ * </pre>
+ */
+public final class InventoryRecordCodec {
+    /**
+     * The longest id that fits in a record, in utf-8 bytes
+     */
+    public static final int ID_BYTES = 64;
+    /**
+     * The longest name that fits in a record, in utf-8 bytes. Longer names are cut off.
+     */
+    public static final int NAME_BYTES = 128;
+
+    private static final int UNLOCKED_OFFSET = 0;
+    private static final int ID_OFFSET = UNLOCKED_OFFSET + 4;
+    private static final int NAME_OFFSET = ID_OFFSET + 2 + ID_BYTES;
+    private static final int SLOTS_OFFSET = NAME_OFFSET + 2 + NAME_BYTES;
+    private static final int SLOT_SIZE = 12;
+
+    /**
+     * The size of every record in bytes
+     */
+    public static final int RECORD_SIZE = SLOTS_OFFSET + Inventory.MAX_SLOTS * SLOT_SIZE;
+
+    private InventoryRecordCodec() { }
+
+    /**
+     * @param id an inventory id
+     * @return true if the id fits in a record
+     */
+    public static boolean fitsId(String id) {
+        return id.getBytes(StandardCharsets.UTF_8).length <= ID_BYTES;
+    }
+
+    /**
+     * Writes an inventory as a record
+     * @param buffer the buffer to write to. Its position isn't used or changed.
+     * @param offset where the record starts in the buffer
+     * @param inventory the inventory to write
+     * @throws IllegalArgumentException if the id of the inventory doesn't fit in a record
+     */
+    public static void write(ByteBuffer buffer, int offset, Inventory inventory) {
+        // An inventory used by several threads is locked, so every slot is written as it was at the same time
+        boolean locked = inventory.lockInventory();
+        try {
+            writeRecord(buffer, offset, inventory);
+        } finally {
+            inventory.unlockInventory(locked);
+        }
+    }
+
+    /**
+     * Does the work of write(), once the inventory is locked if needed
+     * @param buffer the buffer to write to
+     * @param offset where the record starts in the buffer
+     * @param inventory the inventory to write
+     * @throws IllegalArgumentException if the id of the inventory doesn't fit in a record
+     */
+    private static void writeRecord(ByteBuffer buffer, int offset, Inventory inventory) {
+        buffer.putInt(offset + UNLOCKED_OFFSET, inventory.getUnlockedSlots());
+        if (!putString(buffer, offset + ID_OFFSET, ID_BYTES, inventory.getId())) {
+            throw new IllegalArgumentException("The id " + inventory.getId() + " is too long for a record");
+        }
+        putString(buffer, offset + NAME_OFFSET, NAME_BYTES, inventory.getName());
+
+        int capacity = inventory.getCapacity();
+        for (int i = 0; i < Inventory.MAX_SLOTS; i++) {
+            int slot = offset + SLOTS_OFFSET + i * SLOT_SIZE;
+            Item item = i < capacity ? inventory.getItemAt(i) : null;
+            int count = i < capacity ? inventory.getCountAt(i) : 0;
+            if (item == null || count <= 0) {
+                buffer.putInt(slot, 0);
+                buffer.putInt(slot + 4, 0);
+                buffer.putInt(slot + 8, 0);
+            } else {
+                buffer.putInt(slot, item.getId());
+                buffer.putInt(slot + 4, count);
+                buffer.putInt(slot + 8, inventory.getDurabilityAt(i));
+            }
+        }
+    }
+
+    /**
+     * Reads an inventory from a record
+     * @param buffer the buffer to read from
+     * @param offset where the record starts in the buffer
+     * @param items finds the item with an id, or returns null if the item isn't known
+     * @return the inventory
+     * @throws IOException if a slot holds an item that isn't known
+     */
+    public static Inventory read(ByteBuffer buffer, int offset, IntFunction<Item> items) throws IOException {
+        Inventory inventory = new Inventory();
+        inventory.setId(getId(buffer, offset));
+        inventory.setName(getName(buffer, offset));
+        inventory.setUnlockedSlots(getUnlockedSlots(buffer, offset));
+
+        inventory.startReadingSlots();
+        for (int i = 0; i < Inventory.MAX_SLOTS; i++) {
+            int count = getCount(buffer, offset, i);
+            if (count <= 0) {
+                continue;
+            }
+
+            int itemId = getItemId(buffer, offset, i);
+            Item item = items.apply(itemId);
+            if (item == null) {
+                throw new IOException("Unknown item " + itemId + " in slot " + i + " of inventory " + inventory.getId());
+            }
+            inventory.readSlot(i, item, count, getDurability(buffer, offset, i));
+        }
+        inventory.finishReadingSlots();
+
+        return inventory;
+    }
+
+    /**
+     * @return the number of unlocked slots in the record
+     */
+    public static int getUnlockedSlots(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + UNLOCKED_OFFSET);
+    }
+
+    /**
+     * @return the id in the record
+     */
+    public static String getId(ByteBuffer buffer, int offset) {
+        return getString(buffer, offset + ID_OFFSET);
+    }
+
+    /**
+     * @return the name in the record
+     */
+    public static String getName(ByteBuffer buffer, int offset) {
+        return getString(buffer, offset + NAME_OFFSET);
+    }
+
+    /**
+     * @return the id of the item in a slot of the record. Only meaningful if the count isn't 0.
+     */
+    public static int getItemId(ByteBuffer buffer, int offset, int slot) {
+        return buffer.getInt(slotOffset(offset, slot));
+    }
+
+    /**
+     * @return the number of items in a slot of the record, or 0 if it's empty
+     */
+    public static int getCount(ByteBuffer buffer, int offset, int slot) {
+        return buffer.getInt(slotOffset(offset, slot) + 4);
+    }
+
+    /**
+     * @return the durability of the stack in a slot of the record
+     */
+    public static int getDurability(ByteBuffer buffer, int offset, int slot) {
+        return buffer.getInt(slotOffset(offset, slot) + 8);
+    }
+
+    /**
+     * @return the offset of a slot in the buffer
+     * @throws IndexOutOfBoundsException if the slot is outside the record
+     */
+    private static int slotOffset(int offset, int slot) {
+        if (slot < 0 || slot >= Inventory.MAX_SLOTS) {
+            throw new IndexOutOfBoundsException("Slot " + slot + " is outside the record");
+        }
+        return offset + SLOTS_OFFSET + slot * SLOT_SIZE;
+    }
+
+    /**
+     * Writes a string with its length in front. A string that's too long is cut off at the end of a whole character.
+     * @param max the most bytes the string can take
+     * @return false if the string had to be cut off
+     */
+    private static boolean putString(ByteBuffer buffer, int offset, int max, String string) {
+        if (string == null) {
+            buffer.putShort(offset, (short) -1);
+            return true;
+        }
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, max);
+        // Don't cut a multi-byte character in half
+        while (length < bytes.length && length > 0 && (bytes[length] & 0xC0) == 0x80) {
+            length--;
+        }
+
+        buffer.putShort(offset, (short) length);
+        buffer.put(offset + 2, bytes, 0, length);
+        return length == bytes.length;
+    }
+
+    /**
+     * Reads a string written by putString()
+     */
+    private static String getString(ByteBuffer buffer, int offset) {
+        int length = buffer.getShort(offset);
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(offset + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
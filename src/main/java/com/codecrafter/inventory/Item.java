@@ -4,12 +4,15 @@ import com.codecrafter.items.ArmorItem;
 import com.codecrafter.items.ConsumablePotion;
 import com.codecrafter.items.ThrowingWeapon;
 import com.codecrafter.items.WeaponItem;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonSubTypes;
 import com.fasterxml.jackson.annotation.JsonSubTypes.Type;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 
 /**
  * An abstract class for different items
+ * An item is a definition that is shared by every stack of it, so it can't be changed after it's created.
+ * Anything that belongs to a single stack, like the durability of a weapon, is kept in the slot instead.
  * Here we also define how Jackson should handle the json conversion to the correct types.
  */
 @JsonTypeInfo(
@@ -26,7 +29,8 @@ import com.fasterxml.jackson.annotation.JsonTypeInfo;
 })
 public abstract class Item {
     /**
-     * The internal id of the item
+     * The internal id of the item.
+     * The fields aren't final, so Jackson is able to fill them in when reading an item, but there are no setters.
      */
     private int id;
     /**
@@ -70,25 +74,26 @@ public abstract class Item {
 
     /**
      * Allows us to define some custom logic on different types of items
-     * This really isn't implemented yet, it's here to show that we
-     * know how it could be done.
+     * Since the item is shared, the state of the used stack is passed in, and the new state is returned.
+     * @param durability the current durability of the stack that is used
+     * @return the durability of the stack after it has been used
      */
-    protected abstract void use();
+    protected abstract int use(int durability);
 
     /**
-     * @return the id of the item
+     * Annotated with @JsonIgnore since it's only defined by the item types that wear down.
+     * @return the durability a new stack of this item starts with, or 0 if the item doesn't wear down
      */
-    public int getId() {
-        return id;
+    @JsonIgnore
+    public int getMaxDurability() {
+        return 0;
     }
 
     /**
-     * Sets the id of the item. Should really not be called, but you still have the option,
-     * since it wouldn't break anything.
-     * @param id new id of the item
+     * @return the id of the item
      */
-    public void setId(int id) {
-        this.id = id;
+    public int getId() {
+        return id;
     }
 
     /**
@@ -98,15 +103,6 @@ public abstract class Item {
         return type;
     }
 
-    /**
-     * Sets the type of the item. Should really not be called, but you still have the option,
-     * since it wouldn't break anything.
-     * @param type new type of the item
-     */
-    public void setType(ItemType type) {
-        this.type = type;
-    }
-
     /**
      * @return the name of the item
      */
@@ -114,15 +110,6 @@ public abstract class Item {
         return name;
     }
 
-    /**
-     * Sets the name of the item. Should really not be called, but you still have the option,
-     * since it wouldn't break anything.
-     * @param name the new name of the item
-     */
-    public void setName(String name) {
-        this.name = name;
-    }
-
     /**
      * @return the weight of the item
      */
@@ -130,27 +117,10 @@ public abstract class Item {
         return weight;
     }
 
-    /**
-     * Set the weight of the item.
-     * @param weight
-     */
-    public void setWeight(double weight) {
-        this.weight = weight;
-    }
-
     /**
      * @return the max stack this item allows
      */
     public int getMaxStack() {
         return maxStack;
     }
-
-    /**
-     * Sets the max allowed stack for the item. Should really not be called, but you still have the option,
-     * since it wouldn't break any logic.
-     * @param maxStack the new max stack for the item
-     */
-    public void setMaxStack(int maxStack) {
-        this.maxStack = maxStack;
-    }
 }
@@ -0,0 +1,18 @@
+package com.codecrafter.inventory;
+
+/**
+ * Defines how the item in a slot is written to JSON. Both are always read.
+ */
+public enum ItemPersistence {
+    /**
+     * Every slot holds the whole item, so the file can be read without knowing the items.
+     */
+    Embedded,
+
+    /**
+     * Slots only hold the id of their item, and the item is looked up through the ItemManager when reading.
+     * Much smaller and faster to read, but reading fails if a slot has the id of an item that isn't known.
+     * Items that aren't known when writing are still embedded, so they aren't lost.
+     */
+    ById,
+}
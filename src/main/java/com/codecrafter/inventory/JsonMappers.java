@@ -0,0 +1,74 @@
+package com.codecrafter.inventory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the Jackson objects every part of the program shares, instead of creating a new ObjectMapper for every call.
+ * A new mapper has to find out how to convert every class again, including which subclasses an Item can be,
+ * while the readers and writers here are set up once. They can't be changed, so they're safe to use from any thread.
+ */
+public final class JsonMappers {
+    /**
+     * The only mapper. It's never changed after it's created, and only used to create the readers and writers.
+     */
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Reads a single inventory
+     */
+    public static final ObjectReader INVENTORY_READER = MAPPER.readerFor(Inventory.class);
+    /**
+     * Writes a single inventory
+     */
+    public static final ObjectWriter INVENTORY_WRITER = MAPPER.writerFor(Inventory.class);
+    /**
+     * Reads a single item
+     */
+    public static final ObjectReader ITEM_READER = MAPPER.readerFor(Item.class);
+    /**
+     * Writes a single item. It doesn't flush after every item, as items are mostly written inside something else.
+     */
+    public static final ObjectWriter ITEM_WRITER = MAPPER.writerFor(Item.class)
+            .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    /**
+     * Readers for other classes, created the first time they're asked for
+     */
+    private static final Map<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+    /**
+     * Writers for other classes, created the first time they're asked for
+     */
+    private static final Map<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    private JsonMappers() { }
+
+    /**
+     * @return the factory for streaming parsers and generators, which can use the shared mapper for data binding
+     */
+    public static JsonFactory factory() {
+        return MAPPER.getFactory();
+    }
+
+    /**
+     * @param type the class to read
+     * @return a shared reader for the class
+     */
+    public static ObjectReader readerFor(Class<?> type) {
+        return readers.computeIfAbsent(type, MAPPER::readerFor);
+    }
+
+    /**
+     * @param type the class to write
+     * @return a shared writer for the class
+     */
+    public static ObjectWriter writerFor(Class<?> type) {
+        return writers.computeIfAbsent(type, MAPPER::writerFor);
+    }
+}
@@ -1,41 +1,114 @@
 package com.codecrafter.inventory;
 
+import com.codecrafter.items.ItemManager;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 
 /**
- * A slot in an inventory
+ * A slot in an inventory.
+ * A slot taken from an inventory is a view of the slot at a specific index, and reads and writes
+ * go directly to the inventory. A slot created on its own keeps its contents itself.
  */
+@JsonPropertyOrder({"index", "item", "count", "durability"})
 public class Slot {
     /**
-     * The item in this slot
+     * The inventory this slot is a view of, or null if the slot keeps its contents itself
+     */
+    private final Inventory owner;
+    /**
+     * The index of this slot in the owning inventory.
+     * When the slot is read from JSON, this is the index the slot should be placed at.
+     */
+    private int index;
+    /**
+     * The item in this slot, when it isn't part of an inventory
      */
     private Item item;
     /**
-     * The number of items in this slot
+     * The number of items in this slot, when it isn't part of an inventory
      */
     private int count;
+    /**
+     * The durability of the stack in this slot, when it isn't part of an inventory.
+     * -1 means that it's a new stack, with the full durability of the item.
+     */
+    private int durability = -1;
 
     /**
      * Constructor for an empty slot
      */
     public Slot() {
+        owner = null;
+        index = -1;
         item = null;
         count = 0;
     }
 
+    /**
+     * Constructor for a view of a slot in an inventory
+     * @param owner the inventory the slot belongs to
+     * @param index the index of the slot in the inventory
+     */
+    Slot(Inventory owner, int index) {
+        this.owner = owner;
+        this.index = index;
+    }
+
+    /**
+     * Written to JSON, so empty slots can be left out of the saved inventory.
+     * @return the index of the slot in its inventory, or -1 if it isn't part of an inventory
+     */
+    @JsonProperty("index")
+    int getIndex() {
+        return index;
+    }
+
+    /**
+     * Sets the index the slot should be placed at, when read from JSON
+     * @param index the index of the slot
+     */
+    @JsonProperty("index")
+    private void setIndex(int index) {
+        if (owner == null) {
+            this.index = index;
+        }
+    }
+
     /**
      * Sets the item in the slot
      * @param item the item to set
      */
     public void setItem(Item item) {
-        this.item = item;
+        if (owner != null) {
+            owner.setSlotItem(index, item);
+        } else {
+            this.item = item;
+        }
+    }
+
+    /**
+     * Sets the item by its id, when the slot was written with ItemPersistence.ById.
+     * The shared item is taken from the ItemManager. An unknown id fails the whole read, since dropping the slot
+     * would lose its items on the next save.
+     * @param itemId the id of the item
+     * @throws IllegalArgumentException if the ItemManager doesn't know the id
+     */
+    @JsonProperty("itemId")
+    private void setItemId(int itemId) {
+        Item known = ItemManager.getInstance().getItem(itemId);
+        if (known == null) {
+            throw new IllegalArgumentException("Unknown item id " + itemId);
+        }
+        setItem(known);
     }
 
     /**
      * @return the item in the slot
      */
     public Item getItem() {
-        return item;
+        return owner != null ? owner.getItemAt(index) : item;
     }
 
     /**
@@ -44,7 +117,7 @@ public class Slot {
      */
     @JsonIgnore
     public boolean isEmpty() {
-        return item == null || count <= 0;
+        return getItem() == null || getCount() <= 0;
     }
 
     /**
@@ -56,32 +129,57 @@ public class Slot {
      */
     @JsonIgnore
     public boolean isNotEmpty() {
-        return item != null && count > 0;
+        return getItem() != null && getCount() > 0;
     }
 
     /**
      * Sets the number of the item in this slot directly.
      * If the count is over the max item stack defined on the item, the value just get set to the max value.
      * Same principle apply when going under 0.
+     * Ignored by Jackson, since counts that are read aren't limited, see readCount().
      * @param count the number of items to have in the inventory
      */
+    @JsonIgnore
     public void setCount(int count) {
-        if (item == null) {
-            this.count = 0;
+        if (owner != null) {
+            owner.setSlotCount(index, count, false);
         } else {
-            if (count > item.getMaxStack()) {
-                this.count = item.getMaxStack();
-            } else {
-                this.count = Math.max(count, 0);
-            }
+            this.count = limitCount(item, count);
         }
     }
 
+    /**
+     * Sets the count when the slot is read from JSON. The count is kept as it was saved, even over the max stack,
+     * so a stack isn't cut down when the items are reloaded with a smaller max stack.
+     * @param count the number of items in the slot
+     */
+    @JsonProperty("count")
+    private void readCount(int count) {
+        this.count = Math.max(count, 0);
+    }
+
+    /**
+     * Limits a number of items to what fits in a slot
+     * @param item the item in the slot, or null
+     * @param count the number of items
+     * @return the count between 0 and the max stack of the item, or 0 if there's no item
+     */
+    static int limitCount(Item item, int count) {
+        if (item == null) {
+            return 0;
+        }
+        if (count > item.getMaxStack()) {
+            return item.getMaxStack();
+        }
+        return Math.max(count, 0);
+    }
+
     /**
      * @return the item-count in this slot
      */
+    @JsonProperty("count")
     public int getCount() {
-        return count;
+        return owner != null ? owner.getCountAt(index) : count;
     }
 
     /**
@@ -94,35 +192,100 @@ public class Slot {
             return 0;
         }
 
-        return item.getWeight() * count;
+        return getItem().getWeight() * getCount();
     }
 
     /**
      * Empties the slot entirely
      */
     public void clear() {
-        item = null;
-        count = 0;
+        if (owner != null) {
+            owner.clearSlotContents(index);
+        } else {
+            item = null;
+            count = 0;
+            durability = -1;
+        }
     }
 
     /**
      * Increments the item count by one
      */
     public void incrementCount() {
-        setCount(count + 1);
+        if (owner != null) {
+            owner.setSlotCount(index, 1, true);
+        } else {
+            setCount(count + 1);
+        }
     }
 
     /**
      * Decrements the item count by one
      */
     public void decrementCount() {
-        setCount(count - 1);
+        if (owner != null) {
+            owner.setSlotCount(index, -1, true);
+        } else {
+            setCount(count - 1);
+        }
     }
 
     /**
-     * Uses the item in the slot
+     * Annotated with @JsonIgnore since it's only written for items that wear down, see getPersistedDurability().
+     * @return the durability of the stack in this slot
+     */
+    @JsonIgnore
+    public int getDurability() {
+        if (owner != null) {
+            return owner.getDurabilityAt(index);
+        }
+        if (durability >= 0) {
+            return durability;
+        }
+        return Inventory.newDurability(getItem());
+    }
+
+    /**
+     * @return true if this slot isn't part of an inventory, and no durability has been set, meaning it's a new stack
+     */
+    boolean isNewStack() {
+        return owner == null && durability < 0;
+    }
+
+    /**
+     * Gets the durability to write to JSON. Left out for items that don't wear down.
+     * @return the durability of the stack, or null if the item doesn't wear down
+     */
+    @JsonProperty("durability")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Integer getPersistedDurability() {
+        Item item = getItem();
+        if (item == null || item.getMaxDurability() == 0) {
+            return null;
+        }
+        return getDurability();
+    }
+
+    /**
+     * Sets the durability when the slot is read from JSON
+     * @param durability the durability of the stack
+     */
+    @JsonProperty("durability")
+    private void setPersistedDurability(Integer durability) {
+        if (owner == null && durability != null) {
+            this.durability = durability;
+        }
+    }
+
+    /**
+     * Uses the item in the slot.
+     * The item itself is shared by every stack of it, so anything that changes, like durability, is kept in the slot.
      */
     public void use() {
-        item.use();
+        if (owner != null) {
+            owner.useSlot(index);
+        } else {
+            durability = getItem().use(getDurability());
+        }
     }
 }
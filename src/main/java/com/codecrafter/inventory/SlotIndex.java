@@ -0,0 +1,128 @@
+package com.codecrafter.inventory;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of where there is room in an inventory, so items can be placed without scanning every slot.
+ * The inventory tells the index about every slot before and after it changes.
+ */
+class SlotIndex {
+    /**
+     * Every slot that is empty
+     */
+    private final BitSet freeSlots = new BitSet();
+    /**
+     * For every item id, the slots with a stack of that item
+     */
+    private final Map<Integer, BitSet> stacks = new HashMap<>();
+    /**
+     * For every item id, the slots with a stack of that item which isn't full
+     */
+    private final Map<Integer, BitSet> partialStacks = new HashMap<>();
+
+    /**
+     * Removes a slot from the index, before its contents change
+     * @param index the index of the slot
+     * @param item the item currently in the slot
+     * @param count the number of items currently in the slot
+     */
+    void remove(int index, Item item, int count) {
+        if (item == null || count <= 0) {
+            freeSlots.clear(index);
+            return;
+        }
+
+        clearSlot(stacks, item.getId(), index);
+        if (count < item.getMaxStack()) {
+            clearSlot(partialStacks, item.getId(), index);
+        }
+    }
+
+    /**
+     * Adds a slot to the index, after its contents have changed
+     * @param index the index of the slot
+     * @param item the item now in the slot
+     * @param count the number of items now in the slot
+     */
+    void add(int index, Item item, int count) {
+        if (item == null || count <= 0) {
+            freeSlots.set(index);
+            return;
+        }
+
+        stacks.computeIfAbsent(item.getId(), id -> new BitSet()).set(index);
+        if (count < item.getMaxStack()) {
+            partialStacks.computeIfAbsent(item.getId(), id -> new BitSet()).set(index);
+        }
+    }
+
+    /**
+     * Removes a slot from the slots of an item, and forgets the item when it has no slots left
+     * @param slotsByItem the slots of every item
+     * @param itemId the id of the item
+     * @param index the index of the slot
+     */
+    private static void clearSlot(Map<Integer, BitSet> slotsByItem, int itemId, int index) {
+        BitSet slots = slotsByItem.get(itemId);
+        if (slots != null) {
+            slots.clear(index);
+            if (slots.isEmpty()) {
+                slotsByItem.remove(itemId);
+            }
+        }
+    }
+
+    /**
+     * Builds the index from scratch
+     * @param storage the storage to index
+     */
+    void rebuild(SlotStorage storage) {
+        freeSlots.clear();
+        stacks.clear();
+        partialStacks.clear();
+        for (int i = 0; i < storage.capacity(); i++) {
+            add(i, storage.getItem(i), storage.getCount(i));
+        }
+    }
+
+    /**
+     * @param limit the number of slots to look in, counted from the start
+     * @return the index of the first empty slot before the limit, or -1 if there is none
+     */
+    int firstFreeSlot(int limit) {
+        int index = freeSlots.nextSetBit(0);
+        return index >= 0 && index < limit ? index : -1;
+    }
+
+    /**
+     * @param itemId the id of the item
+     * @param from the index to start looking from
+     * @param limit the number of slots to look in, counted from the start
+     * @return the index of the next stack of the item that isn't full, between from and the limit, or -1 if there is none
+     */
+    int nextPartialStack(int itemId, int from, int limit) {
+        BitSet slots = partialStacks.get(itemId);
+        if (slots == null) {
+            return -1;
+        }
+
+        int index = slots.nextSetBit(from);
+        return index >= 0 && index < limit ? index : -1;
+    }
+
+    /**
+     * @param itemId the id of the item
+     * @param before the index to look before
+     * @return the index of the last stack of the item before the given index, or -1 if there is none
+     */
+    int lastStackBefore(int itemId, int before) {
+        BitSet slots = stacks.get(itemId);
+        if (slots == null || before <= 0) {
+            return -1;
+        }
+
+        return slots.previousSetBit(before - 1);
+    }
+}
@@ -0,0 +1,185 @@
+package com.codecrafter.inventory;
+
+import java.util.Arrays;
+
+/**
+ * Sorts the unlocked slots of an inventory.
+ * Every sort value is turned into a primitive key per slot up front, and the slots are then sorted
+ * with a stable radix sort on those keys, one sort value at a time, starting with the last.
+ * Empty slots are moved to the end, and locked slots are never touched.
+ */
+class SlotSorter {
+    /**
+     * The number of bits sorted in each pass of the radix sort
+     */
+    private static final int RADIX_BITS = 8;
+    /**
+     * The number of buckets in each pass of the radix sort
+     */
+    private static final int RADIX = 1 << RADIX_BITS;
+
+    /**
+     * Finds the new order of the slots in the storage
+     * @param storage the storage of the inventory
+     * @param unlockedSlots the number of unlocked slots, which are the only slots that get sorted
+     * @param sortValues what to sort by, in order of priority
+     * @return the old index of every slot in the new order, or null if the slots are already sorted
+     */
+    static int[] sortedOrder(SlotStorage storage, int unlockedSlots, SortValue[] sortValues) {
+        // Find all non-empty slots, and check if they are already packed at the front
+        int[] occupied = new int[unlockedSlots];
+        int occupiedCount = 0;
+        boolean packed = true;
+        for (int i = 0; i < unlockedSlots; i++) {
+            if (storage.getItem(i) != null && storage.getCount(i) > 0) {
+                packed &= occupiedCount == i;
+                occupied[occupiedCount++] = i;
+            }
+        }
+
+        long[][] keys = new long[sortValues.length][];
+        for (int k = 0; k < sortValues.length; k++) {
+            keys[k] = computeKeys(storage, occupied, occupiedCount, sortValues[k]);
+        }
+
+        if (packed && isSorted(occupied, occupiedCount, keys)) {
+            return null;
+        }
+
+        // Stable sorts by the least important value first leave the slots sorted by all values
+        for (int k = keys.length - 1; k >= 0; k--) {
+            radixSort(occupied, occupiedCount, keys[k]);
+        }
+
+        // Sorted slots go first, then the empty unlocked slots, and locked slots stay where they are
+        int[] order = new int[storage.capacity()];
+        System.arraycopy(occupied, 0, order, 0, occupiedCount);
+        int next = occupiedCount;
+        for (int i = 0; i < unlockedSlots; i++) {
+            if (storage.getItem(i) == null || storage.getCount(i) <= 0) {
+                order[next++] = i;
+            }
+        }
+        for (int i = unlockedSlots; i < order.length; i++) {
+            order[i] = i;
+        }
+
+        return order;
+    }
+
+    /**
+     * Computes the sort key of every occupied slot
+     * @param storage the storage of the inventory
+     * @param occupied the indices of the occupied slots
+     * @param length the number of occupied slots
+     * @param sortValue what to compute the key for
+     * @return the key of every slot, indexed by slot index
+     */
+    private static long[] computeKeys(SlotStorage storage, int[] occupied, int length, SortValue sortValue) {
+        long[] keys = new long[storage.capacity()];
+
+        if (sortValue == SortValue.Alphabetical) {
+            // Names are turned into their rank among all names in the inventory, so they can be radix sorted too
+            String[] names = new String[length];
+            for (int i = 0; i < length; i++) {
+                names[i] = nameOf(storage.getItem(occupied[i]));
+            }
+            String[] sortedNames = names.clone();
+            Arrays.sort(sortedNames);
+            for (int i = 0; i < length; i++) {
+                keys[occupied[i]] = Arrays.binarySearch(sortedNames, names[i]);
+            }
+            return keys;
+        }
+
+        for (int i = 0; i < length; i++) {
+            int index = occupied[i];
+            Item item = storage.getItem(index);
+            keys[index] = switch (sortValue) {
+                case Id -> item.getId();
+                case ItemType -> item.getType() == null ? -1 : item.getType().ordinal();
+                case Weight -> Inventory.toWeightUnits(item.getWeight()) * storage.getCount(index);
+                case Alphabetical -> throw new IllegalStateException();
+            };
+        }
+        return keys;
+    }
+
+    /**
+     * @param item the item
+     * @return the name of the item, or an empty string if it has no name
+     */
+    private static String nameOf(Item item) {
+        return item.getName() == null ? "" : item.getName();
+    }
+
+    /**
+     * Checks if the slots are already in sorted order
+     * @param occupied the indices of the occupied slots, in their current order
+     * @param length the number of occupied slots
+     * @param keys the keys of every sort value, in order of priority
+     * @return true if every slot is ordered correctly in relation to the next
+     */
+    private static boolean isSorted(int[] occupied, int length, long[][] keys) {
+        for (int i = 1; i < length; i++) {
+            for (long[] key : keys) {
+                int compare = Long.compare(key[occupied[i - 1]], key[occupied[i]]);
+                if (compare < 0) {
+                    break;
+                } else if (compare > 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A stable least significant digit radix sort of slot indices by their keys.
+     * Passes where every key has the same digit are skipped, so small keys like item types
+     * end up as a single counting sort.
+     * @param order the slot indices to sort
+     * @param length the number of slot indices to sort
+     * @param keys the key of every slot, indexed by slot index
+     */
+    private static void radixSort(int[] order, int length, long[] keys) {
+        int[] buffer = new int[length];
+        int[] offsets = new int[RADIX + 1];
+
+        for (int shift = 0; shift < Long.SIZE; shift += RADIX_BITS) {
+            Arrays.fill(offsets, 0);
+            for (int i = 0; i < length; i++) {
+                offsets[digit(keys[order[i]], shift) + 1]++;
+            }
+
+            boolean singleBucket = false;
+            for (int d = 1; d <= RADIX; d++) {
+                if (offsets[d] == length) {
+                    singleBucket = true;
+                    break;
+                }
+            }
+            if (singleBucket) {
+                continue;
+            }
+
+            for (int d = 0; d < RADIX; d++) {
+                offsets[d + 1] += offsets[d];
+            }
+            for (int i = 0; i < length; i++) {
+                buffer[offsets[digit(keys[order[i]], shift)]++] = order[i];
+            }
+            System.arraycopy(buffer, 0, order, 0, length);
+        }
+    }
+
+    /**
+     * Gets a digit of a key. The sign bit is flipped, so negative keys sort before positive keys.
+     * @param key the key
+     * @param shift the position of the digit in bits
+     * @return the digit
+     */
+    private static int digit(long key, int shift) {
+        return (int) (((key ^ Long.MIN_VALUE) >>> shift) & (RADIX - 1));
+    }
+}
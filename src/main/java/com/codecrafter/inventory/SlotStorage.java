@@ -0,0 +1,222 @@
+package com.codecrafter.inventory;
+
+import com.codecrafter.items.ItemCatalog;
+
+import java.util.Arrays;
+
+/**
+ * Stores the contents of all slots in an inventory.
+ * Slots are addressed by their index, and the inventory and its slots read and write through this.
+ * Besides the item and count, every slot has a state that belongs to that stack only, e.g. the durability of a weapon.
+ */
+abstract class SlotStorage {
+    /**
+     * The state of every slot. Only created once a slot gets a state other than 0,
+     * since most items don't have any state.
+     */
+    private int[] states;
+
+    /**
+     * Creates a storage for the given mode
+     * @param mode how the contents should be stored
+     * @param capacity the number of slots to store
+     * @return a new, empty storage
+     */
+    static SlotStorage create(StorageMode mode, int capacity) {
+        return switch (mode) {
+            case Objects -> new ObjectSlotStorage(capacity);
+            case Compact -> new CompactSlotStorage(capacity);
+        };
+    }
+
+    /**
+     * @return the number of slots in this storage
+     */
+    abstract int capacity();
+
+    /**
+     * @param index the index of the slot
+     * @return the item in the slot, or null if there is none
+     */
+    abstract Item getItem(int index);
+
+    /**
+     * @param index the index of the slot
+     * @return the number of items in the slot
+     */
+    abstract int getCount(int index);
+
+    /**
+     * Sets the contents of a slot
+     * @param index the index of the slot
+     * @param item the item to set, or null to remove the item
+     * @param count the number of items in the slot
+     */
+    abstract void set(int index, Item item, int count);
+
+    /**
+     * Sets the catalog that items are looked up in, for storages that only keep the id of the items.
+     * The inventory calls this when it moves to a new version of the catalog, so every item it has counted
+     * comes from the same version.
+     * @param catalog the catalog to look up items in
+     */
+    void useCatalog(ItemCatalog catalog) {
+    }
+
+    /**
+     * @param index the index of the slot
+     * @return the state of the stack in the slot, e.g. its durability
+     */
+    int getState(int index) {
+        return states == null ? 0 : states[index];
+    }
+
+    /**
+     * Sets the state of the stack in a slot
+     * @param index the index of the slot
+     * @param state the new state
+     */
+    void setState(int index, int state) {
+        if (states == null) {
+            if (state == 0) {
+                return;
+            }
+            states = new int[capacity()];
+        }
+        states[index] = state;
+    }
+
+    /**
+     * Swaps the states of two slots. Called by the implementations when they swap contents.
+     * @param index1 the first slot
+     * @param index2 the second slot
+     */
+    protected void swapStates(int index1, int index2) {
+        if (states != null) {
+            int state = states[index1];
+            states[index1] = states[index2];
+            states[index2] = state;
+        }
+    }
+
+    /**
+     * Rearranges the states. Called by the implementations when they rearrange contents.
+     * @param order the old index of every slot, in the new order
+     */
+    protected void permuteStates(int[] order) {
+        if (states != null) {
+            int[] newStates = new int[states.length];
+            for (int i = 0; i < order.length; i++) {
+                newStates[i] = states[order[i]];
+            }
+            states = newStates;
+        }
+    }
+
+    /**
+     * Grows the states. Called by the implementations when they grow.
+     * @param capacity the new number of slots
+     */
+    protected void growStates(int capacity) {
+        if (states != null) {
+            states = Arrays.copyOf(states, capacity);
+        }
+    }
+
+    /**
+     * Swaps the contents of two slots
+     * @param index1 the first slot
+     * @param index2 the second slot
+     */
+    abstract void swap(int index1, int index2);
+
+    /**
+     * Rearranges the slots, so the slot at order[i] is moved to index i.
+     * @param order the old index of every slot, in the new order
+     */
+    abstract void permute(int[] order);
+
+    /**
+     * Grows the storage to hold more slots. The new slots are empty.
+     * @param capacity the new number of slots, which must not be less than the current capacity
+     */
+    abstract void grow(int capacity);
+}
+
+/**
+ * Stores a reference to the item of every slot
+ */
+class ObjectSlotStorage extends SlotStorage {
+    /**
+     * The item in every slot
+     */
+    private Item[] items;
+    /**
+     * The number of items in every slot
+     */
+    private int[] counts;
+
+    /**
+     * @param capacity the number of slots to store
+     */
+    ObjectSlotStorage(int capacity) {
+        items = new Item[capacity];
+        counts = new int[capacity];
+    }
+
+    @Override
+    int capacity() {
+        return items.length;
+    }
+
+    @Override
+    Item getItem(int index) {
+        return items[index];
+    }
+
+    @Override
+    int getCount(int index) {
+        return counts[index];
+    }
+
+    @Override
+    void set(int index, Item item, int count) {
+        items[index] = item;
+        counts[index] = count;
+    }
+
+    @Override
+    void swap(int index1, int index2) {
+        Item item = items[index1];
+        items[index1] = items[index2];
+        items[index2] = item;
+
+        int count = counts[index1];
+        counts[index1] = counts[index2];
+        counts[index2] = count;
+
+        swapStates(index1, index2);
+    }
+
+    @Override
+    void permute(int[] order) {
+        Item[] newItems = new Item[items.length];
+        int[] newCounts = new int[counts.length];
+        for (int i = 0; i < order.length; i++) {
+            newItems[i] = items[order[i]];
+            newCounts[i] = counts[order[i]];
+        }
+        items = newItems;
+        counts = newCounts;
+
+        permuteStates(order);
+    }
+
+    @Override
+    void grow(int capacity) {
+        items = Arrays.copyOf(items, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+
+        growStates(capacity);
+    }
+}
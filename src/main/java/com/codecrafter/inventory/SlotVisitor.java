@@ -0,0 +1,17 @@
+package com.codecrafter.inventory;
+
+/**
+ * A visitor that gets called for every unlocked slot in an inventory.
+ * Used with {@link Inventory#forEachSlot(SlotVisitor)} to look at slots without copying them into a new array,
+ * or creating a Slot for each of them.
+ */
+@FunctionalInterface
+public interface SlotVisitor {
+    /**
+     * Called once for every visited slot
+     * @param index the index of the slot in the inventory
+     * @param item the item in the slot, or null if it's empty
+     * @param count the number of items in the slot, which is always more than 0 if there's an item
+     */
+    void visit(int index, Item item, int count);
+}
@@ -0,0 +1,18 @@
+package com.codecrafter.inventory;
+
+/**
+ * Defines how an inventory stores the contents of its slots
+ */
+public enum StorageMode {
+    /**
+     * Every slot keeps a reference to its item.
+     * Works with any item, also items that aren't known by the ItemManager.
+     */
+    Objects,
+
+    /**
+     * Slots only keep the id and count of their item in primitive arrays, and the item is looked up
+     * through the ItemManager when it's needed. Uses a lot less memory per inventory.
+     */
+    Compact,
+}
@@ -17,7 +17,7 @@ public class ArmorItem extends Item {
     }
 
     @Override
-    protected void use() {
-
+    protected int use(int durability) {
+        return durability;
     }
 }
@@ -17,7 +17,7 @@ public class ConsumablePotion extends Item {
     }
 
     @Override
-    protected void use() {
-
+    protected int use(int durability) {
+        return durability;
     }
 }
@@ -0,0 +1,372 @@
+package com.codecrafter.items;
+
+import com.codecrafter.inventory.Item;
+import com.codecrafter.inventory.ItemType;
+import com.codecrafter.inventory.JsonMappers;
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An immutable set of items, indexed so an item can be found by id or name without searching.
+ * Every field is final and nothing changes after it's built, so a catalog can be read by any number of threads
+ * without locks, once it has been handed to them.
+ * <p>
+ * Items are kept in an array indexed by id, starting from the lowest id. If the ids are spread out so much that the
+ * array would be mostly empty, the ids are sorted and searched instead.
+ * <p>
+ * Every catalog has its own version, and a catalog built from another one, by with() or reload(), remembers which
+ * ids changed in the last few versions before it. That way an inventory holding items from an older version can
+ * bring only the affected slots up to date, see changedSince().
+ */
+public final class ItemCatalog {
+    /**
+     * The array indexed by id is only used if it's at most this many times larger than the number of items
+     */
+    private static final int MAX_SPREAD = 4;
+    /**
+     * The array indexed by id can always be this large, no matter how few items there are
+     */
+    private static final int MIN_DENSE_SIZE = 64;
+    /**
+     * The number of earlier versions a catalog remembers the changed ids of
+     */
+    private static final int MAX_HISTORY = 16;
+    /**
+     * Hands out the version of every catalog
+     */
+    private static final AtomicLong nextVersion = new AtomicLong();
+
+    /**
+     * A catalog without items
+     */
+    private static final ItemCatalog EMPTY = new ItemCatalog(List.of());
+
+    /**
+     * The version of this catalog, unique among every catalog built while the program runs
+     */
+    private final long version;
+    /**
+     * The versions of the catalogs this one was built from, oldest first, ending with the one right before this
+     */
+    private final long[] historyVersions;
+    /**
+     * For every version in historyVersions, the sorted ids that changed in the version after it
+     */
+    private final int[][] historyChanges;
+
+    /**
+     * Every item, in the order they were added
+     */
+    private final List<Item> items;
+    /**
+     * The lowest id in the catalog. The item with an id is at byId[id - minId].
+     */
+    private final int minId;
+    /**
+     * The items indexed by id, or null if the ids are too spread out
+     */
+    private final Item[] byId;
+    /**
+     * Every id in sorted order, used if byId is null
+     */
+    private final int[] sortedIds;
+    /**
+     * The item with every id in sortedIds, in the same order
+     */
+    private final Item[] sortedItems;
+    /**
+     * The items by normalized name, see normalizeName()
+     */
+    private final Map<String, Item> byName;
+    /**
+     * The items of every type, in the order they were added
+     */
+    private final Map<ItemType, List<Item>> byType;
+
+    /**
+     * Builds a catalog that doesn't know any earlier versions
+     * @param items the items in the catalog
+     * @throws IllegalArgumentException if two items have the same id or name
+     */
+    private ItemCatalog(Collection<Item> items) {
+        this(items, null, null);
+    }
+
+    /**
+     * @param items the items in the catalog
+     * @param previous the catalog this one replaces, or null if it doesn't replace one
+     * @param changedIds the sorted ids that are different from the previous catalog, or null if it doesn't replace one
+     * @throws IllegalArgumentException if two items have the same id or name
+     */
+    private ItemCatalog(Collection<Item> items, ItemCatalog previous, int[] changedIds) {
+        this.version = nextVersion.getAndIncrement();
+        if (previous == null) {
+            this.historyVersions = new long[0];
+            this.historyChanges = new int[0][];
+        } else {
+            // Only the last few versions are remembered, so the history doesn't grow with every reload
+            int kept = Math.min(previous.historyVersions.length, MAX_HISTORY - 1);
+            int skipped = previous.historyVersions.length - kept;
+            this.historyVersions = Arrays.copyOfRange(previous.historyVersions, skipped, skipped + kept + 1);
+            this.historyChanges = Arrays.copyOfRange(previous.historyChanges, skipped, skipped + kept + 1);
+            historyVersions[kept] = previous.version;
+            historyChanges[kept] = changedIds;
+        }
+
+        this.items = Collections.unmodifiableList(new ArrayList<>(items));
+
+        Map<String, Item> names = new HashMap<>(items.size() * 2);
+        Map<ItemType, List<Item>> types = new EnumMap<>(ItemType.class);
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (Item item : this.items) {
+            min = Math.min(min, item.getId());
+            max = Math.max(max, item.getId());
+
+            if (item.getName() != null && names.put(normalizeName(item.getName()), item) != null) {
+                throw new IllegalArgumentException("There is more than one item named " + item.getName());
+            }
+            if (item.getType() != null) {
+                types.computeIfAbsent(item.getType(), type -> new ArrayList<>()).add(item);
+            }
+        }
+        this.byName = Collections.unmodifiableMap(names);
+        types.replaceAll((type, list) -> Collections.unmodifiableList(list));
+        this.byType = Collections.unmodifiableMap(types);
+
+        long range = this.items.isEmpty() ? 0 : (long) max - min + 1;
+        if (range <= Math.max(MIN_DENSE_SIZE, (long) this.items.size() * MAX_SPREAD)) {
+            this.minId = this.items.isEmpty() ? 0 : min;
+            this.byId = new Item[(int) range];
+            this.sortedIds = null;
+            this.sortedItems = null;
+            for (Item item : this.items) {
+                if (byId[item.getId() - minId] != null) {
+                    throw new IllegalArgumentException("There is more than one item with the id " + item.getId());
+                }
+                byId[item.getId() - minId] = item;
+            }
+        } else {
+            this.minId = min;
+            this.byId = null;
+            Item[] sorted = this.items.toArray(new Item[0]);
+            Arrays.sort(sorted, (a, b) -> Integer.compare(a.getId(), b.getId()));
+            this.sortedItems = sorted;
+            this.sortedIds = new int[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                sortedIds[i] = sorted[i].getId();
+                if (i > 0 && sortedIds[i] == sortedIds[i - 1]) {
+                    throw new IllegalArgumentException("There is more than one item with the id " + sortedIds[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a catalog without items
+     */
+    public static ItemCatalog empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Builds a catalog
+     * @param items the items in the catalog
+     * @return a catalog with the items
+     * @throws IllegalArgumentException if two items have the same id or name
+     */
+    public static ItemCatalog of(Collection<Item> items) {
+        return new ItemCatalog(items);
+    }
+
+    /**
+     * Builds a new catalog with another item added. This catalog isn't changed.
+     * @param item the item to add
+     * @return a catalog with every item in this catalog, and the given item
+     * @throws IllegalArgumentException if the item has the same id or name as an item in this catalog
+     */
+    public ItemCatalog with(Item item) {
+        List<Item> all = new ArrayList<>(items);
+        all.add(item);
+        return new ItemCatalog(all, this, new int[] { item.getId() });
+    }
+
+    /**
+     * Builds the next version of this catalog from new definitions of the items. This catalog isn't changed.
+     * Items that are defined exactly as before are kept as the same instances, so only the ids that were added or
+     * changed count as changed. Items that are no longer defined are kept as well, since inventories may still hold
+     * them, unless a new item has taken their name.
+     * @param definitions the new definitions of the items
+     * @return a catalog with the new definitions, which knows the ids that changed since this catalog
+     * @throws IllegalArgumentException if two of the definitions have the same id or name
+     */
+    public ItemCatalog reload(Collection<Item> definitions) {
+        List<Item> all = new ArrayList<>(definitions.size());
+        Map<Integer, Boolean> defined = new HashMap<>(definitions.size() * 2);
+        Map<String, Boolean> names = new HashMap<>(definitions.size() * 2);
+        int[] changed = new int[definitions.size()];
+        int changedCount = 0;
+
+        for (Item definition : definitions) {
+            defined.put(definition.getId(), true);
+            if (definition.getName() != null) {
+                names.put(normalizeName(definition.getName()), true);
+            }
+
+            Item current = getItem(definition.getId());
+            if (current != null && sameDefinition(current, definition)) {
+                all.add(current);
+            } else {
+                all.add(definition);
+                changed[changedCount++] = definition.getId();
+            }
+        }
+
+        for (Item item : items) {
+            boolean nameTaken = item.getName() != null && names.containsKey(normalizeName(item.getName()));
+            if (!defined.containsKey(item.getId()) && !nameTaken) {
+                all.add(item);
+            }
+        }
+
+        int[] changedIds = Arrays.copyOf(changed, changedCount);
+        Arrays.sort(changedIds);
+        return new ItemCatalog(all, this, changedIds);
+    }
+
+    /**
+     * Compares two items by everything that is saved about them
+     * @param a an item
+     * @param b another item
+     * @return true if the items are of the same class, and are written the same way
+     */
+    private static boolean sameDefinition(Item a, Item b) {
+        if (a.getClass() != b.getClass()) {
+            return false;
+        }
+
+        try {
+            return Arrays.equals(JsonMappers.ITEM_WRITER.writeValueAsBytes(a), JsonMappers.ITEM_WRITER.writeValueAsBytes(b));
+        } catch (JsonProcessingException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the version of this catalog. A catalog built later always has a higher version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Finds the ids of the items that may be different in this catalog than in an older one
+     * @param older a catalog this one was built from, directly or through other versions
+     * @return the sorted ids that were added or changed since the older catalog, which is empty if it's this catalog,
+     * or null if the older catalog is too old or unrelated, and every item should be considered changed.
+     * The array may be shared, so it mustn't be changed.
+     */
+    public int[] changedSince(ItemCatalog older) {
+        if (older == this) {
+            return new int[0];
+        }
+
+        int start = -1;
+        for (int i = 0; i < historyVersions.length; i++) {
+            if (historyVersions[i] == older.version) {
+                start = i;
+                break;
+            }
+        }
+        if (start < 0) {
+            return null;
+        }
+
+        if (start == historyVersions.length - 1) {
+            return historyChanges[start];
+        }
+
+        // Several versions were skipped, so the ids of all of them are merged
+        int[] merged = new int[0];
+        for (int i = start; i < historyChanges.length; i++) {
+            int[] ids = historyChanges[i];
+            int[] union = new int[merged.length + ids.length];
+            int a = 0;
+            int b = 0;
+            int n = 0;
+            while (a < merged.length || b < ids.length) {
+                int next = b >= ids.length || (a < merged.length && merged[a] <= ids[b]) ? merged[a++] : ids[b++];
+                if (n == 0 || union[n - 1] != next) {
+                    union[n++] = next;
+                }
+            }
+            merged = Arrays.copyOf(union, n);
+        }
+        return merged;
+    }
+
+    /**
+     * Makes names that only differ in case or surrounding whitespace the same
+     * @param name the name of an item
+     * @return the name used to look up the item
+     */
+    public static String normalizeName(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Finds an item by its id
+     * @param id the id of the item
+     * @return the item with the given id, or null if no such item exists
+     */
+    public Item getItem(int id) {
+        if (byId != null) {
+            long index = (long) id - minId;
+            return index >= 0 && index < byId.length ? byId[(int) index] : null;
+        }
+
+        int index = Arrays.binarySearch(sortedIds, id);
+        return index >= 0 ? sortedItems[index] : null;
+    }
+
+    /**
+     * Finds an item by its name, ignoring case and surrounding whitespace
+     * @param name the name of the item
+     * @return the item with the given name, or null if no such item exists
+     */
+    public Item getItemByName(String name) {
+        return name == null ? null : byName.get(normalizeName(name));
+    }
+
+    /**
+     * @param type a type of item
+     * @return every item of the type, in the order they were added. The list can't be changed.
+     */
+    public List<Item> getItems(ItemType type) {
+        return byType.getOrDefault(type, List.of());
+    }
+
+    /**
+     * @return every item, in the order they were added. The list can't be changed.
+     */
+    public List<Item> getItems() {
+        return items;
+    }
+
+    /**
+     * @return the number of items in the catalog
+     */
+    public int size() {
+        return items.size();
+    }
+}
@@ -0,0 +1,454 @@
+package com.codecrafter.items;
+
+import com.codecrafter.inventory.Item;
+import com.codecrafter.inventory.ItemType;
+import com.codecrafter.inventory.JsonMappers;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Loads an item catalog from a definitions file, either a JSON array of items or a CSV file with a header row.
+ * The first time a definitions file is loaded, the catalog is compiled into a compact binary snapshot next to it.
+ * Later loads map the snapshot into memory and read the items straight from it, without parsing the definitions,
+ * as long as the definitions file hasn't changed since. Whether it has changed is found by comparing a checksum of
+ * its bytes, so an edit that keeps the length and modified time, or a copy with a new modified time, is handled right.
+ * The snapshot has a checksum of its own as well, so a damaged snapshot is compiled again instead of being used.
+ * <p>
+ * The CSV columns are type, id, name, weight, maxStack, weaponHandedness, damage, durability and throwingDistance,
+ * in any order. Columns that don't apply to the type of an item can be left empty. Values with commas can be quoted.
+ * <pre>
+ * snapshot header: int magic, int version, long definitions length, long definitions checksum,
+ *                  int item count, int payload length, int payload checksum
+ * every item:      byte type, int id, name, double weight, int maxStack, then the fields of the type
+ * </pre>
+ */
+public final class ItemCatalogLoader {
+    /**
+     * Added to the filename of the definitions to get the snapshot
+     */
+    public static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    /**
+     * The first bytes of a snapshot, "GCAT"
+     */
+    private static final int MAGIC = 0x47434154;
+    /**
+     * The version of the snapshot layout
+     */
+    private static final int VERSION = 2;
+    /**
+     * The size of the snapshot header
+     */
+    private static final int HEADER_SIZE = 36;
+
+    private ItemCatalogLoader() { }
+
+    /**
+     * Loads a catalog from a definitions file, using the snapshot of it when it's up to date.
+     * If the snapshot is missing, outdated or damaged, the definitions are parsed and a new snapshot is written.
+     * Not being able to write the snapshot isn't an error, the definitions are just parsed again the next time.
+     * @param definitions the definitions file, ending in .csv for CSV and anything else for JSON
+     * @return the catalog with every item in the definitions
+     * @throws IOException if the definitions couldn't be read or are formatted incorrectly
+     * @throws IllegalArgumentException if two items have the same id or name
+     */
+    public static ItemCatalog load(File definitions) throws IOException {
+        // The definitions are only read once, so the checksum always belongs to the items that are parsed
+        byte[] bytes = Files.readAllBytes(definitions.toPath());
+        long checksum = checksum(bytes);
+
+        File snapshot = new File(definitions.getPath() + SNAPSHOT_SUFFIX);
+        if (snapshot.isFile()) {
+            try {
+                ItemCatalog catalog = readSnapshot(snapshot, bytes.length, checksum);
+                if (catalog != null) {
+                    return catalog;
+                }
+            } catch (IOException e) {
+                // A damaged snapshot is compiled again
+            }
+        }
+
+        ItemCatalog catalog = ItemCatalog.of(readDefinitions(definitions.getName(), bytes));
+
+        try {
+            writeSnapshot(snapshot, catalog, bytes.length, checksum);
+        } catch (IOException e) {
+            System.out.println("Could not write the item snapshot, so the items will be read from " + definitions + " again");
+        }
+        return catalog;
+    }
+
+    /**
+     * Reads every item in a definitions file
+     * @param definitions the definitions file, ending in .csv for CSV and anything else for JSON
+     * @return the items, in the order they're defined
+     * @throws IOException if the file couldn't be read or is formatted incorrectly
+     */
+    public static List<Item> readDefinitions(File definitions) throws IOException {
+        return readDefinitions(definitions.getName(), Files.readAllBytes(definitions.toPath()));
+    }
+
+    /**
+     * Reads every item in the contents of a definitions file
+     * @param name the name of the definitions file, ending in .csv for CSV and anything else for JSON
+     * @param bytes the contents of the file
+     * @return the items, in the order they're defined
+     * @throws IOException if the contents are formatted incorrectly
+     */
+    private static List<Item> readDefinitions(String name, byte[] bytes) throws IOException {
+        if (name.toLowerCase(Locale.ROOT).endsWith(".csv")) {
+            return readCsv(name, bytes);
+        }
+
+        Item[] items = JsonMappers.readerFor(Item[].class).readValue(bytes);
+        return Arrays.asList(items);
+    }
+
+    /**
+     * @param bytes the contents of a definitions file
+     * @return the checksum the snapshot is compared by
+     */
+    private static long checksum(byte[] bytes) {
+        var crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    /**
+     * Writes items to a JSON definitions file, e.g. to create a file with the default items that can be edited
+     * @param definitions the file to write
+     * @param items the items to write
+     * @throws IOException if the file couldn't be written
+     */
+    public static void writeDefinitions(File definitions, Collection<Item> items) throws IOException {
+        JsonMappers.writerFor(Item[].class).withDefaultPrettyPrinter().writeValue(definitions, items.toArray(new Item[0]));
+    }
+
+    /**
+     * Reads items from a CSV file with a header row
+     * @param name the name of the file, used in errors
+     * @param bytes the contents of the file
+     * @return the items, in the order they're defined
+     * @throws IOException if the file is formatted incorrectly
+     */
+    private static List<Item> readCsv(String name, byte[] bytes) throws IOException {
+        List<Item> items = new ArrayList<>();
+        try (var reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8))) {
+            String header = reader.readLine();
+            if (header == null) {
+                return items;
+            }
+
+            Map<String, Integer> columns = new HashMap<>();
+            List<String> names = splitCsvLine(header);
+            for (int i = 0; i < names.size(); i++) {
+                columns.put(names.get(i).trim(), i);
+            }
+
+            String line;
+            int lineNumber = 1;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+
+                try {
+                    items.add(parseCsvItem(splitCsvLine(line), columns));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Line " + lineNumber + " of " + name + " is not a valid item: " + e.getMessage(), e);
+                }
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Creates an item from a CSV row
+     * @param values the values in the row
+     * @param columns the index of every column by name
+     * @return the item
+     * @throws IllegalArgumentException if a value is missing or formatted incorrectly
+     */
+    private static Item parseCsvItem(List<String> values, Map<String, Integer> columns) {
+        ItemType type = ItemType.valueOf(csvValue(values, columns, "type"));
+        int id = Integer.parseInt(csvValue(values, columns, "id"));
+        String name = csvValue(values, columns, "name");
+        double weight = Double.parseDouble(csvValue(values, columns, "weight"));
+        int maxStack = Integer.parseInt(csvValue(values, columns, "maxStack"));
+
+        return switch (type) {
+            case Armor -> new ArmorItem(id, name, weight, maxStack);
+            case ConsumablePotion -> new ConsumablePotion(id, name, weight, maxStack);
+            case Weapon -> new WeaponItem(id, name, weight, maxStack,
+                    WeaponHandedness.valueOf(csvValue(values, columns, "weaponHandedness")),
+                    Double.parseDouble(csvValue(values, columns, "damage")),
+                    Integer.parseInt(csvValue(values, columns, "durability")));
+            case ThrowingWeapon -> new ThrowingWeapon(id, name, weight, maxStack,
+                    WeaponHandedness.valueOf(csvValue(values, columns, "weaponHandedness")),
+                    Double.parseDouble(csvValue(values, columns, "damage")),
+                    Integer.parseInt(csvValue(values, columns, "durability")),
+                    Double.parseDouble(csvValue(values, columns, "throwingDistance")));
+        };
+    }
+
+    /**
+     * @return the value in a column of a CSV row, without surrounding whitespace
+     * @throws IllegalArgumentException if the column doesn't exist, or is empty in the row
+     */
+    private static String csvValue(List<String> values, Map<String, Integer> columns, String column) {
+        Integer index = columns.get(column);
+        String value = index != null && index < values.size() ? values.get(index).trim() : "";
+        if (value.isEmpty()) {
+            throw new IllegalArgumentException("missing " + column);
+        }
+        return value;
+    }
+
+    /**
+     * Splits a CSV line into its values. Values can be quoted, and a quote inside a quoted value is written twice.
+     * @param line the line to split
+     * @return the values in the line
+     */
+    private static List<String> splitCsvLine(String line) {
+        List<String> values = new ArrayList<>();
+        var value = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values;
+    }
+
+    /**
+     * Writes a catalog as a snapshot. The snapshot is written to a temp file first and renamed, so a crash never
+     * leaves a half-written snapshot.
+     * @param snapshot the file to write
+     * @param catalog the catalog to write
+     * @param definitionsLength the length of the definitions file the catalog was read from
+     * @param definitionsChecksum the CRC32 of the contents of the definitions file
+     * @throws IOException if the snapshot couldn't be written
+     */
+    public static void writeSnapshot(File snapshot, ItemCatalog catalog, long definitionsLength, long definitionsChecksum) throws IOException {
+        var payload = new ByteArrayOutputStream();
+        var out = new DataOutputStream(payload);
+        for (Item item : catalog.getItems()) {
+            writeItem(out, item);
+        }
+
+        var crc = new CRC32();
+        crc.update(payload.toByteArray());
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(definitionsLength).putLong(definitionsChecksum)
+                .putInt(catalog.size()).putInt(payload.size()).putInt((int) crc.getValue()).flip();
+
+        Path target = snapshot.toPath();
+        Path temp = Path.of(snapshot.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer body = ByteBuffer.wrap(payload.toByteArray());
+            while (header.hasRemaining() || body.hasRemaining()) {
+                channel.write(new ByteBuffer[] { header, body });
+            }
+            channel.force(true);
+        }
+
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Writes a single item to a snapshot
+     * @param out where to write the item
+     * @param item the item to write
+     * @throws IOException if the item couldn't be written
+     * @throws IllegalArgumentException if the item has no type
+     */
+    private static void writeItem(DataOutputStream out, Item item) throws IOException {
+        if (item.getType() == null) {
+            throw new IllegalArgumentException("The item " + item.getId() + " has no type");
+        }
+
+        out.writeByte(item.getType().ordinal());
+        out.writeInt(item.getId());
+        writeString(out, item.getName());
+        out.writeDouble(item.getWeight());
+        out.writeInt(item.getMaxStack());
+
+        switch (item.getType()) {
+            case Armor, ConsumablePotion -> { }
+            case Weapon -> {
+                var weapon = (WeaponItem) item;
+                writeHandedness(out, weapon.getWeaponHandedness());
+                out.writeDouble(weapon.getDamage());
+                out.writeInt(weapon.getMaxDurability());
+            }
+            case ThrowingWeapon -> {
+                var weapon = (ThrowingWeapon) item;
+                writeHandedness(out, weapon.getWeaponHandedness());
+                out.writeDouble(weapon.getDamage());
+                out.writeInt(weapon.getMaxDurability());
+                out.writeDouble(weapon.getThrowingDistance());
+            }
+        }
+    }
+
+    /**
+     * Writes the handedness of a weapon as its ordinal, or -1 if it's null
+     */
+    private static void writeHandedness(DataOutputStream out, WeaponHandedness handedness) throws IOException {
+        out.writeByte(handedness == null ? -1 : handedness.ordinal());
+    }
+
+    /**
+     * Writes a string with its length in front, or -1 if it's null
+     */
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a catalog from a snapshot, by mapping it into memory
+     * @param snapshot the snapshot to read
+     * @param definitionsLength the current length of the definitions file
+     * @param definitionsChecksum the CRC32 of the current contents of the definitions file
+     * @return the catalog, or null if the snapshot was made from another version of the definitions
+     * @throws IOException if the snapshot couldn't be read, or is damaged
+     */
+    public static ItemCatalog readSnapshot(File snapshot, long definitionsLength, long definitionsChecksum) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("The item snapshot is too small");
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not an item snapshot of this version");
+            }
+            if (buffer.getLong() != definitionsLength || buffer.getLong() != definitionsChecksum) {
+                return null;
+            }
+
+            int count = buffer.getInt();
+            int payloadLength = buffer.getInt();
+            long checksum = buffer.getInt() & 0xFFFFFFFFL;
+            if (count < 0 || payloadLength < 0 || payloadLength != buffer.remaining()) {
+                throw new IOException("The item snapshot has the wrong length");
+            }
+
+            var crc = new CRC32();
+            crc.update(buffer.duplicate());
+            if (crc.getValue() != checksum) {
+                throw new IOException("The checksum of the item snapshot doesn't match");
+            }
+
+            List<Item> items = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                items.add(readItem(buffer));
+            }
+            return ItemCatalog.of(items);
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("The item snapshot is damaged", e);
+        }
+    }
+
+    /**
+     * Reads a single item from a snapshot
+     * @param buffer the snapshot, at the start of the item
+     * @return the item
+     */
+    private static Item readItem(ByteBuffer buffer) {
+        ItemType type = ItemType.values()[buffer.get()];
+        int id = buffer.getInt();
+        String name = readString(buffer);
+        double weight = buffer.getDouble();
+        int maxStack = buffer.getInt();
+
+        return switch (type) {
+            case Armor -> new ArmorItem(id, name, weight, maxStack);
+            case ConsumablePotion -> new ConsumablePotion(id, name, weight, maxStack);
+            case Weapon -> new WeaponItem(id, name, weight, maxStack, readHandedness(buffer), buffer.getDouble(), buffer.getInt());
+            case ThrowingWeapon -> new ThrowingWeapon(id, name, weight, maxStack, readHandedness(buffer),
+                    buffer.getDouble(), buffer.getInt(), buffer.getDouble());
+        };
+    }
+
+    /**
+     * Reads the handedness written by writeHandedness()
+     */
+    private static WeaponHandedness readHandedness(ByteBuffer buffer) {
+        byte ordinal = buffer.get();
+        return ordinal < 0 ? null : WeaponHandedness.values()[ordinal];
+    }
+
+    /**
+     * Reads a string written by writeString()
+     */
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,11 +1,26 @@
 package com.codecrafter.items;
 
 import com.codecrafter.inventory.Item;
+import com.codecrafter.inventory.ItemType;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A simple class for managing available items in the program, using the singleton pattern.
+ * The items are kept in an immutable ItemCatalog, which is replaced as a whole when items are added.
+ * Reading items never locks, and always sees a whole catalog, so any number of threads can look up items.
+ * <p>
+ * The items can be reloaded from their definitions file while the program runs. The new catalog is built in the
+ * background and replaces the old one in a single write, and inventories bring the slots with changed items up to
+ * date the next time they are used.
  */
 public class ItemManager {
     /**
@@ -21,22 +36,164 @@ public class ItemManager {
     }
 
     /**
-     * A list of all available items.
+     * The catalog of all available items.
+     * Volatile, so a new catalog is seen by every thread as soon as it's set.
      */
-    private final List<Item> items = new ArrayList<>();
+    private volatile ItemCatalog catalog = ItemCatalog.empty();
+    /**
+     * Loads new catalogs in the background. Only created once something is reloaded.
+     */
+    private ScheduledExecutorService reloader;
 
     /**
-     * Inserts a new item to the manager, making it available to the entire program
+     * Inserts a new item to the manager, making it available to the entire program.
+     * This builds a new catalog every time, so it's meant for setting up the items when the program starts.
+     * Use setCatalog() to set many items at once.
      * @param item the new item to insert
+     * @throws IllegalArgumentException if an item with the same id or name already exists
+     */
+    public synchronized void insertItem(Item item) {
+        catalog = catalog.with(item);
+    }
+
+    /**
+     * @return the catalog of all available items. It never changes, so it can be kept to look up many items.
+     */
+    public ItemCatalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * Replaces every available item. The catalog isn't compared with the old one, so inventories check every slot
+     * the next time they are used. Use reload() to only update the items that changed.
+     * @param catalog the new catalog of items
+     */
+    public synchronized void setCatalog(ItemCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * Replaces the items with new definitions of them, keeping the items that didn't change as they are.
+     * Inventories only have to update the slots with the items that were added or changed, see ItemCatalog.reload().
+     * @param definitions the new definitions of the items
+     * @return the new catalog
+     * @throws IllegalArgumentException if two of the definitions have the same id or name
+     */
+    public ItemCatalog reload(Collection<Item> definitions) {
+        // The new catalog is built before locking, so only the swap itself waits for other writers
+        ItemCatalog base = catalog;
+        ItemCatalog next = base.reload(definitions);
+        synchronized (this) {
+            if (catalog != base) {
+                // Something else replaced the catalog meanwhile, so the changes are found against that one instead
+                next = catalog.reload(definitions);
+            }
+            catalog = next;
+        }
+        return next;
+    }
+
+    /**
+     * Loads the definitions file in the background, and replaces the items with the definitions when it's loaded.
+     * Items can be looked up from the old catalog until then.
+     * @param definitions the definitions file, see ItemCatalogLoader
+     * @return the new catalog when it's been loaded and published. Fails if the definitions couldn't be loaded,
+     * and then the old catalog is kept.
+     */
+    public CompletableFuture<ItemCatalog> reloadAsync(File definitions) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return reload(ItemCatalogLoader.load(definitions).getItems());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, getReloader());
+    }
+
+    /**
+     * Checks the definitions file in the background, and reloads the items whenever it has changed
+     * @param definitions the definitions file, see ItemCatalogLoader
+     * @param interval how often the file is checked
+     */
+    public void watch(File definitions, Duration interval) {
+        long millis = Math.max(interval.toMillis(), 1);
+        long[] seen = { definitions.length(), definitions.lastModified() };
+        getReloader().scheduleWithFixedDelay(() -> {
+            long length = definitions.length();
+            long modified = definitions.lastModified();
+            if (length == seen[0] && modified == seen[1]) {
+                return;
+            }
+            seen[0] = length;
+            seen[1] = modified;
+
+            try {
+                reload(ItemCatalogLoader.load(definitions).getItems());
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("The items in " + definitions.getName() + " couldn't be reloaded: " + e.getMessage());
+            }
+        }, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the executor that loads new catalogs, created the first time it's needed
+     */
+    private synchronized ScheduledExecutorService getReloader() {
+        if (reloader == null) {
+            reloader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "item-catalog");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return reloader;
+    }
+
+    /**
+     * Finds an item by its id
+     * @param id the id of the item
+     * @return the item with the given id, or null if no such item exists
+     */
+    public Item getItem(int id) {
+        return catalog.getItem(id);
+    }
+
+    /**
+     * Finds an item by its name, ignoring case and surrounding whitespace
+     * @param name the name of the item
+     * @return the item with the given name, or null if no such item exists
+     */
+    public Item getItemByName(String name) {
+        return catalog.getItemByName(name);
+    }
+
+    /**
+     * Finds the shared instance of an item, so copies of the same item, e.g. read from a file,
+     * don't each have to be kept around.
+     * @param item the item to find the shared instance of
+     * @return the known item with the same id, or the given item if the id isn't known
+     */
+    public Item intern(Item item) {
+        if (item == null) {
+            return null;
+        }
+
+        Item known = getItem(item.getId());
+        return known != null ? known : item;
+    }
+
+    /**
+     * @param type a type of item
+     * @return every available item of the given type. The list can't be changed.
      */
-    public void insertItem(Item item) {
-        items.add(item);
+    public List<Item> getItems(ItemType type) {
+        return catalog.getItems(type);
     }
 
     /**
-     * @return a list of all available items in the program.
+     * @return a list of all available items in the program. The list can't be changed.
      */
     public List<Item> getItems() {
-        return items;
+        return catalog.getItems();
     }
 }
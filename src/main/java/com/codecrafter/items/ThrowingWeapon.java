@@ -2,6 +2,7 @@ package com.codecrafter.items;
 
 import com.codecrafter.inventory.Item;
 import com.codecrafter.inventory.ItemType;
+import com.fasterxml.jackson.annotation.JsonProperty;
 
 /**
  * A throwindweapon item that extends Item.
@@ -16,8 +17,10 @@ public class ThrowingWeapon extends Item {
      */
     private double damage;
     /**
-     * The durbility of the item
+     * The durability a new stack of this weapon starts with.
+     * The durability of a specific stack is kept in the slot it's in.
      */
+    @JsonProperty("durability")
     private int durability;
     /**
      * The distance the throwing weapon can be thrown
@@ -38,7 +41,33 @@ public class ThrowingWeapon extends Item {
     }
 
     @Override
-    protected void use() {
+    protected int use(int durability) {
+        return durability;
+    }
+
+    @Override
+    public int getMaxDurability() {
+        return durability;
+    }
+
+    /**
+     * @return which hand the weapon can be held in
+     */
+    public WeaponHandedness getWeaponHandedness() {
+        return weaponHandedness;
+    }
 
+    /**
+     * @return the damage that the weapon does
+     */
+    public double getDamage() {
+        return damage;
+    }
+
+    /**
+     * @return the distance the weapon can be thrown
+     */
+    public double getThrowingDistance() {
+        return throwingDistance;
     }
 }
@@ -2,6 +2,7 @@ package com.codecrafter.items;
 
 import com.codecrafter.inventory.Item;
 import com.codecrafter.inventory.ItemType;
+import com.fasterxml.jackson.annotation.JsonProperty;
 
 /**
  * A weapon item that extends Item.
@@ -16,8 +17,10 @@ public class WeaponItem extends Item {
      */
     private double damage;
     /**
-     * The durbility of the item
+     * The durability a new one of this weapon starts with.
+     * The durability of a specific weapon is kept in the slot it's in.
      */
+    @JsonProperty("durability")
     private int durability;
 
     /**
@@ -33,8 +36,26 @@ public class WeaponItem extends Item {
     }
 
     @Override
-    protected void use() {
-        durability--;
+    protected int use(int durability) {
+        return Math.max(durability - 1, 0);
+    }
+
+    @Override
+    public int getMaxDurability() {
+        return durability;
+    }
+
+    /**
+     * @return which hand the weapon can be held in
+     */
+    public WeaponHandedness getWeaponHandedness() {
+        return weaponHandedness;
     }
-}
 
+    /**
+     * @return the damage that the weapon does
+     */
+    public double getDamage() {
+        return damage;
+    }
+}
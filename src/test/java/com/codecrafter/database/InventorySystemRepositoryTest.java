@@ -0,0 +1,205 @@
+package com.codecrafter.database;
+
+import com.codecrafter.inventory.Inventory;
+import com.codecrafter.inventory.Item;
+import com.codecrafter.items.ConsumablePotion;
+import com.codecrafter.items.ItemManager;
+import com.codecrafter.items.WeaponHandedness;
+import com.codecrafter.items.WeaponItem;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The contract every InventorySystemRepository has to follow. Each test runs against every implementation,
+ * and reopens the repository from disk to check that what was saved is what gets read back.
+ */
+class InventorySystemRepositoryTest {
+    /**
+     * Opens a repository on the given file
+     */
+    @FunctionalInterface
+    interface RepositoryOpener {
+        InventorySystemRepository open(String fileName) throws Exception;
+    }
+
+    private static Item sword;
+    private static Item potion;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * The repositories opened by a test, closed again after it
+     */
+    private final List<InventorySystemRepository> opened = new ArrayList<>();
+
+    @BeforeAll
+    static void insertItems() {
+        sword = new WeaponItem(9001, "Contract Sword", 1.5, 1, WeaponHandedness.MainHand, 10, 100);
+        potion = new ConsumablePotion(9002, "Contract Potion", 0.2, 20);
+        ItemManager.getInstance().insertItem(sword);
+        ItemManager.getInstance().insertItem(potion);
+    }
+
+    static Stream<Arguments> repositories() {
+        return Stream.of(
+                Arguments.of("File", (RepositoryOpener) FileRepository::new),
+                Arguments.of("Sqlite", (RepositoryOpener) SqliteRepository::new),
+                Arguments.of("Lazy", (RepositoryOpener) fileName -> new LazyFileRepository(fileName, 2)),
+                Arguments.of("Mapped", (RepositoryOpener) MappedRepository::new),
+                Arguments.of("Journal", (RepositoryOpener) JournalRepository::new),
+                Arguments.of("WriteBehind", (RepositoryOpener) fileName ->
+                        new WriteBehindRepository(new FileRepository(fileName), Duration.ofMillis(50)))
+        );
+    }
+
+    @AfterEach
+    void closeAll() throws Exception {
+        for (InventorySystemRepository repository : opened) {
+            close(repository);
+        }
+        opened.clear();
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("repositories")
+    void startsEmpty(String name, RepositoryOpener opener) throws Exception {
+        InventorySystemRepository repository = open(opener);
+        assertTrue(repository.getInventories().isEmpty());
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("repositories")
+    void savedInventoriesAreReadBack(String name, RepositoryOpener opener) throws Exception {
+        InventorySystemRepository repository = open(opener);
+        Inventory first = repository.newInventory("First", 8);
+        first.insertToSlot(0, sword, 1);
+        first.insertToSlot(3, potion, 12);
+        first.decrementSlot(3);
+        Inventory second = repository.newInventory("Second", 16);
+        second.add(potion, 25);
+        repository.save();
+
+        List<Inventory> expected = List.of(first, second);
+        List<Inventory> actual = reopen(repository, opener).getInventories();
+        assertSameInventories(expected, actual);
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("repositories")
+    void changesAfterReopenAreSaved(String name, RepositoryOpener opener) throws Exception {
+        InventorySystemRepository repository = open(opener);
+        repository.newInventory("Before", 8).add(potion, 5);
+        repository.save();
+
+        repository = reopen(repository, opener);
+        Inventory inventory = repository.getInventories().getFirst();
+        inventory.setName("After");
+        inventory.clearSlot(0);
+        inventory.insertToSlot(2, sword, 1);
+        repository.save();
+
+        assertSameInventories(List.of(inventory), reopen(repository, opener).getInventories());
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("repositories")
+    void addedInventoryIsSaved(String name, RepositoryOpener opener) throws Exception {
+        InventorySystemRepository repository = open(opener);
+        Inventory inventory = new Inventory("Added", 4);
+        inventory.insertToSlot(1, potion, 7);
+        repository.addInventory(inventory);
+        repository.save();
+
+        assertSameInventories(List.of(inventory), reopen(repository, opener).getInventories());
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("repositories")
+    void removedInventoryStaysRemoved(String name, RepositoryOpener opener) throws Exception {
+        InventorySystemRepository repository = open(opener);
+        Inventory kept = repository.newInventory("Kept", 4);
+        Inventory removed = repository.newInventory("Removed", 4);
+        removed.add(potion, 3);
+        repository.save();
+
+        repository.removeInventory(removed);
+        repository.save();
+
+        assertSameInventories(List.of(kept), reopen(repository, opener).getInventories());
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("repositories")
+    void lockedSlotsKeepTheirItems(String name, RepositoryOpener opener) throws Exception {
+        InventorySystemRepository repository = open(opener);
+        Inventory inventory = repository.newInventory("Locked", 8);
+        inventory.insertToSlot(1, potion, 4);
+        inventory.insertToSlot(6, sword, 1);
+        inventory.setUnlockedSlots(4);
+        repository.save();
+
+        Inventory read = reopen(repository, opener).getInventories().getFirst();
+        assertEquals(4, read.getUnlockedSlots());
+        assertEquals(potion.getWeight() * 4, read.getWeight(), 1e-9);
+
+        read.setUnlockedSlots(8);
+        assertSame(sword, read.getItemAt(6));
+        assertEquals(1, read.getCountAt(6));
+        assertEquals(1, read.countOf(sword.getId()));
+    }
+
+    private InventorySystemRepository open(RepositoryOpener opener) throws Exception {
+        InventorySystemRepository repository = opener.open(dir.resolve("inventories").toString());
+        opened.add(repository);
+        return repository;
+    }
+
+    private InventorySystemRepository reopen(InventorySystemRepository repository, RepositoryOpener opener) throws Exception {
+        repository.flush();
+        close(repository);
+        opened.remove(repository);
+        return open(opener);
+    }
+
+    private static void close(InventorySystemRepository repository) throws Exception {
+        if (repository instanceof AutoCloseable closeable) {
+            closeable.close();
+        }
+    }
+
+    /**
+     * Compares the inventories by their saved state, since a reopened repository gives out new instances.
+     * Repositories don't have to keep the order of the inventories, so they're matched by id.
+     */
+    private static void assertSameInventories(List<Inventory> expected, List<Inventory> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (Inventory e : expected) {
+            Inventory a = actual.stream()
+                    .filter(inventory -> inventory.getId().equals(e.getId()))
+                    .findFirst()
+                    .orElseThrow(() -> new AssertionError("missing inventory " + e.getName()));
+            assertEquals(e.getName(), a.getName());
+            assertEquals(e.getUnlockedSlots(), a.getUnlockedSlots());
+            assertEquals(e.getWeight(), a.getWeight(), 1e-9);
+            for (int slot = 0; slot < e.getUnlockedSlots(); slot++) {
+                Item item = e.getItemAt(slot);
+                assertEquals(item == null ? null : item.getId(), a.getItemAt(slot) == null ? null : a.getItemAt(slot).getId(), "item in slot " + slot);
+                assertEquals(e.getCountAt(slot), a.getCountAt(slot), "count in slot " + slot);
+                assertEquals(e.getDurabilityAt(slot), a.getDurabilityAt(slot), "durability in slot " + slot);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.codecrafter.database;
+
+import com.codecrafter.inventory.Inventory;
+import com.codecrafter.inventory.Item;
+import com.codecrafter.items.ConsumablePotion;
+import com.codecrafter.items.ItemManager;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that MappedRepository never loses a saved inventory when a save is cut short by a crash.
+ * The crash is made by putting together the file from before and after a save.
+ */
+class MappedRepositoryTest {
+    private static Item potion;
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void insertItems() {
+        potion = new ConsumablePotion(9101, "Mapped Potion", 0.2, 20);
+        ItemManager.getInstance().insertItem(potion);
+    }
+
+    /**
+     * Makes the file a save leaves when it crashes after the new record of an inventory is on the disk,
+     * but before the header with the new number of records is, and reopens it.
+     * @param oldRecordFreed if the old record of the inventory had been freed when it crashed
+     */
+    @ParameterizedTest(name = "old record freed: {0}")
+    @ValueSource(booleans = {false, true})
+    void crashAfterNewRecordKeepsTheInventory(boolean oldRecordFreed) throws Exception {
+        Path path = dir.resolve("inventories.db");
+        String id;
+        try (MappedRepository repository = new MappedRepository(path.toString())) {
+            Inventory inventory = repository.newInventory("Before", 8);
+            inventory.insertToSlot(0, potion, 3);
+            repository.save();
+            id = inventory.getId();
+            // Takes the record freed by the save above, so the next save has to use a new record
+            repository.newInventory("Other", 4);
+        }
+        byte[] before = Files.readAllBytes(path);
+
+        try (MappedRepository repository = new MappedRepository(path.toString())) {
+            Inventory inventory = repository.getInventory(id);
+            inventory.setName("After");
+            inventory.insertToSlot(1, potion, 5);
+            repository.save();
+        }
+        byte[] after = Files.readAllBytes(path);
+
+        // The header from before the save, and the old record as it was before or after it was freed
+        int headerSize = MappedRepository.recordOffset(0);
+        int oldRecord = freedRecord(before, after);
+        int newRecord = usedRecord(before, after);
+        assertTrue(newRecord >= 0 && newRecord >= recordCount(before), "the save should have used a new record");
+
+        byte[] crashed = after.clone();
+        System.arraycopy(before, 0, crashed, 0, headerSize);
+        if (!oldRecordFreed) {
+            int offset = MappedRepository.recordOffset(oldRecord);
+            System.arraycopy(before, offset, crashed, offset, MappedRepository.dataOffset(oldRecord) - offset);
+        }
+        Files.write(path, crashed);
+
+        try (MappedRepository repository = new MappedRepository(path.toString())) {
+            assertEquals(2, repository.getInventories().size());
+            Inventory inventory = repository.getInventory(id);
+            assertEquals("After", inventory.getName());
+            assertEquals(8, inventory.countOf(potion.getId()));
+
+            // The records are in a state a new save can build on
+            repository.newInventory("New", 4).insertToSlot(0, potion, 1);
+            inventory.setName("Again");
+            repository.save();
+        }
+
+        try (MappedRepository repository = new MappedRepository(path.toString())) {
+            assertEquals(3, repository.getInventories().size());
+            assertEquals("Again", repository.getInventory(id).getName());
+        }
+    }
+
+    /**
+     * @return the record that was used in the first file and is free in the second
+     */
+    private static int freedRecord(byte[] first, byte[] second) {
+        for (int record = 0; MappedRepository.dataOffset(record) <= first.length; record++) {
+            if (generation(first, record) != 0 && generation(second, record) == 0) {
+                return record;
+            }
+        }
+        return fail("no record was freed");
+    }
+
+    /**
+     * @return the record that was free in the first file and is used in the second, or -1 if there is none
+     */
+    private static int usedRecord(byte[] first, byte[] second) {
+        for (int record = 0; MappedRepository.dataOffset(record) <= first.length; record++) {
+            if (generation(first, record) == 0 && generation(second, record) != 0) {
+                return record;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the generation at the start of a record, which is 0 if the record is free
+     */
+    private static int generation(byte[] file, int record) {
+        return ByteBuffer.wrap(file).getInt(MappedRepository.recordOffset(record));
+    }
+
+    /**
+     * @return the number of records in use according to the header
+     */
+    private static int recordCount(byte[] file) {
+        return ByteBuffer.wrap(file).getInt(12);
+    }
+}
@@ -0,0 +1,115 @@
+package com.codecrafter.database;
+
+import com.codecrafter.inventory.Inventory;
+import com.codecrafter.inventory.InventoryJsonCodec;
+import com.codecrafter.inventory.Item;
+import com.codecrafter.inventory.SortValue;
+import com.codecrafter.items.ConsumablePotion;
+import com.codecrafter.items.ItemCatalog;
+import com.codecrafter.items.ItemManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that replaying the journal gives the inventory the changes were made to, even when the items
+ * have been reloaded in between.
+ */
+class OperationJournalTest {
+    private final ItemManager manager = ItemManager.getInstance();
+    /**
+     * The catalog before the test, which is set again after it, so other tests keep their items
+     */
+    private ItemCatalog previousCatalog;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * @return three potions, where the first and the last one have the given weights
+     */
+    private static List<Item> definitions(double firstWeight, double lastWeight) {
+        return List.of(
+                new ConsumablePotion(9201, "Journal Alpha", firstWeight, 10),
+                new ConsumablePotion(9202, "Journal Beta", 2.0, 10),
+                new ConsumablePotion(9203, "Journal Gamma", lastWeight, 10)
+        );
+    }
+
+    @BeforeEach
+    void setCatalog() {
+        previousCatalog = manager.getCatalog();
+        manager.setCatalog(ItemCatalog.of(definitions(1.0, 3.0)));
+    }
+
+    @AfterEach
+    void restoreCatalog() {
+        manager.setCatalog(previousCatalog);
+    }
+
+    @Test
+    void sortIsReplayedInTheRecordedOrder() throws Exception {
+        Inventory inventory = new Inventory("Sorted", 6);
+        inventory.insertToSlot(0, manager.getItem(9203), 1);
+        inventory.insertToSlot(1, manager.getItem(9201), 2);
+        inventory.insertToSlot(3, manager.getItem(9202), 3);
+
+        byte[] snapshot = InventoryJsonCodec.toBytes(inventory);
+        long checksum = OperationJournal.checksum(snapshot);
+        File file = dir.resolve("inventories.journal").toFile();
+
+        OperationJournal journal = new OperationJournal(file, false);
+        journal.reset(snapshot.length, checksum);
+        inventory.setListener(journal);
+        inventory.sortInventory(SortValue.Weight);
+        // Later changes refer to slots by index, so they only hit the right slot if the order is the same
+        inventory.swapSlots(0, 4);
+        inventory.clearSlot(1);
+        journal.close(true);
+        List<String> expected = slots(inventory);
+
+        // Sorting by weight again would give the opposite order now
+        manager.reload(definitions(3.0, 1.0));
+
+        Map<String, Inventory> inventories = new HashMap<>();
+        inventories.put(inventory.getId(), InventoryJsonCodec.read(snapshot));
+        OperationJournal replayed = new OperationJournal(file, false);
+        try {
+            // The id of the inventory, then the sort, the swap and the clear
+            assertEquals(4, replayed.replay(inventories, snapshot.length, checksum));
+        } finally {
+            replayed.close(false);
+        }
+        assertEquals(expected, slots(inventories.get(inventory.getId())));
+    }
+
+    @Test
+    void restoreOrderRejectsAnOrderThatIsntARearrangement() {
+        Inventory inventory = new Inventory("Order", 4);
+        assertThrows(IllegalArgumentException.class, () -> inventory.restoreOrder(new int[] {0, 0, 1, 2}));
+        assertThrows(IllegalArgumentException.class, () -> inventory.restoreOrder(new int[] {0, 1, 2, 3, 4}));
+        assertThrows(IllegalArgumentException.class, () -> inventory.restoreOrder(new int[] {1, 2, 3, 4}));
+    }
+
+    /**
+     * @return the item id and count of every unlocked slot
+     */
+    private static List<String> slots(Inventory inventory) {
+        List<String> slots = new ArrayList<>();
+        for (int i = 0; i < inventory.getUnlockedSlots(); i++) {
+            Item item = inventory.getItemAt(i);
+            slots.add(item == null ? "empty" : item.getId() + " x" + inventory.getCountAt(i));
+        }
+        return slots;
+    }
+}
@@ -0,0 +1,83 @@
+package com.codecrafter.database;
+
+import com.codecrafter.inventory.Inventory;
+import com.codecrafter.inventory.Item;
+import com.codecrafter.items.ConsumablePotion;
+import com.codecrafter.items.ItemManager;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that saves within the save window are merged, and that nothing is lost when the repository is closed
+ */
+class WriteBehindRepositoryTest {
+    /**
+     * Long enough that nothing is written in the background while a test runs
+     */
+    private static final Duration WINDOW = Duration.ofMinutes(10);
+
+    private static Item potion;
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void insertItems() {
+        potion = new ConsumablePotion(9401, "Write Behind Potion", 0.1, 50);
+        ItemManager.getInstance().insertItem(potion);
+    }
+
+    @Test
+    void savesWithinTheWindowAreMerged() throws Exception {
+        String fileName = dir.resolve("inventories.json").toString();
+        var repository = new WriteBehindRepository(new FileRepository(fileName), WINDOW);
+        try {
+            Inventory inventory = repository.newInventory("Burst", 8);
+            for (int i = 0; i < 20; i++) {
+                inventory.add(potion, 1);
+                repository.save();
+            }
+            assertEquals(21, repository.getRequestedSaves());
+            assertEquals(0, repository.getFlushes());
+
+            repository.flush();
+            assertEquals(1, repository.getFlushes());
+            assertEquals(20, repository.getMergedSaves());
+        } finally {
+            repository.close();
+        }
+
+        // Only the latest version of the inventory was appended to the change log
+        Path log = Path.of(fileName + ".log");
+        assertEquals(1, Files.readAllLines(log).size());
+        assertEquals(20, new FileRepository(fileName).getInventories().getFirst().countOf(potion.getId()));
+    }
+
+    @Test
+    void closeWritesPendingSaves() throws Exception {
+        String fileName = dir.resolve("inventories.json").toString();
+        var repository = new WriteBehindRepository(new FileRepository(fileName), WINDOW);
+        Inventory kept = repository.newInventory("Kept", 4);
+        Inventory removed = repository.newInventory("Removed", 4);
+        repository.flush();
+
+        kept.add(potion, 7);
+        repository.removeInventory(removed);
+        repository.save();
+        assertEquals(1, repository.getFlushes());
+
+        repository.close();
+        assertEquals(2, repository.getFlushes());
+
+        var reopened = new FileRepository(fileName);
+        assertEquals(1, reopened.getInventories().size());
+        assertEquals(7, reopened.getInventories().getFirst().countOf(potion.getId()));
+    }
+}
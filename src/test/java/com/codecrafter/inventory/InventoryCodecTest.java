@@ -0,0 +1,157 @@
+package com.codecrafter.inventory;
+
+import com.codecrafter.items.ConsumablePotion;
+import com.codecrafter.items.ItemManager;
+import com.codecrafter.items.WeaponHandedness;
+import com.codecrafter.items.WeaponItem;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that every inventory codec reads back what it wrote, and that the streaming JSON codec
+ * stays compatible with the data binding format that was used before it.
+ */
+class InventoryCodecTest {
+    private static Item sword;
+    private static Item potion;
+
+    @BeforeAll
+    static void insertItems() {
+        sword = new WeaponItem(8001, "Codec Sword", 1.5, 1, WeaponHandedness.MainHand, 10, 100);
+        potion = new ConsumablePotion(8002, "Codec Potion é", 0.05, 20);
+        ItemManager.getInstance().insertItem(sword);
+        ItemManager.getInstance().insertItem(potion);
+    }
+
+    /**
+     * @return an inventory with a used weapon, a partial stack and an item in a locked slot
+     */
+    private static Inventory sample() throws Exception {
+        Inventory inventory = new Inventory("Codec \"test\"", 12);
+        inventory.insertToSlot(0, sword, 1);
+        inventory.getSlot(0).use();
+        inventory.insertToSlot(4, potion, 17);
+        inventory.insertToSlot(11, potion, 3);
+        inventory.insertToSlot(10, sword, 1);
+        inventory.setUnlockedSlots(8);
+        return inventory;
+    }
+
+    @Test
+    void jsonRoundTrip() throws Exception {
+        Inventory inventory = sample();
+        assertSameInventory(inventory, InventoryJsonCodec.read(InventoryJsonCodec.toBytes(inventory)));
+    }
+
+    @Test
+    void streamingJsonIsReadByDataBinding() throws Exception {
+        Inventory inventory = sample();
+        Inventory read = JsonMappers.INVENTORY_READER.readValue(InventoryJsonCodec.toBytes(inventory));
+        assertSameInventory(inventory, read);
+    }
+
+    @Test
+    void dataBindingJsonIsReadByStreaming() throws Exception {
+        Inventory inventory = sample();
+        Inventory read = InventoryJsonCodec.read(JsonMappers.INVENTORY_WRITER.writeValueAsBytes(inventory));
+        assertSameInventory(inventory, read);
+    }
+
+    @Test
+    void baselineFileIsReadTheSameByBothReaders() throws Exception {
+        JsonNode file;
+        try (InputStream in = getClass().getResourceAsStream("baseline-inventories.json")) {
+            assertNotNull(in);
+            file = new ObjectMapper().readTree(in);
+        }
+
+        int inventories = 0;
+        for (JsonNode node : file.get("inventories")) {
+            byte[] json = node.toString().getBytes();
+            Inventory streamed = InventoryJsonCodec.read(json);
+            Inventory bound = JsonMappers.INVENTORY_READER.readValue(json);
+
+            assertEquals(node.get("name").asText(), streamed.getName());
+            assertEquals(node.get("slots").size(), streamed.getUnlockedSlots());
+            assertSameInventory(bound, streamed);
+            inventories++;
+        }
+        assertTrue(inventories > 0);
+    }
+
+    @Test
+    void binaryRoundTrip() throws Exception {
+        List<Inventory> inventories = List.of(sample(), new Inventory("Empty", 4), sample());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InventoryBinaryCodec.write(out, inventories);
+
+        List<Inventory> read = InventoryBinaryCodec.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(inventories.size(), read.size());
+        for (int i = 0; i < inventories.size(); i++) {
+            assertSameInventory(inventories.get(i), read.get(i));
+        }
+    }
+
+    @Test
+    void binaryRejectsJson() throws Exception {
+        byte[] json = InventoryJsonCodec.toBytes(sample());
+        assertThrows(IOException.class, () -> InventoryBinaryCodec.read(new ByteArrayInputStream(json)));
+    }
+
+    @Test
+    void recordRoundTrip() throws Exception {
+        Inventory inventory = sample();
+        int offset = InventoryRecordCodec.RECORD_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(offset * 2);
+        InventoryRecordCodec.write(buffer, offset, inventory);
+
+        assertEquals(inventory.getId(), InventoryRecordCodec.getId(buffer, offset));
+        assertEquals(inventory.getName(), InventoryRecordCodec.getName(buffer, offset));
+        assertSameInventory(inventory, InventoryRecordCodec.read(buffer, offset, ItemManager.getInstance()::getItem));
+    }
+
+    @Test
+    void recordRejectsUnknownItems() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(InventoryRecordCodec.RECORD_SIZE);
+        InventoryRecordCodec.write(buffer, 0, sample());
+        assertThrows(IOException.class, () -> InventoryRecordCodec.read(buffer, 0, id -> null));
+    }
+
+    /**
+     * Compares every slot, including the locked ones, since they're saved as well
+     */
+    static void assertSameInventory(Inventory expected, Inventory actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getUnlockedSlots(), actual.getUnlockedSlots());
+        assertEquals(expected.getWeight(), actual.getWeight(), 1e-9);
+        assertEquals(occupiedSlots(expected), occupiedSlots(actual));
+    }
+
+    /**
+     * @return a description of every slot with an item in it
+     */
+    private static List<String> occupiedSlots(Inventory inventory) {
+        List<String> slots = new ArrayList<>();
+        for (int i = 0; i < inventory.getCapacity(); i++) {
+            Item item = inventory.getItemAt(i);
+            if (item != null) {
+                slots.add(i + ": " + item.getId() + " " + item.getName() + " x" + inventory.getCountAt(i)
+                        + " durability " + inventory.getDurabilityAt(i));
+            }
+        }
+        return slots;
+    }
+}
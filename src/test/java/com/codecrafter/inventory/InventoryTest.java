@@ -0,0 +1,69 @@
+package com.codecrafter.inventory;
+
+import com.codecrafter.exceptions.InvalidSlotException;
+import com.codecrafter.items.ConsumablePotion;
+import com.codecrafter.items.ItemManager;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the slot operations of an inventory
+ */
+class InventoryTest {
+    private static Item potion;
+
+    @BeforeAll
+    static void insertItems() {
+        potion = new ConsumablePotion(9301, "Inventory Potion", 0.5, 20);
+        ItemManager.getInstance().insertItem(potion);
+    }
+
+    @Test
+    void swapOutsideTheInventoryChangesNothing() throws Exception {
+        Inventory inventory = new Inventory("Swap", 8);
+        inventory.insertToSlot(0, potion, 4);
+        int capacity = inventory.getCapacity();
+        long version = inventory.getVersion();
+
+        assertThrows(InvalidSlotException.class, () -> inventory.swapSlots(0, Inventory.MAX_SLOTS));
+        assertThrows(InvalidSlotException.class, () -> inventory.swapSlots(300, 0));
+        assertThrows(InvalidSlotException.class, () -> inventory.swapSlots(-1, 0));
+
+        assertEquals(capacity, inventory.getCapacity());
+        assertEquals(version, inventory.getVersion());
+        assertEquals(4, inventory.getCountAt(0));
+        // The inventory can still be read back, which it couldn't if a slot outside it had been written
+        assertEquals(4, InventoryJsonCodec.read(InventoryJsonCodec.toBytes(inventory)).countOf(potion.getId()));
+    }
+
+    @Test
+    void swapWithALockedSlotMovesTheItemOut() throws Exception {
+        Inventory inventory = new Inventory("Swap", 4);
+        inventory.insertToSlot(1, potion, 3);
+
+        inventory.swapSlots(1, Inventory.MAX_SLOTS - 1);
+
+        assertEquals(0, inventory.countOf(potion.getId()));
+        assertEquals(0, inventory.getWeight(), 1e-9);
+        assertEquals(Inventory.MAX_SLOTS, inventory.getCapacity());
+        assertEquals(3, InventoryJsonCodec.read(InventoryJsonCodec.toBytes(inventory)).getCountAt(Inventory.MAX_SLOTS - 1));
+    }
+
+    @Test
+    void forEachSlotShowsADecrementedStackAsEmpty() throws Exception {
+        Inventory inventory = new Inventory("Visit", 3);
+        inventory.insertToSlot(0, potion, 1);
+        inventory.insertToSlot(2, potion, 2);
+        inventory.decrementSlot(0);
+
+        List<String> visited = new ArrayList<>();
+        inventory.forEachSlot((index, item, count) -> visited.add(index + ": " + (item == null ? "empty" : item.getName()) + " " + count));
+
+        assertEquals(List.of("0: empty 0", "1: empty 0", "2: Inventory Potion 2"), visited);
+    }
+}
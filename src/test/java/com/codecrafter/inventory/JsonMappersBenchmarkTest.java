@@ -0,0 +1,88 @@
+package com.codecrafter.inventory;
+
+import com.codecrafter.items.ConsumablePotion;
+import com.codecrafter.items.ItemManager;
+import com.codecrafter.items.WeaponHandedness;
+import com.codecrafter.items.WeaponItem;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares writing and reading an inventory with a new ObjectMapper for every call, like the program used to,
+ * against the shared readers and writers in JsonMappers and the streaming codec.
+ * Run it with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+class JsonMappersBenchmarkTest {
+    /**
+     * The number of round trips timed for every way of converting
+     */
+    private static final int ROUNDS = 2_000;
+    /**
+     * The number of round trips run before timing, so the JIT has compiled the code
+     */
+    private static final int WARMUP_ROUNDS = 500;
+
+    private static Inventory inventory;
+
+    /**
+     * One way to write an inventory to JSON and read it back
+     */
+    @FunctionalInterface
+    private interface RoundTrip {
+        Inventory run(Inventory inventory) throws Exception;
+    }
+
+    @BeforeAll
+    static void createInventory() throws Exception {
+        Item sword = new WeaponItem(7001, "Benchmark Sword", 1.5, 1, WeaponHandedness.MainHand, 10, 100);
+        Item potion = new ConsumablePotion(7002, "Benchmark Potion", 0.05, 20);
+        ItemManager.getInstance().insertItem(sword);
+        ItemManager.getInstance().insertItem(potion);
+
+        inventory = new Inventory("Benchmark", 64);
+        for (int i = 0; i < 64; i += 2) {
+            inventory.insertToSlot(i, i % 4 == 0 ? sword : potion, 1);
+        }
+    }
+
+    @Test
+    void sharedMappersAreFasterThanNewMappers() throws Exception {
+        double perCall = time("new ObjectMapper per call", inventory -> {
+            byte[] json = new ObjectMapper().writeValueAsBytes(inventory);
+            return new ObjectMapper().readValue(json, Inventory.class);
+        });
+        double shared = time("shared reader and writer", inventory ->
+                JsonMappers.INVENTORY_READER.readValue(JsonMappers.INVENTORY_WRITER.writeValueAsBytes(inventory)));
+        double streaming = time("streaming codec", inventory ->
+                InventoryJsonCodec.read(InventoryJsonCodec.toBytes(inventory)));
+
+        System.out.printf("shared is %.1fx and streaming %.1fx as fast as a new mapper per call%n",
+                perCall / shared, perCall / streaming);
+        assertTrue(shared < perCall, "the shared mappers should be faster than creating a new mapper for every call");
+    }
+
+    /**
+     * Times a round trip and prints the result
+     * @return the average time of one round trip in microseconds
+     */
+    private static double time(String name, RoundTrip roundTrip) throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            roundTrip.run(inventory);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            Inventory read = roundTrip.run(inventory);
+            assertEquals(inventory.getUnlockedSlots(), read.getUnlockedSlots());
+        }
+        double micros = (System.nanoTime() - start) / 1_000.0 / ROUNDS;
+
+        System.out.printf("%-28s %10.1f us per round trip%n", name, micros);
+        return micros;
+    }
+}
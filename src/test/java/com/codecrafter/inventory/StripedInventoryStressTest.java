@@ -0,0 +1,226 @@
+package com.codecrafter.inventory;
+
+import com.codecrafter.exceptions.InvalidSlotException;
+import com.codecrafter.exceptions.TooMuchWeightException;
+import com.codecrafter.items.ConsumablePotion;
+import com.codecrafter.items.ItemCatalog;
+import com.codecrafter.items.ItemManager;
+import com.codecrafter.items.WeaponHandedness;
+import com.codecrafter.items.WeaponItem;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Uses a striped inventory from many threads at once, and checks that the weight limit is never exceeded
+ * and that no item is lost or created, while the item catalog is reloaded in the background.
+ */
+class StripedInventoryStressTest {
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 20_000;
+    private static final int ITEMS = 4;
+
+    private final ItemManager manager = ItemManager.getInstance();
+    /**
+     * The catalog before the test, which is set again after it, so other tests keep their items
+     */
+    private ItemCatalog previousCatalog;
+
+    /**
+     * @param potionWeight the weight of the first potion, which changes between reloads
+     * @return the items used by the test, with the ids 0 to ITEMS - 1
+     */
+    private static List<Item> definitions(double potionWeight) {
+        return List.of(
+                new ConsumablePotion(0, "Stress Potion", potionWeight, 10),
+                new ConsumablePotion(1, "Stress Elixir", 0.7, 5),
+                new ConsumablePotion(2, "Stress Stone", 2.5, 3),
+                new WeaponItem(3, "Stress Sword", 1.5, 1, WeaponHandedness.MainHand, 5, 100)
+        );
+    }
+
+    @BeforeEach
+    void setCatalog() {
+        previousCatalog = manager.getCatalog();
+        manager.setCatalog(ItemCatalog.of(definitions(0.3)));
+    }
+
+    @AfterEach
+    void restoreCatalog() {
+        manager.setCatalog(previousCatalog);
+    }
+
+    @ParameterizedTest
+    @EnumSource(StorageMode.class)
+    void weightLimitIsNeverExceeded(StorageMode storageMode) throws Exception {
+        Inventory inventory = new Inventory("Weight", 64, storageMode, ConcurrencyMode.Striped);
+        AtomicLong heaviest = new AtomicLong();
+        AtomicBoolean stop = new AtomicBoolean();
+
+        Thread reader = new Thread(() -> {
+            while (!stop.get()) {
+                heaviest.accumulateAndGet(Inventory.toWeightUnits(inventory.getWeight()), Math::max);
+            }
+        });
+        reader.start();
+
+        runThreads(seed -> {
+            Random random = new Random(seed);
+            for (int i = 0; i < OPERATIONS; i++) {
+                int slot = random.nextInt(64);
+                try {
+                    switch (random.nextInt(6)) {
+                        case 0 -> inventory.insertToSlot(slot, manager.getItem(random.nextInt(ITEMS)), 1 + random.nextInt(10));
+                        case 1, 2 -> inventory.incrementSlot(slot);
+                        case 3 -> inventory.decrementSlot(slot);
+                        case 4 -> inventory.swapSlots(slot, random.nextInt(64));
+                        default -> inventory.add(manager.getItem(random.nextInt(ITEMS)), 1 + random.nextInt(4));
+                    }
+                } catch (TooMuchWeightException | InvalidSlotException e) {
+                    // Expected when the inventory is full
+                }
+                assertTrue(inventory.getWeight() <= Inventory.MAX_WEIGHT + 1e-9, "weight exceeded: " + inventory.getWeight());
+            }
+        });
+        stop.set(true);
+        reader.join();
+
+        assertTrue(heaviest.get() <= Inventory.MAX_WEIGHT_UNITS, "a reader saw the weight exceeded");
+        assertEquals(slotWeight(inventory), inventory.getWeight(), 1e-6);
+    }
+
+    @ParameterizedTest
+    @EnumSource(StorageMode.class)
+    void itemsAreNeverLost(StorageMode storageMode) throws Exception {
+        Inventory inventory = new Inventory("Conservation", 96, storageMode, ConcurrencyMode.Striped);
+        long[] added = new long[ITEMS];
+        AtomicBoolean stop = new AtomicBoolean();
+
+        Thread reloader = new Thread(() -> {
+            int reloads = 0;
+            while (!stop.get()) {
+                manager.reload(definitions(0.1 + 0.05 * (reloads++ % 3)));
+                Thread.onSpinWait();
+            }
+        });
+        reloader.start();
+
+        runThreads(seed -> {
+            Random random = new Random(100 + seed);
+            long[] mine = new long[ITEMS];
+            for (int i = 0; i < OPERATIONS; i++) {
+                int id = random.nextInt(ITEMS);
+                switch (random.nextInt(7)) {
+                    case 0, 1 -> {
+                        int count = 1 + random.nextInt(6);
+                        mine[id] += count - inventory.add(manager.getItem(id), count);
+                    }
+                    case 2, 3 -> {
+                        int count = 1 + random.nextInt(4);
+                        if (inventory.removeItems(id, count)) {
+                            mine[id] -= count;
+                        }
+                    }
+                    case 4 -> swap(inventory, random.nextInt(96), random.nextInt(96));
+                    case 5 -> {
+                        if (random.nextInt(50) == 0) {
+                            inventory.compact();
+                        }
+                    }
+                    default -> {
+                        if (random.nextInt(100) == 0) {
+                            inventory.sortInventory(SortValue.ItemType, SortValue.Weight);
+                        }
+                    }
+                }
+            }
+            synchronized (added) {
+                for (int k = 0; k < ITEMS; k++) {
+                    added[k] += mine[k];
+                }
+            }
+        });
+        stop.set(true);
+        reloader.join();
+
+        long[] counted = new long[ITEMS];
+        for (int i = 0; i < inventory.getUnlockedSlots(); i++) {
+            Item item = inventory.getItemAt(i);
+            if (item != null) {
+                counted[item.getId()] += inventory.getCountAt(i);
+            }
+        }
+        assertArrayEquals(added, counted);
+        for (int id = 0; id < ITEMS; id++) {
+            assertEquals(added[id], inventory.countOf(id));
+        }
+        assertEquals(slotWeight(inventory), inventory.getWeight(), 1e-6);
+    }
+
+    /**
+     * Swaps two slots, which are always inside the inventory
+     */
+    private static void swap(Inventory inventory, int slot1, int slot2) {
+        try {
+            inventory.swapSlots(slot1, slot2);
+        } catch (InvalidSlotException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * The work done by every thread, given the number of the thread
+     */
+    @FunctionalInterface
+    private interface Worker {
+        void run(int seed) throws Exception;
+    }
+
+    /**
+     * Runs the worker on THREADS threads at once and waits for them, failing if any of them failed
+     */
+    private static void runThreads(Worker worker) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int seed = t;
+                futures.add(executor.submit(() -> {
+                    worker.run(seed);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the weight of the inventory added up from its slots
+     */
+    private static double slotWeight(Inventory inventory) {
+        double weight = 0;
+        for (int i = 0; i < inventory.getUnlockedSlots(); i++) {
+            Item item = inventory.getItemAt(i);
+            if (item != null) {
+                weight += item.getWeight() * inventory.getCountAt(i);
+            }
+        }
+        return weight;
+    }
+}